@@ -0,0 +1,47 @@
+package de.felixeckert.apersasm.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.felixeckert.apersasm.Compiler;
+
+/**
+ * Compiles synthetic sources of increasing size, scores are compilations per second.
+ *
+ * @author Felix Eckert
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int lines;
+
+	private String source;
+
+	@Setup
+	public void setup() {
+		source = Corpus.synthetic(lines);
+	}
+
+	@Benchmark
+	public byte[] compile() {
+		byte[] bytecode = Compiler.compile(source);
+		if (bytecode == null) throw new IllegalStateException("Compilation Failed");
+		return bytecode;
+	}
+}
@@ -0,0 +1,130 @@
+package de.felixeckert.apersasm.bench;
+
+/**
+ * Sources the Benchmarks are run on.
+ *
+ * @author Felix Eckert
+ * */
+final class Corpus {
+	/**
+	 * Counts 256 * 256 iterations of an inner and an outer loop.
+	 * */
+	static final String BRANCH_HEAVY = String.join("\r\n",
+			" parse b, #01",
+			" pears b, $00",
+			" parse c, #00",
+			" pears c, $02",
+			"LABEL Outer",
+			" parse a, #00",
+			"LABEL Inner",
+			" prase a, $00",
+			" spare a c",
+			" apers Next",
+			" pares Inner",
+			"LABEL Next",
+			" parse b, $02",
+			" prase b, $00",
+			" pears b, $02",
+			" spare b c",
+			" apres Outer",
+			" asper Outer",
+			" spear");
+
+	/**
+	 * Walks a table through a pointer 256 times, using every POINTER instruction.
+	 * */
+	static final String MEMORY_HEAVY = String.join("\r\n",
+			" parse b, #01",
+			" pears b, $02",
+			" parse c, #00",
+			" pears c, $03",
+			"LABEL Outer",
+			" parse a, #20",
+			" pears a, $01",
+			"LABEL Walk",
+			" pears a, *01",
+			" parse c, *01",
+			" prase c, *01",
+			" presa c, *01",
+			" prase a, $02",
+			" pears a, $01",
+			" parse b, #60",
+			" spare a b",
+			" asper Walk",
+			" parse a, $03",
+			" prase a, $02",
+			" pears a, $03",
+			" parse b, #00",
+			" spare a b",
+			" apres Outer",
+			" asper Outer",
+			" spear");
+
+	/**
+	 * Outputs 256 lines of all printable ASCII characters.
+	 * */
+	static final String OUTPUT_HEAVY = String.join("\r\n",
+			" parse b, #01",
+			" pears b, $02",
+			" parse c, #00",
+			" pears c, $03",
+			"LABEL Outer",
+			" parse a, #20",
+			"LABEL Print",
+			" reaps a",
+			" prase a, $02",
+			" parse b, #7f",
+			" spare a b",
+			" asper Print",
+			" parse b, #0a",
+			" reaps b",
+			" parse a, $03",
+			" prase a, $02",
+			" pears a, $03",
+			" parse b, #00",
+			" spare a b",
+			" apres Outer",
+			" asper Outer",
+			" spear");
+
+	private Corpus() {}
+
+	/**
+	 * @param name Name of a Program of the Corpus, as used in the Benchmark parameters
+	 * @return The source of the Program.
+	 * */
+	static String program(String name) {
+		switch (name) {
+		case "branchHeavy": return BRANCH_HEAVY;
+		case "memoryHeavy": return MEMORY_HEAVY;
+		case "outputHeavy": return OUTPUT_HEAVY;
+		default: throw new IllegalArgumentException("Unknown Program " + name);
+		}
+	}
+
+	/**
+	 * Generates a source made of label definitions, loops and every instruction.
+	 * */
+	static String synthetic(int lines) {
+		String[] body = {
+				" parse b, #1d ; Comment",
+				" pears b, $00",
+				" prase a, $00",
+				" presa a, *01",
+				" reaps a",
+				" spare a b",
+		};
+		StringBuilder source = new StringBuilder(lines * 16);
+		for (int i = 0; i < lines; i++) {
+			if (i % 8 == 0) {
+				source.append("LABEL L").append(i);
+			} else if (i % 8 == 7) {
+				source.append(" apres L").append(i - 7);
+			} else {
+				source.append(body[i % body.length]);
+			}
+			source.append("\r\n");
+		}
+		return source.append(" spear").toString();
+	}
+}
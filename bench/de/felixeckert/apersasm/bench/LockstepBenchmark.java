@@ -0,0 +1,111 @@
+package de.felixeckert.apersasm.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.felixeckert.apersasm.Compiler;
+import de.felixeckert.apersasm.ExecutionResult;
+import de.felixeckert.apersasm.Input;
+import de.felixeckert.apersasm.MemoryInput;
+import de.felixeckert.apersasm.MemoryOutput;
+import de.felixeckert.apersasm.Output;
+import de.felixeckert.apersasm.Program;
+import de.felixeckert.apersasm.Runtime;
+
+/**
+ * Runs one Program over many small inputs, in lockstep on the Vector API, in lockstep on
+ * the scalar lane loops and with one Runtime per input. Scores are batches per second.
+ *
+ * @author Felix Eckert
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockstepBenchmark {
+	/**
+	 * Sums up the numbers from its input down to 1 through MEMORY.
+	 * */
+	private static final String SUM = String.join("\r\n",
+			" rapes a",
+			" pears a, $00",
+			" parse b, #01",
+			" pears b, $01",
+			" parse c, #00",
+			"LABEL Loop",
+			" prase c, $00",
+			" parse a, $00",
+			" presa a, $01",
+			" pears a, $00",
+			" parse b, #00",
+			" spare a b",
+			" apres Loop",
+			" reaps c",
+			" spear");
+
+	@Param({"1024"})
+	public int inputs;
+
+	/**
+	 * Whether the inputs differ, so the instances leave the loop at different times
+	 * */
+	@Param({"false", "true"})
+	public boolean divergent;
+
+	private Program program;
+	private byte[]  values;
+
+	@Setup
+	public void setup() {
+		program = Compiler.assemble(SUM);
+		values  = new byte[inputs];
+
+		Random random = new Random(42);
+		for (int i = 0; i < inputs; i++) values[i] = (byte) (divergent ? 1 + random.nextInt(64) : 64);
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+	public void lockstepVector(Blackhole blackhole) {
+		lockstep(blackhole);
+	}
+
+	@Benchmark
+	public void lockstepScalar(Blackhole blackhole) {
+		lockstep(blackhole);
+	}
+
+	@Benchmark
+	public void runtimePerInput(Blackhole blackhole) {
+		for (int i = 0; i < inputs; i++) {
+			ExecutionResult result = Runtime.execute(program, Runtime.Engine.THREADED,
+					new MemoryInput(new byte[] {values[i]}), new MemoryOutput(), Runnable::run).join();
+			blackhole.consume(result);
+		}
+	}
+
+	private void lockstep(Blackhole blackhole) {
+		Input[]  in  = new Input[inputs];
+		Output[] out = new Output[inputs];
+		for (int i = 0; i < inputs; i++) {
+			in[i]  = new MemoryInput(new byte[] {values[i]});
+			out[i] = new MemoryOutput();
+		}
+		blackhole.consume(Runtime.executeBatch(program, in, out));
+	}
+}
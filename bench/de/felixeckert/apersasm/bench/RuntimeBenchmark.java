@@ -0,0 +1,60 @@
+package de.felixeckert.apersasm.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.felixeckert.apersasm.Compiler;
+import de.felixeckert.apersasm.ExecutionResult;
+import de.felixeckert.apersasm.MemoryInput;
+import de.felixeckert.apersasm.MemoryOutput;
+import de.felixeckert.apersasm.Program;
+import de.felixeckert.apersasm.Runtime;
+
+/**
+ * Executes the branch-, memory- and output-heavy Programs of the {@link Corpus} on every Engine,
+ * scores are executions per second.
+ *
+ * @author Felix Eckert
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuntimeBenchmark {
+	@Param({"branchHeavy", "memoryHeavy", "outputHeavy"})
+	public String program;
+
+	@Param({"INTERPRETER", "THREADED", "JIT"})
+	public Runtime.Engine engine;
+
+	private Program compiled;
+
+	@Setup
+	public void setup() {
+		compiled = Compiler.assemble(Corpus.program(program));
+	}
+
+	/**
+	 * @return The amount of instructions executed.
+	 * */
+	@Benchmark
+	public long execute() {
+		ExecutionResult result = Runtime.execute(compiled, engine,
+				new MemoryInput(new byte[0]), new MemoryOutput(), Runnable::run).join();
+		if (result.getState() != ExecutionResult.State.EXITED) throw new IllegalStateException(result.getError());
+		return result.getInstructionCount();
+	}
+}
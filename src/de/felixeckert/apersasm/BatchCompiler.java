@@ -0,0 +1,357 @@
+package de.felixeckert.apersasm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles whole source trees in one JVM.
+ * Inputs are source files, directories searched for *.apers files, or glob
+ * patterns like src/**.apers. Outputs mirror the layout below their input
+ * in the output directory. Files are compiled in parallel on a fork-join pool,
+ * while the total size of the files being compiled at once is bounded.
+ *
+ * Outputs are written atomically, so an interrupted build never leaves a
+ * partial file behind. Every output has a settings file next to it, recording
+ * -O and the format versions it was compiled with. Incremental builds skip
+ * sources whose output is newer than the source and was compiled with the
+ * same settings.
+ *
+ * @author Felix Eckert
+ * */
+public final class BatchCompiler {
+	private static final String SOURCE_EXTENSION    = ".apers";
+	private static final String CONTAINER_EXTENSION = ".aprs";
+	private static final String BYTECODE_EXTENSION  = ".bin";
+	private static final String SETTINGS_EXTENSION  = ".settings";
+	/**
+	 * Estimated memory used while compiling, per byte of source
+	 * */
+	private static final int MEMORY_PER_BYTE = 8;
+
+	/**
+	 * Outcome of a build
+	 * */
+	public static final class Summary {
+		private final int  compiled;
+		private final int  skipped;
+		private final int  failed;
+		private final long sourceBytes;
+		private final long time;
+
+		Summary(int compiled, int skipped, int failed, long sourceBytes, long time) {
+			this.compiled    = compiled;
+			this.skipped     = skipped;
+			this.failed      = failed;
+			this.sourceBytes = sourceBytes;
+			this.time        = time;
+		}
+
+		/**
+		 * @return The amount of compiled files.
+		 * */
+		public int getCompiled() {
+			return compiled;
+		}
+
+		/**
+		 * @return The amount of files that were up to date.
+		 * */
+		public int getSkipped() {
+			return skipped;
+		}
+
+		/**
+		 * @return The amount of files that failed to compile.
+		 * */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return The size of all compiled sources in bytes.
+		 * */
+		public long getSourceBytes() {
+			return sourceBytes;
+		}
+
+		/**
+		 * @return The time the build took in NS.
+		 * */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			double seconds = Math.max(time, 1) / 1e9;
+			return String.format("Compiled %d files (%d up to date, %d failed) in %.2f s, %.0f files/s, %.2f MB/s",
+					compiled, skipped, failed, seconds, compiled / seconds, sourceBytes / seconds / (1024 * 1024));
+		}
+	}
+
+	/**
+	 * A source file and where it compiles to
+	 * */
+	private static final class Job {
+		final Path source;
+		final Path output;
+
+		Job(Path source, Path output) {
+			this.source = source;
+			this.output = output;
+		}
+	}
+
+	private final Path    outputDirectory;
+	private final boolean container;
+	private final boolean optimize;
+	private final boolean incremental;
+	/**
+	 * Settings recorded with every output
+	 * */
+	private final byte[]  settings;
+	/**
+	 * Memory budget in KB
+	 * */
+	private final Semaphore memory;
+	private final int       budget;
+
+	private final AtomicInteger compiled    = new AtomicInteger();
+	private final AtomicInteger skipped     = new AtomicInteger();
+	private final AtomicInteger failed      = new AtomicInteger();
+	private final AtomicLong    sourceBytes = new AtomicLong();
+
+	private BatchCompiler(Path outputDirectory, boolean container, boolean optimize, boolean incremental, long memoryBudget) {
+		this.outputDirectory = outputDirectory;
+		this.container       = container;
+		this.optimize        = optimize;
+		this.incremental     = incremental;
+		this.settings        = String.format("Compiler %d, Decoder %d, Container %d, Optimizer %d\n",
+				Compiler.VERSION, DecodedProgram.VERSION, ProgramFile.VERSION, optimize ? Optimizer.VERSION : 0)
+				.getBytes(StandardCharsets.UTF_8);
+		this.budget          = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / 1024));
+		this.memory          = new Semaphore(budget);
+	}
+
+	/**
+	 * Compiles with one thread per processor and a quarter of the heap as memory budget.
+	 * @see #build(List, Path, boolean, boolean, boolean, int, long)
+	 * */
+	public static Summary build(List<String> inputs, Path outputDirectory, boolean container,
+			boolean optimize, boolean incremental) throws IOException {
+		return build(inputs, outputDirectory, container, optimize, incremental,
+				java.lang.Runtime.getRuntime().availableProcessors(), java.lang.Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	/**
+	 * Compiles many source files. Errors are reported per file on System.err.
+	 *
+	 * @param inputs          Source files, directories or glob patterns
+	 * @param outputDirectory Where to write the outputs
+	 * @param container       Whether to write container files instead of raw Bytecode
+	 * @param optimize        Whether to run the {@link Optimizer}
+	 * @param incremental     Whether to skip sources whose output is newer than the source and has the same settings
+	 * @param parallelism     Amount of files compiled at once
+	 * @param memoryBudget    Bytes the files compiled at once may use, estimated from their size
+	 * @return The outcome of the build.
+	 * */
+	public static Summary build(List<String> inputs, Path outputDirectory, boolean container,
+			boolean optimize, boolean incremental, int parallelism, long memoryBudget) throws IOException {
+		if (parallelism < 1 || memoryBudget < 1) throw new IllegalArgumentException("Parallelism and memory budget have to be positive");
+
+		long start = System.nanoTime();
+		BatchCompiler compiler = new BatchCompiler(outputDirectory, container, optimize, incremental, memoryBudget);
+		List<Job> jobs = compiler.collect(inputs);
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(compiler.new Range(jobs, 0, jobs.size()));
+		} finally {
+			pool.shutdown();
+		}
+
+		return new Summary(compiler.compiled.get(), compiler.skipped.get(), compiler.failed.get(),
+				compiler.sourceBytes.get(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Compiles a range of jobs, splitting it across the pool.
+	 * */
+	private final class Range extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final transient List<Job> jobs;
+		private final int from;
+		private final int to;
+
+		Range(List<Job> jobs, int from, int to) {
+			this.jobs = jobs;
+			this.from = from;
+			this.to   = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				compile(jobs.get(from));
+			} else if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Range(jobs, from, middle), new Range(jobs, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Internal Helper Method to find every source file and its output.
+	 * */
+	private List<Job> collect(List<String> inputs) throws IOException {
+		String    extension = container ? CONTAINER_EXTENSION : BYTECODE_EXTENSION;
+		List<Job> jobs      = new ArrayList<>();
+
+		for (String input : inputs) {
+			Path        root;
+			List<Path>  sources;
+			int         glob = globStart(input);
+
+			if (glob == -1 && Files.isRegularFile(Path.of(input))) {
+				Path source = Path.of(input);
+				root    = source.toAbsolutePath().getParent();
+				sources = List.of(source.toAbsolutePath());
+			} else {
+				PathMatcher matcher;
+				if (glob == -1) { // Directory
+					root    = Path.of(input);
+					matcher = FileSystems.getDefault().getPathMatcher("glob:**" + SOURCE_EXTENSION);
+				} else {
+					String base = input.substring(0, input.lastIndexOf('/', glob) + 1);
+					root    = Path.of(base.isEmpty() ? "." : base);
+					matcher = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(base.length()));
+				}
+				if (!Files.isDirectory(root)) {
+					System.err.printf("BUILD ERROR: NO SUCH FILE OR DIRECTORY %s\n", input);
+					failed.incrementAndGet();
+					continue;
+				}
+
+				final Path searched = root;
+				try (Stream<Path> files = Files.walk(root)) {
+					sources = files.filter(Files::isRegularFile)
+							.filter(file -> matcher.matches(searched.relativize(file)))
+							.sorted()
+							.collect(Collectors.toList());
+				}
+			}
+
+			for (Path source : sources) {
+				String relative = root.toAbsolutePath().relativize(source.toAbsolutePath()).toString();
+				if (relative.endsWith(SOURCE_EXTENSION)) {
+					relative = relative.substring(0, relative.length() - SOURCE_EXTENSION.length());
+				}
+				jobs.add(new Job(source, outputDirectory.resolve(relative + extension)));
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return The index of the first glob character in a path or -1 if there is none.
+	 * */
+	private static int globStart(String path) {
+		for (int i = 0; i < path.length(); i++) {
+			switch (path.charAt(i)) {
+			case '*': case '?': case '[': case '{':
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Internal Helper Method to compile a single source file.
+	 * */
+	private void compile(Job job) {
+		ByteArrayOutputStream messages = new ByteArrayOutputStream();
+		PrintStream           errors   = new PrintStream(messages, true, StandardCharsets.UTF_8);
+
+		Path settingsFile = job.output.resolveSibling(job.output.getFileName() + SETTINGS_EXTENSION);
+		int  permits      = 0;
+		try {
+			if (incremental && isUpToDate(job, settingsFile)) {
+				skipped.incrementAndGet();
+				return;
+			}
+
+			long size = Files.size(job.source);
+			permits = (int) Math.min(budget, Math.max(1, size * MEMORY_PER_BYTE / 1024));
+			memory.acquireUninterruptibly(permits);
+
+			Program program = Compiler.assemble(new String(Files.readAllBytes(job.source)), errors);
+			if (program != null && optimize) {
+				if (program.isVerified()) {
+					program = Optimizer.optimize(program);
+				} else {
+					errors.println("OPTIMIZER WARNING: PROGRAM FAILED VERIFICATION, IT IS NOT OPTIMIZED");
+				}
+			}
+			if (program == null || program.length() == 0) {
+				failed.incrementAndGet();
+				report("BUILD ERROR", job, messages);
+				return;
+			}
+
+			Files.createDirectories(job.output.toAbsolutePath().getParent());
+			Files.deleteIfExists(settingsFile); // The output is only up to date once both are written
+			if (container) {
+				ProgramFile.save(job.output, program, true);
+			} else {
+				ProgramFile.write(job.output, program.getBytecode());
+			}
+			ProgramFile.write(settingsFile, settings);
+			compiled.incrementAndGet();
+			sourceBytes.addAndGet(size);
+			if (messages.size() > 0) report("BUILD WARNING", job, messages);
+		} catch (IOException | RuntimeException e) { // Keep compiling the other files
+			failed.incrementAndGet();
+			errors.println(e);
+			report("BUILD ERROR", job, messages);
+		} finally {
+			memory.release(permits);
+		}
+	}
+
+	/**
+	 * @return Whether the output is newer than the source and was compiled with the same settings.
+	 * */
+	private boolean isUpToDate(Job job, Path settingsFile) throws IOException {
+		if (!Files.exists(job.output) || !Files.exists(settingsFile)) return false;
+		if (Files.getLastModifiedTime(job.output).compareTo(Files.getLastModifiedTime(job.source)) < 0) return false;
+		return Arrays.equals(Files.readAllBytes(settingsFile), settings);
+	}
+
+	/**
+	 * Internal Helper Method to print the messages of a file in one piece.
+	 * */
+	private static void report(String kind, Job job, ByteArrayOutputStream messages) {
+		StringBuilder report = new StringBuilder(String.format("%s: %s\n", kind, job.source));
+		for (String line : messages.toString(StandardCharsets.UTF_8).split("\n")) {
+			if (!line.isEmpty()) report.append("    ").append(line).append('\n');
+		}
+		System.err.print(report);
+	}
+}
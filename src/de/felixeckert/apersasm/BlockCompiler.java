@@ -0,0 +1,418 @@
+package de.felixeckert.apersasm;
+
+import static de.felixeckert.apersasm.DecodedProgram.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Compiles a block of a {@link DecodedProgram} into the class file of a
+ * {@link JitEngine.Block}. A Block follows the fall-through path of conditional
+ * jumps until an unconditional one, keeps the registers in locals, accesses
+ * MEMORY directly and loops in place on jumps back to its own start until
+ * the time slice of the Runtime ended.
+ *
+ * Classes are emitted with version 49, which does not require stack map frames.
+ *
+ * @author Felix Eckert
+ * */
+final class BlockCompiler {
+	/**
+	 * Maximum amount of instructions compiled into a single Block
+	 * */
+	static final int MAX_BLOCK_LENGTH = 1024;
+
+	private static final String CLASS_NAME   = "de/felixeckert/apersasm/CompiledBlock";
+	private static final String RUNTIME_NAME = "de/felixeckert/apersasm/Runtime";
+
+	// JVM Instructions
+	private static final int ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ASTORE_2 = 0x4d, ALOAD_2 = 0x2c, ALOAD = 0x19, ASTORE = 0x3a;
+	private static final int ILOAD = 0x15, ISTORE = 0x36, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+	private static final int BALOAD = 0x33, BASTORE = 0x54, IADD = 0x60, ISUB = 0x64, I2B = 0x91;
+	private static final int IFNE = 0x9a, IFGE = 0x9c, IFLE = 0x9e, GOTO = 0xa7, IRETURN = 0xac, RETURN = 0xb1, ATHROW = 0xbf;
+	private static final int DUP = 0x59, I2L = 0x85, LADD = 0x61, LSUB = 0x65, LCMP = 0x94, IFLT = 0x9b;
+	private static final int LCONST_0 = 0x09, LLOAD = 0x16, LSTORE = 0x37;
+	private static final int GETFIELD = 0xb4, PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7;
+
+	// Locals of Block.run
+	private static final int LOCAL_A       = 3; // followed by b, c
+	private static final int LOCAL_COMPARE = 6;
+	private static final int LOCAL_ERROR   = 7;
+	/**
+	 * Bytecode offset of the last instruction that could have thrown
+	 * */
+	private static final int LOCAL_OFFSET  = 8;
+	/**
+	 * Instructions executed by previous iterations of the Block, a long
+	 * */
+	private static final int LOCAL_COUNT   = 9;
+	/**
+	 * Instructions executed in this iteration up to the last instruction that could have thrown
+	 * */
+	private static final int LOCAL_DONE    = 11;
+	/**
+	 * Instructions left in the time slice when the Block was entered, a long
+	 * */
+	private static final int LOCAL_LIMIT   = 12;
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream      poolOut = new DataOutputStream(pool);
+	private final HashMap<String, Integer> constants = new HashMap<>();
+	private int poolCount = 1;
+
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+	private BlockCompiler() {}
+
+	/**
+	 * @param program  The decoded Program
+	 * @param start    Index of the first instruction of the Block
+	 * @param verified Whether the Program passed the {@link Verifier}, so
+	 *                 instructions accessing an ADDRESS can not fault
+	 * @return The class file bytes.
+	 * */
+	static byte[] compile(DecodedProgram program, int start, boolean verified) {
+		try {
+			return new BlockCompiler().compileBlock(program, start, verified);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // In-memory streams do not throw
+		}
+	}
+
+	private byte[] compileBlock(DecodedProgram program, int start, boolean verified) throws IOException {
+		int thisClass   = classConstant(CLASS_NAME);
+		int superClass  = classConstant("java/lang/Object");
+		int blockClass  = classConstant("de/felixeckert/apersasm/JitEngine$Block");
+		int memory      = fieldConstant("MEMORY", "[B");
+		int[] registers = {
+				fieldConstant("REGS_A", "B"), fieldConstant("REGS_B", "B"), fieldConstant("REGS_C", "B")
+		};
+		int compare     = fieldConstant("COMPARE", "B");
+		int counter     = fieldConstant("programCounter", "I");
+		int executed    = fieldConstant("instructionCount", "J");
+		int sliceEnd    = fieldConstant("sliceEnd", "J");
+
+		// Prologue: Load Registers into Locals
+		emit(ALOAD_1); emit(GETFIELD); emitShort(memory); emit(ASTORE_2);
+		for (int r = 0; r < 3; r++) {
+			emit(ALOAD_1); emit(GETFIELD); emitShort(registers[r]); emit(ISTORE); emit(LOCAL_A + r);
+		}
+		emit(ALOAD_1); emit(GETFIELD); emitShort(compare); emit(ISTORE); emit(LOCAL_COMPARE);
+		push(program.offsets[start]); emit(ISTORE); emit(LOCAL_OFFSET);
+		emit(LCONST_0); emit(LSTORE); emit(LOCAL_COUNT);
+		push(0); emit(ISTORE); emit(LOCAL_DONE);
+		emit(ALOAD_1); emit(GETFIELD); emitShort(sliceEnd);
+		emit(ALOAD_1); emit(GETFIELD); emitShort(executed);
+		emit(LSUB); emit(LSTORE); emit(LOCAL_LIMIT);
+		int loopStart = code.size();
+
+		int[] instructions = program.code;
+		for (int ip = start;; ip++) {
+			int opcode  = opcode(first(instructions[ip])); // Superinstructions are compiled as their parts
+			int operand = operand(first(instructions[ip]));
+
+			if (opcode >= APERS && opcode <= PARES) {
+				int skip = -1;
+				if (opcode != PARES) {
+					emit(ILOAD); emit(LOCAL_COMPARE);
+					skip = code.size();
+					emit(opcode == APERS ? IFNE : opcode == APRES ? IFLE : IFGE); emitShort(0);
+				}
+
+				int done = ip - start + 1;
+				if (operand == start) {
+					emit(LLOAD); emit(LOCAL_COUNT); push(done); emit(I2L); emit(LADD); emit(LSTORE); emit(LOCAL_COUNT);
+					// Loop in place until the time slice ended
+					emit(LLOAD); emit(LOCAL_COUNT); emit(LLOAD); emit(LOCAL_LIMIT); emit(LCMP);
+					jump(IFLT, loopStart);
+					exit(registers, compare, executed, 0, start);
+				} else {
+					exit(registers, compare, executed, done, operand);
+				}
+
+				if (skip == -1) break;
+				// Keep compiling along the fall-through path
+				patch(skip, code.size() - skip);
+				continue;
+			}
+			if (opcode == SPEAR || opcode == HALT) {
+				exit(registers, compare, executed, ip - start + (opcode == SPEAR ? 1 : 0), program.length());
+				break;
+			}
+			if (ip - start >= MAX_BLOCK_LENGTH) {
+				exit(registers, compare, executed, ip - start, ip);
+				break;
+			}
+
+			if (opcode >= PARSE_ADDRESS_A && opcode < SPARE_AA && !(verified && isAddress(opcode))) { // Instruction may throw
+				push(program.offsets[ip]); emit(ISTORE); emit(LOCAL_OFFSET);
+				push(ip - start + 1); emit(ISTORE); emit(LOCAL_DONE);
+			}
+
+			int register = (opcode - PARSE_VALUE_A) % 3;
+			if (opcode >= PARSE_VALUE_A && opcode < PARSE_ADDRESS_A) {
+				push(operand);
+				store(register);
+			} else if (opcode < PARSE_POINTER_A) {
+				loadAddress(operand);
+				store(register);
+			} else if (opcode < PEARS_ADDRESS_A) {
+				loadPointer(operand);
+				store(register);
+			} else if (opcode < PEARS_POINTER_A) {
+				emit(ALOAD_2); push(operand);
+				load(register); emit(BASTORE);
+			} else if (opcode < PRASE_ADDRESS_A) {
+				emit(ALOAD_2); loadAddress(operand);
+				load(register); emit(BASTORE);
+			} else if (opcode < PRESA_POINTER_A + 3) {
+				load(register);
+				if ((opcode - PRASE_ADDRESS_A) / 3 % 2 == 0) loadAddress(operand);
+				else loadPointer(operand);
+				emit(opcode < PRESA_ADDRESS_A ? IADD : ISUB);
+				emit(I2B); store(register);
+			} else if (opcode < REAPS_A) {
+				emit(ALOAD_1);
+				emit(INVOKEVIRTUAL); emitShort(methodConstant("input", "()B"));
+				store(register);
+			} else if (opcode < SPARE_AA) {
+				emit(ALOAD_1); load(register);
+				emit(INVOKEVIRTUAL); emitShort(methodConstant("output", "(B)V"));
+			} else {
+				load((opcode - SPARE_AA) / 3);
+				load((opcode - SPARE_AA) % 3);
+				emit(ISUB); emit(I2B);
+				emit(ISTORE); emit(LOCAL_COMPARE);
+			}
+		}
+
+		// Exception Handler: Write back the state at the faulting instruction and rethrow
+		int handler = code.size();
+		emit(ASTORE); emit(LOCAL_ERROR);
+		writeBack(registers, compare, executed, -1);
+		emit(ALOAD_1); emit(ILOAD); emit(LOCAL_OFFSET); emit(PUTFIELD); emitShort(counter);
+		emit(ALOAD); emit(LOCAL_ERROR);
+		emit(ATHROW);
+
+		byte[] run = code.toByteArray();
+		code.reset();
+		emit(ALOAD_0);
+		emit(INVOKESPECIAL); emitShort(constant(10, "java/lang/Object", "<init>", "()V"));
+		emit(RETURN);
+		byte[] init = code.toByteArray();
+
+		int codeName = utf8("Code");
+		int initName = utf8("<init>"), initType = utf8("()V");
+		int runName  = utf8("run"), runType = utf8("(L" + RUNTIME_NAME + ";)I");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(49);
+		out.writeShort(poolCount);
+		pool.writeTo(out);
+		out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(blockClass);
+		out.writeShort(0); // Fields
+		out.writeShort(2); // Methods
+		writeMethod(out, 0x0001, initName, initType, codeName, 1, 1, init, null);
+		writeMethod(out, 0x0001, runName, runType, codeName, 8, LOCAL_LIMIT + 2, run,
+				new int[] {loopStart, handler, handler});
+		out.writeShort(0); // Attributes
+		return bytes.toByteArray();
+	}
+
+	private static void writeMethod(DataOutputStream out, int access, int name, int type, int codeName,
+			int maxStack, int maxLocals, byte[] code, int[] catchAll) throws IOException {
+		out.writeShort(access);
+		out.writeShort(name);
+		out.writeShort(type);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length + (catchAll == null ? 0 : 8));
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		if (catchAll == null) { // Exception Table
+			out.writeShort(0);
+		} else {
+			out.writeShort(1);
+			out.writeShort(catchAll[0]); // Start
+			out.writeShort(catchAll[1]); // End
+			out.writeShort(catchAll[2]); // Handler
+			out.writeShort(0);           // Any Type
+		}
+		out.writeShort(0); // Attributes
+	}
+
+	/**
+	 * Writes the Registers back to the Runtime and returns the next instruction index.
+	 * */
+	private void exit(int[] registers, int compare, int executed, int done, int next) {
+		writeBack(registers, compare, executed, done);
+		push(next);
+		emit(IRETURN);
+	}
+
+	/**
+	 * @param done Instructions executed in the current iteration, -1 to use {@link #LOCAL_DONE}
+	 * */
+	private void writeBack(int[] registers, int compare, int executed, int done) {
+		for (int r = 0; r < 3; r++) {
+			emit(ALOAD_1); load(r); emit(PUTFIELD); emitShort(registers[r]);
+		}
+		emit(ALOAD_1); emit(ILOAD); emit(LOCAL_COMPARE); emit(PUTFIELD); emitShort(compare);
+
+		// instructionCount += count + done
+		emit(ALOAD_1); emit(DUP); emit(GETFIELD); emitShort(executed);
+		emit(LLOAD); emit(LOCAL_COUNT); emit(LADD);
+		if (done == -1) {
+			emit(ILOAD); emit(LOCAL_DONE);
+		} else {
+			push(done);
+		}
+		emit(I2L); emit(LADD);
+		emit(PUTFIELD); emitShort(executed);
+	}
+
+	private void loadAddress(int address) {
+		emit(ALOAD_2); push(address); emit(BALOAD);
+	}
+
+	private void loadPointer(int address) {
+		emit(ALOAD_2); loadAddress(address); emit(BALOAD);
+	}
+
+	private void load(int register) {
+		emit(ILOAD); emit(LOCAL_A + register);
+	}
+
+	/**
+	 * @return true if the instruction only accesses MEMORY at its operand.
+	 * */
+	private static boolean isAddress(int opcode) {
+		return opcode >= PARSE_ADDRESS_A && opcode < PARSE_POINTER_A
+				|| opcode >= PEARS_ADDRESS_A && opcode < PEARS_POINTER_A
+				|| opcode >= PRASE_ADDRESS_A && opcode < PRASE_POINTER_A
+				|| opcode >= PRESA_ADDRESS_A && opcode < PRESA_POINTER_A;
+	}
+
+	private void store(int register) {
+		emit(ISTORE); emit(LOCAL_A + register);
+	}
+
+	private void push(int value) {
+		if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			emit(BIPUSH); emit(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			emit(SIPUSH); emitShort(value);
+		} else {
+			emit(LDC_W); emitShort(integerConstant(value));
+		}
+	}
+
+	private void jump(int instruction, int target) {
+		int at = code.size();
+		emit(instruction); emitShort(target - at);
+	}
+
+	private void patch(int at, int offset) {
+		byte[] bytes = code.toByteArray();
+		bytes[at+1] = (byte) (offset >> 8);
+		bytes[at+2] = (byte) offset;
+		code.reset();
+		code.write(bytes, 0, bytes.length);
+	}
+
+	private void emit(int b) {
+		code.write(b);
+	}
+
+	private void emitShort(int s) {
+		code.write(s >> 8);
+		code.write(s);
+	}
+
+	// Constant Pool
+
+	private int utf8(String value) {
+		return constant(1, value, null, null);
+	}
+
+	private int integerConstant(int value) {
+		return constant(3, Integer.toString(value), null, null);
+	}
+
+	private int classConstant(String name) {
+		return constant(7, name, null, null);
+	}
+
+	private int fieldConstant(String name, String type) {
+		return constant(9, RUNTIME_NAME, name, type);
+	}
+
+	private int methodConstant(String name, String type) {
+		return constant(10, RUNTIME_NAME, name, type);
+	}
+
+	private int constant(int tag, String value, String name, String type) {
+		String key = tag + ":" + value + ":" + name + ":" + type;
+		Integer index = constants.get(key);
+		if (index != null) return index;
+
+		try {
+			switch (tag) {
+			case 1:
+				poolOut.writeByte(tag);
+				poolOut.writeUTF(value);
+				break;
+			case 3:
+				poolOut.writeByte(tag);
+				poolOut.writeInt(Integer.parseInt(value));
+				break;
+			case 7:
+				int utf = utf8(value);
+				poolOut.writeByte(tag);
+				poolOut.writeShort(utf);
+				break;
+			case 9:
+			case 10:
+				int owner       = classConstant(value);
+				int nameAndType = nameAndType(name, type);
+				poolOut.writeByte(tag);
+				poolOut.writeShort(owner);
+				poolOut.writeShort(nameAndType);
+				break;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		constants.put(key, poolCount);
+		return poolCount++;
+	}
+
+	private int nameAndType(String name, String type) {
+		String key = "12:" + name + ":" + type;
+		Integer index = constants.get(key);
+		if (index != null) return index;
+
+		int nameIndex = utf8(name);
+		int typeIndex = utf8(type);
+		try {
+			poolOut.writeByte(12);
+			poolOut.writeShort(nameIndex);
+			poolOut.writeShort(typeIndex);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		constants.put(key, poolCount);
+		return poolCount++;
+	}
+}
@@ -0,0 +1,161 @@
+package de.felixeckert.apersasm;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+/**
+ * Input Source reading from a Channel through a buffer.
+ *
+ * @author Felix Eckert
+ * */
+public class ChannelInput implements Input {
+	/**
+	 * How values are read from the Channel
+	 * */
+	public enum Mode {
+		/**
+		 * Whitespace seperated decimal integers, like Scanner.nextInt
+		 * */
+		DECIMAL,
+		/**
+		 * Every byte is a value
+		 * */
+		BINARY
+	}
+	
+	private final ReadableByteChannel channel;
+	private final Mode       mode;
+	private final byte[]     buffer;
+	private final ByteBuffer view;
+	private int position = 0;
+	private int limit    = 0;
+	/**
+	 * The buffer as the source of decimal integers, refilled as it is read
+	 * */
+	private final ByteSource source = new ByteSource() {
+		@Override
+		public int peek() throws IOException {
+			return position < limit || fill() ? buffer[position] & 0xff : -1;
+		}
+		
+		@Override
+		public void skip() {
+			position++;
+		}
+	};
+	
+	/**
+	 * @param channel The Channel to read from
+	 * @param mode    How to read values
+	 * */
+	public ChannelInput(ReadableByteChannel channel, Mode mode) {
+		this(channel, mode, 8192);
+	}
+	
+	/**
+	 * @param channel  The Channel to read from
+	 * @param mode     How to read values
+	 * @param capacity Buffer capacity in bytes
+	 * */
+	public ChannelInput(ReadableByteChannel channel, Mode mode, int capacity) {
+		this.channel = channel;
+		this.mode    = mode;
+		this.buffer  = new byte[Math.max(capacity, 16)];
+		this.view    = ByteBuffer.wrap(buffer);
+	}
+	
+	/**
+	 * @return An Input reading from the standard input stream.
+	 * */
+	public static ChannelInput stdin(Mode mode) {
+		return new ChannelInput(new FileInputStream(FileDescriptor.in).getChannel(), mode);
+	}
+	
+	@Override
+	public byte read() throws IOException {
+		if (mode == Mode.BINARY) {
+			if (position == limit && !fill()) throw new NoSuchElementException();
+			return buffer[position++];
+		}
+		return (byte) readInt();
+	}
+	
+	/**
+	 * Reads the next whitespace seperated decimal integer without allocating.
+	 * */
+	int readInt() throws IOException {
+		return readInt(source);
+	}
+	
+	/**
+	 * Bytes a decimal integer is read from, see {@link ChannelInput#readInt(ByteSource)}.
+	 * */
+	interface ByteSource {
+		/**
+		 * @return The next byte without consuming it, -1 at the end of the input.
+		 * */
+		int peek() throws IOException;
+		
+		/**
+		 * Consumes the byte returned by {@link #peek()}.
+		 * */
+		void skip();
+	}
+	
+	/**
+	 * Reads the next whitespace seperated decimal integer, like Scanner.nextInt.
+	 * @throws NoSuchElementException The input ended before the integer
+	 * @throws InputMismatchException The integer is malformed or out of range
+	 * */
+	static int readInt(ByteSource source) throws IOException {
+		// Skip Whitespace
+		int b;
+		while ((b = source.peek()) != -1 && isWhitespace((byte) b)) source.skip();
+		if (b == -1) throw new NoSuchElementException();
+		
+		boolean negative = false;
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			source.skip();
+		}
+		
+		long    value  = 0;
+		int     digits = 0;
+		boolean valid  = true;
+		while ((b = source.peek()) != -1 && !isWhitespace((byte) b)) {
+			source.skip();
+			
+			if (b < '0' || b > '9') {
+				valid = false;
+				continue;
+			}
+			value = value * 10 + (b - '0');
+			if (value > Integer.MAX_VALUE + 1L) valid = false;
+			digits++;
+		}
+		
+		if (!valid || digits == 0 || (!negative && value > Integer.MAX_VALUE)) throw new InputMismatchException();
+		return (int) (negative ? -value : value);
+	}
+	
+	private boolean fill() throws IOException {
+		view.clear();
+		int read;
+		do {
+			read = channel.read(view);
+		} while (read == 0);
+		
+		position = 0;
+		limit    = Math.max(read, 0);
+		return read > 0;
+	}
+	
+	static boolean isWhitespace(byte b) {
+		return b == ' ' || (b >= 0x09 && b <= 0x0d) || (b >= 0x1c && b <= 0x1f);
+	}
+}
@@ -0,0 +1,97 @@
+package de.felixeckert.apersasm;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Output Sink buffering output and writing it to a Channel in batches.
+ *
+ * @author Felix Eckert
+ * */
+public class ChannelOutput implements Output {
+	/**
+	 * When buffered output is written to the Channel
+	 * */
+	public enum FlushPolicy {
+		/**
+		 * Only when the Program exits, the buffer grows as needed
+		 * */
+		ON_EXIT,
+		/**
+		 * Whenever the buffer is full
+		 * */
+		WHEN_FULL,
+		/**
+		 * Whenever the buffer is full or a newline was output
+		 * */
+		ON_NEWLINE
+	}
+	
+	private final WritableByteChannel channel;
+	private final FlushPolicy         policy;
+	private byte[]     buffer;
+	private ByteBuffer view;
+	private int        count = 0;
+	
+	/**
+	 * @param channel The Channel to write to
+	 * */
+	public ChannelOutput(WritableByteChannel channel) {
+		this(channel, FlushPolicy.WHEN_FULL, 8192);
+	}
+	
+	/**
+	 * @param channel  The Channel to write to
+	 * @param policy   When to write to the Channel
+	 * @param capacity Buffer capacity in bytes
+	 * */
+	public ChannelOutput(WritableByteChannel channel, FlushPolicy policy, int capacity) {
+		this.channel = channel;
+		this.policy  = policy;
+		this.buffer  = new byte[Math.max(capacity, 16)];
+		this.view    = ByteBuffer.wrap(buffer);
+	}
+	
+	/**
+	 * @return An Output writing to the standard output stream.
+	 * */
+	public static ChannelOutput stdout() {
+		System.out.flush();
+		return new ChannelOutput(new FileOutputStream(FileDescriptor.out).getChannel());
+	}
+	
+	@Override
+	public void write(byte value) throws IOException {
+		if (value >= 0) { // ASCII, the common case
+			if (count == buffer.length) full();
+			buffer[count++] = value;
+		} else {
+			for (byte b : Output.encode(value)) {
+				if (count == buffer.length) full();
+				buffer[count++] = b;
+			}
+		}
+		
+		if (value == '\n' && policy == FlushPolicy.ON_NEWLINE) flush();
+	}
+	
+	private void full() throws IOException {
+		if (policy == FlushPolicy.ON_EXIT) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			view   = ByteBuffer.wrap(buffer);
+		} else {
+			flush();
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		view.clear().limit(count);
+		while (view.hasRemaining()) channel.write(view);
+		count = 0;
+	}
+}
@@ -0,0 +1,159 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Growable primitive Byte Buffer the Compiler emits Bytecode into.
+ * A buffer can also stream into a file, in which case it only holds the bytes
+ * emitted since the last flush and patches earlier ones in the file.
+ *
+ * @author Felix Eckert
+ * */
+final class CodeBuffer {
+	private byte[] bytes;
+	private int    size = 0;
+	/**
+	 * File the bytes are streamed into, null if they are kept in memory
+	 * */
+	private final FileChannel file;
+	/**
+	 * Position of the first buffered byte in the file
+	 * */
+	private long   base = 0;
+	/**
+	 * Source lines as (Position, Line) pairs, null if they are not recorded
+	 * */
+	private int[]  lines;
+	private int    lineCount = 0;
+
+	CodeBuffer() {
+		this(4096);
+	}
+
+	/**
+	 * @param capacity Initial capacity in bytes
+	 * */
+	CodeBuffer(int capacity) {
+		this.bytes = new byte[Math.max(capacity, 16)];
+		this.file  = null;
+		this.lines = new int[256];
+	}
+
+	/**
+	 * @param file Where to stream the bytes to, source lines are not recorded
+	 * */
+	CodeBuffer(FileChannel file) {
+		this.bytes = new byte[64 * 1024];
+		this.file  = file;
+	}
+
+	/**
+	 * @return The amount of bytes emitted so far.
+	 * */
+	int size() {
+		return (int) (base + size);
+	}
+
+	void add(byte b) {
+		if (size == bytes.length) grow(1);
+		bytes[size++] = b;
+	}
+
+	/**
+	 * Appends a 32-bit big-endian integer.
+	 * */
+	void addInt(int value) {
+		if (size + 4 > bytes.length) grow(4);
+		size += 4;
+		setInt(size() - 4, value);
+	}
+
+	/**
+	 * Records the source line of the next emitted instruction.
+	 * */
+	void line(int line) {
+		if (lines == null) return;
+		if (lineCount == lines.length) lines = Arrays.copyOf(lines, lineCount * 2);
+		lines[lineCount++] = size();
+		lines[lineCount++] = line;
+	}
+
+	/**
+	 * Overwrites a 32-bit big-endian integer at a given position.
+	 * */
+	void setInt(int position, int value) {
+		if (position < base) {
+			write(position, ByteBuffer.allocate(4).putInt(0, value));
+			return;
+		}
+		int i = (int) (position - base);
+		bytes[i]   = (byte) (value >>> 24);
+		bytes[i+1] = (byte) (value >>> 16);
+		bytes[i+2] = (byte) (value >>> 8);
+		bytes[i+3] = (byte) value;
+	}
+
+	/**
+	 * @return The 32-bit big-endian integer at a given position.
+	 * */
+	int getInt(int position) {
+		if (position < base) {
+			ByteBuffer buffer = ByteBuffer.allocate(4);
+			try {
+				while (buffer.hasRemaining()) {
+					if (file.read(buffer, position + buffer.position()) == -1) throw new IOException("Unexpected end of file");
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return buffer.getInt(0);
+		}
+		return Runtime.getInt(bytes, (int) (position - base));
+	}
+
+	/**
+	 * Writes the buffered bytes to the file.
+	 * */
+	void flush() {
+		write(base, ByteBuffer.wrap(bytes, 0, size));
+		base += size;
+		size  = 0;
+	}
+
+	private void grow(int needed) {
+		if (file == null) {
+			bytes = Arrays.copyOf(bytes, Math.max(size * 2, size + needed));
+			return;
+		}
+		if (base + size + needed > Integer.MAX_VALUE) { // Addresses are 32-bit
+			throw new UncheckedIOException(new IOException("Bytecode exceeds " + Integer.MAX_VALUE + " bytes"));
+		}
+		flush();
+	}
+
+	private void write(long position, ByteBuffer buffer) {
+		try {
+			while (buffer.hasRemaining()) file.write(buffer, position + buffer.position());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return A trimmed copy of the emitted bytes.
+	 * */
+	byte[] toByteArray() {
+		return Arrays.copyOf(bytes, size);
+	}
+
+	/**
+	 * @return The recorded source lines as (Position, Line) pairs.
+	 * */
+	int[] lines() {
+		return lines == null ? new int[0] : Arrays.copyOf(lines, lineCount);
+	}
+}
@@ -0,0 +1,186 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * On-disk cache of compiled Programs.
+ * Entries are container files including the decoded Program, named after
+ * the SHA-256 of the source and the Compiler, Decoder & container versions.
+ * A cache hit therefore only maps the container and skips compilation and
+ * decoding entirely.
+ *
+ * Entries are written atomically, so several JVMs can share one cache.
+ * Once the cache grows past its size bound the least recently used
+ * entries are evicted, guarded by a file lock on the cache directory.
+ *
+ * The directory defaults to ~/.cache/apersasm and can be set through the
+ * apersasm.cache property, the bound in bytes through apersasm.cache.size.
+ *
+ * @author Felix Eckert
+ * */
+public final class CompileCache {
+	private static final String EXTENSION = ".aprs";
+	private static final long   DEFAULT_SIZE = 64L * 1024 * 1024;
+
+	private final Path directory;
+	private final long maxSize;
+
+	/**
+	 * @param directory Where entries are stored, created if it does not exist
+	 * @param maxSize   Size bound in bytes
+	 * */
+	public CompileCache(Path directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize   = maxSize;
+	}
+
+	/**
+	 * @return The cache configured through the system properties.
+	 * */
+	public static CompileCache getDefault() {
+		String directory = System.getProperty("apersasm.cache",
+				Path.of(System.getProperty("user.home"), ".cache", "apersasm").toString());
+		return new CompileCache(Path.of(directory), Long.getLong("apersasm.cache.size", DEFAULT_SIZE));
+	}
+
+	/**
+	 * Compiles a source file, or loads it from the cache if it was compiled before.
+	 * @return The Program or null if compilation failed.
+	 * */
+	public Program assemble(Path sourceFile) throws IOException {
+		return assemble(sourceFile, false);
+	}
+	
+	/**
+	 * @param optimize Whether to run the {@link Optimizer}, optimized Programs are cached separately
+	 * @return The Program or null if compilation failed.
+	 * */
+	public Program assemble(Path sourceFile, boolean optimize) throws IOException {
+		return assemble(sourceFile, optimize, System.err);
+	}
+
+	/**
+	 * @param errors Where to report compilation errors
+	 * @return The Program or null if compilation failed.
+	 * */
+	Program assemble(Path sourceFile, boolean optimize, PrintStream errors) throws IOException {
+		byte[] source = Files.readAllBytes(sourceFile);
+		Path   entry  = directory.resolve(key(source, optimize) + EXTENSION);
+
+		Program program = load(entry);
+		Metrics.cacheLookup(program != null);
+		if (program != null) return program;
+
+		program = Compiler.assemble(new String(source), errors);
+		if (program == null) return null;
+		if (optimize) program = Optimizer.optimize(program);
+
+		try {
+			Files.createDirectories(directory);
+			ProgramFile.save(entry, program, true);
+			evict();
+		} catch (IOException e) { // The cache is best effort
+			errors.printf("CACHE WARNING: COULD NOT STORE %s (%s)\n", entry, e);
+		}
+		return program;
+	}
+
+	/**
+	 * Loads an entry and marks it as recently used.
+	 * @return The Program, or null if there is no usable entry.
+	 * */
+	private Program load(Path entry) {
+		try {
+			if (!Files.isRegularFile(entry)) return null;
+
+			Program program = ProgramFile.load(entry);
+			if (program == null) { // Damaged, gets replaced
+				Files.deleteIfExists(entry);
+				return null;
+			}
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			return program;
+		} catch (IOException e) { // Evicted by another JVM in the meantime
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache fits its size bound.
+	 * */
+	private void evict() throws IOException {
+		try (FileChannel lockFile = FileChannel.open(directory.resolve(".lock"),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			lockFile.lock(); // Released once the channel is closed
+
+			List<Path>     entries = new ArrayList<>();
+			List<FileTime> times   = new ArrayList<>();
+			long size = 0;
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+				for (Path entry : stream) {
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+					} catch (IOException e) { // Deleted in the meantime
+						continue;
+					}
+					entries.add(entry);
+					times.add(attributes.lastModifiedTime());
+					size += attributes.size();
+				}
+			}
+			if (size <= maxSize) return;
+
+			Integer[] order = new Integer[entries.size()];
+			for (int i = 0; i < order.length; i++) order[i] = i;
+			Arrays.sort(order, Comparator.comparing(times::get));
+
+			for (int i = 0; i < order.length && size > maxSize; i++) {
+				Path entry = entries.get(order[i]);
+				long entrySize;
+				try {
+					entrySize = Files.size(entry);
+					Files.delete(entry);
+				} catch (IOException e) { // Deleted or still mapped elsewhere
+					continue;
+				}
+				size -= entrySize;
+			}
+		}
+	}
+
+	/**
+	 * @return The hex encoded SHA-256 of the source, every format version and the optimizer version.
+	 * */
+	private static String key(byte[] source, boolean optimize) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) { // Required on every Java platform
+			throw new IllegalStateException(e);
+		}
+		digest.update(new byte[] {
+				(byte) Compiler.VERSION, (byte) DecodedProgram.VERSION, (byte) ProgramFile.VERSION,
+				(byte) (optimize ? Optimizer.VERSION : 0)
+		});
+		digest.update(source);
+
+		StringBuilder key = new StringBuilder(64);
+		for (byte b : digest.digest()) key.append(String.format("%02x", b));
+		return key.toString();
+	}
+}
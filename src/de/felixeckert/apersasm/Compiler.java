@@ -4,261 +4,310 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 public class Compiler {
+	/**
+	 * Version of the generated Bytecode, has to change whenever the same
+	 * source would compile differently
+	 * */
+	public static final int VERSION = 1;
+	/**
+	 * Sources larger than this are compiled by {@link #compileStreaming(String, String)}
+	 * */
+	static final long STREAMING_THRESHOLD = 64L * 1024 * 1024;
+	
 	public static byte[] compile(String input) {
-		HashMap<String, Integer> LABELS         = new HashMap<>();
-		HashMap<Integer, String> MISSING_LABELS = new HashMap<>();
-		LinkedList<String> words = new LinkedList<>();
-		
-		String[] lines = input.replace(",", "").replaceAll("\t", " ").split("\r\n");
-		
-		// Remove Comments
-        for (int i = 0; i < lines.length; i++) {
-            String[] lsplit = lines[i].split(" ");
-
-            for (int j = 0; j < lsplit.length; j++) {
-                String word = lsplit[j].replaceAll(" ", "");
-
-                if (word.startsWith(";")) {
-                    break;
-                } else if (!word.matches("")) {
-                    words.add(word);
-                }
-            }
-        }     
+		return compile(input, false);
+	}
+	
+	/**
+	 * @param optimize Whether to run the {@link Optimizer}
+	 * */
+	public static byte[] compile(String input, boolean optimize) {
+		Program program = assemble(input, optimize);
+		return program == null ? null : program.getBytecode();
+	}
+	
+	/**
+	 * Compiles a source and optionally optimizes it.
+	 * @return The Program or null if compilation failed.
+	 * @see Optimizer
+	 * */
+	public static Program assemble(String input, boolean optimize) {
+		Program program = assemble(input);
+		return program != null && optimize ? Optimizer.optimize(program) : program;
+	}
+	
+	/**
+	 * Compiles a source, keeping its label table.
+	 * @return The Program or null if compilation failed.
+	 * */
+	public static Program assemble(String input) {
+		return assemble(input, System.err);
+	}
+	
+	/**
+	 * @param errors Where to report compilation errors
+	 * @return The Program or null if compilation failed.
+	 * */
+	static Program assemble(String input, PrintStream errors) {
+		long start = System.nanoTime();
+		SymbolTable LABELS = new SymbolTable();
+		CodeBuffer  bytecode = new CodeBuffer(input.length() / 2);
+		boolean translated = translate(new Lexer(input), LABELS, bytecode, errors);
+		Metrics.compiled(System.nanoTime() - start);
+		if (!translated) return null;
         
-        LinkedList<Byte> bytecode = new LinkedList<>();
-        BigInteger bigInt;
-        byte[] bytearray;
+        // Collect defined Labels
+        int      labelCount     = 0;
+        String[] labelNames     = new String[LABELS.size()];
+        int[]    labelAddresses = new int[LABELS.size()];
+        for (int id = 0; id < LABELS.size(); id++) {
+        	if (!LABELS.isDefined(id)) continue;
+        	labelNames[labelCount]       = LABELS.name(id);
+        	labelAddresses[labelCount++] = LABELS.value(id);
+        }
         
-        // Translate
-        for (int i = 0; i < words.size(); i++) {
-        	String word = words.get(i);
+		return new Program(bytecode.toByteArray(),
+				Arrays.copyOf(labelNames, labelCount), Arrays.copyOf(labelAddresses, labelCount),
+				bytecode.lines(), null);
+	}
+	
+	/**
+	 * Internal Helper Method to translate a source into Bytecode.
+	 * @return false if compilation failed.
+	 * */
+	private static boolean translate(Lexer lexer, SymbolTable LABELS, CodeBuffer bytecode, PrintStream errors) {
+		if (!translate(lexer, LABELS, bytecode, null, errors)) return false;
+		
+        // Replace Missing Labels, following the chain of references of every Label
+        for (int label = 0; label < LABELS.size(); label++) {
+        	for (int codepoint = LABELS.chain(label); codepoint != -1;) {
+        		int next = bytecode.getInt(codepoint);
+        		if (LABELS.isDefined(label)) {
+        			bytecode.setInt(codepoint, LABELS.value(label));
+        		} else {
+        			errors.println("COMPILATION ERROR: LABEL NOT DEFINED!");
+        			errors.printf("$%s : %s\n", codepoint, LABELS.name(label));
+        			bytecode.setInt(codepoint, 0);
+        		}
+        		codepoint = next;
+        	}
+        }
+        return true;
+	}
+	
+	/**
+	 * Translates a source into Bytecode without resolving forward references.
+	 * @param assembler Takes over the labels of an incremental assembly and may stop the translation
+	 *                  at the start of any line, null to resolve labels through LABELS
+	 * @return false if compilation failed.
+	 * */
+	static boolean translate(Lexer lexer, SymbolTable LABELS, CodeBuffer bytecode, IncrementalAssembler assembler,
+			PrintStream errors) {
+        while (lexer.advance()) {
+        	if (assembler != null && lexer.startsLine() && !assembler.statement(lexer.line(0), bytecode.size())) break;
         	
         	// Register Labels
-        	if (word.matches("LABEL")) {
-        		LABELS.put(words.get(i+1), bytecode.size()-1);
-        		i++; continue;
+        	if (lexer.is(0, "LABEL")) {
+        		if (!lexer.has(1)) return missingParameter(lexer, errors);
+        		int label = LABELS.intern(lexer.buffer(), lexer.start(1), lexer.length(1));
+        		if (assembler != null) {
+        			assembler.define(label, lexer.line(0), bytecode.size());
+        		} else {
+        			LABELS.define(label, bytecode.size());
+        		}
+        		lexer.skip(1); continue;
         	}
         	
         	// Insert Labels
-        	if (word.toCharArray()[0] == word.toUpperCase().toCharArray()[0]) {
-        		if (!LABELS.containsKey(word)) {	
-    				MISSING_LABELS.put(bytecode.size(), word);
-        			
-        			for (int j = 0; j < 4; j++) bytecode.add((byte) 0x00);
+        	char first = lexer.charAt(0, 0);
+        	if (first == Character.toUpperCase(first)) {
+        		int label = LABELS.intern(lexer.buffer(), lexer.start(0), lexer.length(0));
+        		if (assembler != null) { // Patched by the assembler once the whole Program is known
+        			assembler.reference(label, bytecode.size());
+        			bytecode.addInt(0);
+        			continue;
+        		}
+        		if (!LABELS.isDefined(label)) { // Patched once every Label is known
+        			bytecode.addInt(LABELS.chain(label, bytecode.size()));
         			continue;
         		}
-        		byte[] bytes = ByteBuffer.allocate(4).putInt(LABELS.get(word)).array();
-                for (byte b : bytes) {
-                    bytecode.add(b);
-                }
-                
+        		bytecode.addInt(LABELS.value(label));
         		continue;
         	}
         	
-        	switch (word) {
-        	case "apers":
-        		bytecode.add((byte) 0x00); // OP-CODE
-        		if (words.get(i+1).startsWith("$")) { // Check if a direct address was specified
-        			// Convert hex string to int
-					int val = Integer.parseInt(word.replace("$", "").replace("0x", ""), 16);
-					byte[] bytes = ByteBuffer.allocate(4).putInt(val).array(); // ADD TO BYTECODE
-					for (byte b : bytes) {
-					    bytecode.add(b);
-					}
-        			i++;	
-        		}
-        		break;
-        	case "apres":
-        		bytecode.add((byte) 0x01); // OP-CODE
-        		if (words.get(i+1).startsWith("$")) { // Check if a direct address was specified
-        			// Convert hex string to int
-					int val = Integer.parseInt(word.replace("$", "").replace("0x", ""), 16);
-					byte[] bytes = ByteBuffer.allocate(4).putInt(val).array(); // ADD TO BYTECODE
-					for (byte b : bytes) {
-					    bytecode.add(b);
-					}
-        			i++;	
-        		}
-        		break;
-        	case "asper":
-        		bytecode.add((byte) 0x02); // OP-CODE
-        		if (words.get(i+1).startsWith("$")) { // Check if a direct address was specified
-        			// Convert hex string to int
-					int val = Integer.parseInt(word.replace("$", "").replace("0x", ""), 16);
-					byte[] bytes = ByteBuffer.allocate(4).putInt(val).array(); // ADD TO BYTECODE
-					for (byte b : bytes) {
-					    bytecode.add(b);
-					}
-        			i++;	
-        		}
-        		break;
-        	case "pares":
-        		bytecode.add((byte) 0x03); // OP-CODE
-        		if (words.get(i+1).startsWith("$")) { // Check if a direct address was specified
+        	byte opcode = opcode(lexer);
+        	if (opcode != -1) bytecode.line(lexer.line(0));
+        	switch (opcode) {
+        	case 0x00: // apers
+        	case 0x01: // apres
+        	case 0x02: // asper
+        	case 0x03: // pares
+        		bytecode.add(opcode); // OP-CODE
+        		if (lexer.has(1) && lexer.charAt(1, 0) == '$') { // Check if a direct address was specified
         			// Convert hex string to int
-					int val = Integer.parseInt(word.replace("$", "").replace("0x", ""), 16);
-					byte[] bytes = ByteBuffer.allocate(4).putInt(val).array(); // ADD TO BYTECODE
-					for (byte b : bytes) {
-					    bytecode.add(b);
-					}
-        			i++;	
+        			int from = lexer.length(1) > 2 && lexer.charAt(1, 1) == '0' && lexer.charAt(1, 2) == 'x' ? 3 : 1;
+        			bytecode.addInt(lexer.parseHex(1, from));
+        			lexer.skip(1);
         		}
         		break;
-        	case "parse":
-        		// Add Appropriate OP-CODE
-        		if (words.get(i+2).startsWith("#")) {
-        			bytecode.add((byte) 0x04);
-        		} else if (words.get(i+2).startsWith("$")) {
-        			bytecode.add((byte) 0x05);
-        		} else if (words.get(i+2).startsWith("*")) {
-        			bytecode.add((byte) 0x06);
-        		} else {
-        			System.err.printf("COMPILATION ERROR: INVALID PARAMTER FOR INSTRUCTION %s (%s)\n",
-        					word, words.get(i+2));
-        			return null;
-        		}
-        		
-        		// Translate Params
-        		// 1st Register
-        		bytecode.add(
-        				words.get(i+1).matches("a") ? (byte) 0x00 : 
-        					words.get(i+1).matches("b") ? (byte) 0x01 : (byte) 0x02);
+        	case 0x04: // parse
+        		if (!lexer.has(2)) return missingParameter(lexer, errors);
         		
-        		// 2nd VALUE/ADDRESS/POINTER
-                bytecode.add((byte) (Integer.parseInt(words.get(i+2).substring(1),16) & 0xff));;
-                i += 2;
-        		break;
-        	case "pears":
         		// Add Appropriate OP-CODE
-        		if (words.get(i+2).startsWith("$")) {
-        			bytecode.add((byte) 0x07);
-        		} else if (words.get(i+2).startsWith("*")) {
-        			bytecode.add((byte) 0x08);
-        		} else {
-        			System.err.printf("COMPILATION ERROR: INVALID PARAMTER FOR INSTRUCTION %s (%s)\n",
-        					word, words.get(i+2));
-        			return null;
+        		switch (lexer.charAt(2, 0)) {
+        		case '#': bytecode.add((byte) 0x04); break;
+        		case '$': bytecode.add((byte) 0x05); break;
+        		case '*': bytecode.add((byte) 0x06); break;
+        		default:  return invalidParameter(lexer, errors);
         		}
         		
-        		// Translate Params
-        		// 1st Register
-        		bytecode.add(
-        				words.get(i+1).matches("a") ? (byte) 0x00 : 
-        					words.get(i+1).matches("b") ? (byte) 0x01 : (byte) 0x02);
-        		
-        		// 2nd VALUE/ADDRESS/POINTER
-                bytecode.add((byte) (Integer.parseInt(words.get(i+2).substring(1),16) & 0xff));
-                i += 2;
+        		addRegisterAndOperand(lexer, bytecode);
         		break;
-        	case "prase":
-        		// Add Appropriate OP-CODE
-        		if (words.get(i+2).startsWith("$")) {
-        			bytecode.add((byte) 0x09);
-        		} else if (words.get(i+2).startsWith("*")) {
-        			bytecode.add((byte) 0x0a);
-        		} else {
-        			System.err.printf("COMPILATION ERROR: INVALID PARAMTER FOR INSTRUCTION %s (%s)\n",
-        					word, words.get(i+2));
-        			return null;
-        		}
-        		
-        		// Translate Params
-        		// 1st Register
-        		bytecode.add(
-        				words.get(i+1).matches("a") ? (byte) 0x00 : 
-        					words.get(i+1).matches("b") ? (byte) 0x01 : (byte) 0x02);
+        	case 0x07: // pears
+        	case 0x09: // prase
+        	case 0x0b: // presa
+        		if (!lexer.has(2)) return missingParameter(lexer, errors);
         		
-        		// 2nd VALUE/ADDRESS/POINTER
-                bytecode.add((byte) (Integer.parseInt(words.get(i+2).substring(1),16) & 0xff));
-                i += 2;
-        		break;
-        	case "presa":
-        		// Add Appropriate OP-CODE
-        		if (words.get(i+2).startsWith("$")) {
-        			bytecode.add((byte) 0x0b);
-        		} else if (words.get(i+2).startsWith("*")) {
-        			bytecode.add((byte) 0x0c);
-        		} else {
-        			System.err.printf("COMPILATION ERROR: INVALID PARAMTER FOR INSTRUCTION %s (%s)\n",
-        					word, words.get(i+2));
-        			return null;
+        		// Add Appropriate OP-CODE, the POINTER variant directly follows the ADDRESS one
+        		switch (lexer.charAt(2, 0)) {
+        		case '$': bytecode.add(opcode); break;
+        		case '*': bytecode.add((byte) (opcode+1)); break;
+        		default:  return invalidParameter(lexer, errors);
         		}
         		
-        		// Translate Params
-        		// 1st Register
-        		bytecode.add(
-        				words.get(i+1).matches("a") ? (byte) 0x00 : 
-        					words.get(i+1).matches("b") ? (byte) 0x01 : (byte) 0x02);
-        		
-        		// 2nd VALUE/ADDRESS/POINTER
-                bytecode.add((byte) (Integer.parseInt(words.get(i+2).substring(1),16) & 0xff));
-                i += 2;
+        		addRegisterAndOperand(lexer, bytecode);
         		break;
-        	case "rapes":
-        		bytecode.add((byte) 0x0d);
-        		bytecode.add(
-        				words.get(i+1).matches("a") ? (byte) 0x00 : 
-        					words.get(i+1).matches("b") ? (byte) 0x01 : (byte) 0x02);
-        		i++;
+        	case 0x0d: // rapes
+        	case 0x0e: // reaps
+        		if (!lexer.has(1)) return missingParameter(lexer, errors);
+        		bytecode.add(opcode);
+        		bytecode.add(register(lexer, 1));
+        		lexer.skip(1);
         		break;
-        	case "reaps":
-        		bytecode.add((byte) 0x0e);
-        		bytecode.add(
-        				words.get(i+1).matches("a") ? (byte) 0x00 : 
-        					words.get(i+1).matches("b") ? (byte) 0x01 : (byte) 0x02);
-        		i++;
+        	case 0x0f: // spare
+        		if (!lexer.has(2)) return missingParameter(lexer, errors);
+        		bytecode.add(opcode);
+        		bytecode.add(register(lexer, 1));
+        		bytecode.add(register(lexer, 2));
+        		lexer.skip(2);
         		break;
-        	case "spare":
-        		bytecode.add((byte) 0x0f);
-        		bytecode.add(
-        				words.get(i+1).matches("a") ? (byte) 0x00 : 
-        					words.get(i+1).matches("b") ? (byte) 0x01 : (byte) 0x02);
-
-        		bytecode.add(
-        				words.get(i+2).matches("a") ? (byte) 0x00 : 
-        					words.get(i+2).matches("b") ? (byte) 0x01 : (byte) 0x02);
-        		
-        		i += 2;
-        		break;
-        	case "spear":
-        		bytecode.add((byte) 0x10);
+        	case 0x10: // spear
+        		bytecode.add(opcode);
         		break;
         	}
         }
-        
-        // Replace Missing Labels
-        LinkedList<Byte>[] tmp = new LinkedList[] {bytecode};
-        if (!MISSING_LABELS.isEmpty()) {
-        	MISSING_LABELS.forEach((codepoint, label) -> {
-                if (!LABELS.containsKey(label)) {
-                    System.err.println("COMPILATION ERROR: LABEL NOT DEFINED!");
-                    System.err.printf("$%s : %s\n", codepoint, label);
-                    return;
-                }
-                byte[] address = ByteBuffer.allocate(4).putInt(LABELS.get(label)).array();
-                for (int i = 0; i < 4; i++)
-                    tmp[0].set(codepoint+i, address[i]);
-            });
-        }
-        
-		byte[] returnVal = new byte[bytecode.size()];
-		for (int i = 0; i < returnVal.length; i++) returnVal[i] = bytecode.pop();
-        
-		return returnVal;
+        return true;
+	}
+	
+	/**
+	 * Internal Helper Method to get the base OP-CODE of the current instruction.
+	 * @return The OP-CODE or -1 if the word is no instruction.
+	 * */
+	private static byte opcode(Lexer lexer) {
+		if (lexer.length(0) != 5) return -1;
+		
+		switch (lexer.charAt(0, 0)) {
+		case 'a':
+			return lexer.is(0, "apers") ? (byte) 0x00 :
+				lexer.is(0, "apres") ? (byte) 0x01 :
+					lexer.is(0, "asper") ? (byte) 0x02 : -1;
+		case 'p':
+			return lexer.is(0, "pares") ? (byte) 0x03 :
+				lexer.is(0, "parse") ? (byte) 0x04 :
+					lexer.is(0, "pears") ? (byte) 0x07 :
+						lexer.is(0, "prase") ? (byte) 0x09 :
+							lexer.is(0, "presa") ? (byte) 0x0b : -1;
+		case 'r':
+			return lexer.is(0, "rapes") ? (byte) 0x0d :
+				lexer.is(0, "reaps") ? (byte) 0x0e : -1;
+		case 's':
+			return lexer.is(0, "spare") ? (byte) 0x0f :
+				lexer.is(0, "spear") ? (byte) 0x10 : -1;
+		default:
+			return -1;
+		}
+	}
+	
+	/**
+	 * Internal Helper Method to translate a Register name.
+	 * @return Register ID (a = 0; b = 1; default = 2;)
+	 * */
+	private static byte register(Lexer lexer, int k) {
+		return lexer.is(k, "a") ? (byte) 0x00 :
+			lexer.is(k, "b") ? (byte) 0x01 : (byte) 0x02;
+	}
+	
+	/**
+	 * Emits the 1st Register and 2nd VALUE/ADDRESS/POINTER of an instruction.
+	 * */
+	private static void addRegisterAndOperand(Lexer lexer, CodeBuffer bytecode) {
+		bytecode.add(register(lexer, 1));
+		bytecode.add((byte) (lexer.parseHex(2, 1) & 0xff));
+		lexer.skip(2);
+	}
+	
+	private static boolean invalidParameter(Lexer lexer, PrintStream errors) {
+		errors.printf("COMPILATION ERROR: INVALID PARAMTER FOR INSTRUCTION %s (%s)\n",
+				lexer.text(0), lexer.text(2));
+		return false;
+	}
+	
+	private static boolean missingParameter(Lexer lexer, PrintStream errors) {
+		errors.printf("COMPILATION ERROR: MISSING PARAMTER FOR INSTRUCTION %s\n", lexer.text(0));
+		return false;
+	}
+	
+	/**
+	 * Compiles a source file into a container file.
+	 * @see ProgramFile
+	 * */
+	public static boolean buildAndSave(String input, String output) {
+		return buildAndSave(input, output, false);
+	}
+	
+	/**
+	 * @param optimize Whether to run the {@link Optimizer}
+	 * */
+	public static boolean buildAndSave(String input, String output, boolean optimize) {
+		try {
+			Program program = assemble(new String(Files.readAllBytes(new File(input).toPath())), optimize);
+			if (program == null || program.length() == 0) return false;
+			
+			ProgramFile.save(new File(output).toPath(), program, true);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
 	}
 	
 	public static boolean compileAndSave(String input, String output) {
+		return compileAndSave(input, output, false);
+	}
+	
+	/**
+	 * @param optimize Whether to run the {@link Optimizer}
+	 * */
+	public static boolean compileAndSave(String input, String output, boolean optimize) {
 		try {
+			// The Optimizer needs the whole Program
+			if (!optimize && Files.size(new File(input).toPath()) > STREAMING_THRESHOLD) return compileStreaming(input, output);
+			
 			byte[] bytecode = compile(
-					new String(Files.readAllBytes(new File(input).toPath()))
+					new String(Files.readAllBytes(new File(input).toPath())), optimize
 					);
 			
 			if (bytecode == null || bytecode.length == 0) return false;
@@ -272,4 +321,41 @@ public class Compiler {
 			return false;
 		}
 	}
+	
+	/**
+	 * Compiles a source file into a Bytecode file without loading either into memory.
+	 * The source is lexed through a window of complete lines and the Bytecode is
+	 * streamed into the output, references to Labels that are not defined yet are
+	 * patched in the file at the end. Memory use only grows with the amount of Labels.
+	 * The output is replaced atomically once compilation succeeded.
+	 * 
+	 * @return false if compilation failed.
+	 * */
+	public static boolean compileStreaming(String input, String output) {
+		Path path = new File(output).toPath().toAbsolutePath();
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(path.getParent(), ".apers", ".tmp");
+			try (Reader      source = Channels.newReader(FileChannel.open(new File(input).toPath()), Charset.defaultCharset());
+				 FileChannel target = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long       start    = System.nanoTime();
+				CodeBuffer bytecode = new CodeBuffer(target);
+				if (!translate(new Lexer(source), new SymbolTable(), bytecode, System.err)) return false;
+				bytecode.flush();
+				Metrics.compiled(System.nanoTime() - start);
+				if (bytecode.size() == 0) return false;
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException | UncheckedIOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			try {
+				if (temp != null) Files.deleteIfExists(temp);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 }
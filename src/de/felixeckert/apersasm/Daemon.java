@@ -0,0 +1,346 @@
+package de.felixeckert.apersasm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived server compiling and running Programs for clients on the same machine,
+ * so short jobs neither pay for JVM startup nor run on a cold JIT.
+ *
+ * Clients connect through a Unix domain socket and send one request per connection:
+ * <pre>
+ * Request    u8 command, u8 flags, u8 engine, u8 input mode, UTF input path, UTF output path
+ * Input      Running Programs read the rest of the stream as their input
+ * Response   Frames of u8 type, OUT & ERR carry u32 length and bytes, EXIT carries an i32 exit code
+ * </pre>
+ * Connections are served by one thread per processor, like the {@link Scheduler} workers,
+ * further connections wait for a free thread. Paths are resolved by the client.
+ * Programs run in time slices, between them an empty OUT frame checks whether the
+ * client is still connected, a Program whose client went away is stopped.
+ *
+ * @author Felix Eckert
+ * */
+public final class Daemon {
+	// Commands
+	static final byte COMPILE         = 1;
+	static final byte BUILD           = 2;
+	static final byte RUN             = 3;
+	static final byte COMPILE_AND_RUN = 4;
+
+	// Flags
+	static final int OPTIMIZE = 1;
+	static final int NO_CACHE = 2;
+	static final int PROFILE  = 4;
+	static final int TRACE    = 8;
+
+	// Frames
+	private static final byte OUT  = 1;
+	private static final byte ERR  = 2;
+	private static final byte EXIT = 3;
+
+	/**
+	 * Time in NS between checks whether the client of a running Program is still connected
+	 * */
+	private static final long CHECK_INTERVAL = 100_000_000;
+
+	private Daemon() {}
+
+	/**
+	 * Serves requests until the JVM is stopped. A stale socket file is replaced,
+	 * the socket file is deleted again on shutdown.
+	 *
+	 * @param socket Path of the socket file
+	 * */
+	public static void serve(Path socket) throws IOException {
+		if (Files.exists(socket)) {
+			try {
+				SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+				System.err.printf("DAEMON ERROR: ALREADY RUNNING ON %s\n", socket);
+				return;
+			} catch (IOException e) { // Left behind by a daemon that died
+				Files.delete(socket);
+			}
+		}
+
+		AtomicInteger   threads  = new AtomicInteger();
+		int             workers  = java.lang.Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(workers, task -> {
+			Thread thread = new Thread(task, "ApersAssemblyDaemon-" + threads.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(socket));
+			java.lang.Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					Files.deleteIfExists(socket);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}));
+			System.out.printf("Serving on %s\n", socket);
+
+			Metrics.register();
+			long interval = Long.getLong("apersasm.metrics.interval", 0);
+			if (interval > 0) Metrics.export(System.err, interval, TimeUnit.SECONDS);
+
+			for (;;) {
+				SocketChannel client = server.accept();
+				executor.execute(() -> handle(client));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Internal Helper Method to serve a single request.
+	 * */
+	private static void handle(SocketChannel client) {
+		try (client) {
+			DataInputStream request = new DataInputStream(Channels.newInputStream(client));
+			byte   command   = request.readByte();
+			int    flags     = request.readUnsignedByte();
+			int    engine    = request.readUnsignedByte();
+			int    inputMode = request.readUnsignedByte();
+			String input     = request.readUTF();
+			String output    = request.readUTF();
+
+			PrintStream out = new PrintStream(Channels.newOutputStream(new FrameChannel(client, OUT)), true);
+			PrintStream err = new PrintStream(Channels.newOutputStream(new FrameChannel(client, ERR)), true);
+			int code;
+			try {
+				code = execute(client, command, flags, engine, inputMode, input, output, out, err);
+			} catch (IOException | RuntimeException e) {
+				err.printf("DAEMON ERROR: %s\n", e);
+				code = -1;
+			}
+
+			ByteBuffer exit = ByteBuffer.allocate(5).put(EXIT).putInt(code).flip();
+			while (exit.hasRemaining()) client.write(exit);
+		} catch (IOException | RuntimeException e) { // The client went away
+			System.err.printf("DAEMON WARNING: REQUEST FAILED (%s)\n", e);
+		}
+	}
+
+	/**
+	 * Internal Helper Method to execute a request the way Main would.
+	 * @return The exit code.
+	 * */
+	private static int execute(SocketChannel client, byte command, int flags, int engine, int inputMode,
+			String input, String output, PrintStream out, PrintStream err) throws IOException {
+		if (engine >= Runtime.Engine.values().length) {
+			err.printf("DAEMON ERROR: UNKNOWN ENGINE %d\n", engine);
+			return -1;
+		}
+		if (inputMode >= ChannelInput.Mode.values().length) {
+			err.printf("DAEMON ERROR: UNKNOWN INPUT MODE %d\n", inputMode);
+			return -1;
+		}
+		boolean optimize = (flags & OPTIMIZE) != 0;
+		Program program;
+
+		switch (command) {
+		case COMPILE:
+		case BUILD:
+			program = compile(Path.of(input), optimize, false, err);
+			if (program == null || program.length() == 0) {
+				err.println("Compilation Failed!");
+				return -1;
+			}
+			if (command == BUILD) {
+				ProgramFile.save(Path.of(output), program, true);
+			} else {
+				ProgramFile.write(Path.of(output), program.getBytecode());
+			}
+			return 0;
+		case RUN:
+			program = ProgramFile.load(Path.of(input));
+			if (program == null) return 0;
+			break;
+		case COMPILE_AND_RUN:
+			program = compile(Path.of(input), optimize, (flags & NO_CACHE) == 0, err);
+			if (program == null) return -1;
+			break;
+		default:
+			err.printf("DAEMON ERROR: UNKNOWN COMMAND %d\n", command);
+			return -1;
+		}
+
+		Input source = new ChannelInput(client, ChannelInput.Mode.values()[inputMode]);
+		run(client, program, Runtime.Engine.values()[engine], source,
+				new ChannelOutput(new FrameChannel(client, OUT)), out, err, flags);
+		return 0;
+	}
+
+	/**
+	 * Internal Helper Method to compile a source file, reporting errors to the client.
+	 * */
+	private static Program compile(Path source, boolean optimize, boolean cache, PrintStream err) throws IOException {
+		if (cache) return CompileCache.getDefault().assemble(source, optimize, err);
+
+		Program program = Compiler.assemble(new String(Files.readAllBytes(source)), err);
+		return program != null && optimize ? Optimizer.optimize(program) : program;
+	}
+
+	/**
+	 * Internal Helper Method to execute a Program on the connection thread.
+	 * */
+	private static void run(SocketChannel client, Program program, Runtime.Engine engine, Input input, Output output,
+			PrintStream out, PrintStream err, int flags) {
+		if (!Runtime.verify(program, err)) return;
+
+		Profiler profiler = (flags & PROFILE) != 0 ? new Profiler(program) : null;
+		Runtime  runtime  = new Runtime(program, engine, input, output, profiler);
+		if ((flags & TRACE) != 0) runtime.recorder = new FlightRecorder();
+
+		long[] check = {System.nanoTime() + CHECK_INTERVAL};
+		boolean finished = runtime.runAndReport(program, () -> {
+			if (System.nanoTime() - check[0] < 0) return false;
+			check[0] = System.nanoTime() + CHECK_INTERVAL;
+			return !isConnected(client);
+		}, out, err);
+		if (!finished) System.err.println("DAEMON WARNING: CLIENT WENT AWAY, PROGRAM STOPPED");
+	}
+
+	/**
+	 * Internal Helper Method to check whether a client is still connected, by sending it an empty frame.
+	 * */
+	private static boolean isConnected(SocketChannel client) {
+		ByteBuffer frame = ByteBuffer.allocate(5).put(OUT).putInt(0).flip();
+		try {
+			synchronized (client) {
+				while (frame.hasRemaining()) client.write(frame);
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Sends a request to a running daemon and relays its output, forwarding the standard
+	 * input to Programs it runs.
+	 *
+	 * @param socket  Path of the socket file
+	 * @param command One of the commands
+	 * @param input   Source or binary file
+	 * @param output  Output file of compile requests, may be null
+	 * @return The exit code.
+	 * */
+	static int forward(Path socket, byte command, String input, String output,
+			Runtime.Engine engine, ChannelInput.Mode inputMode, int flags) {
+		try (SocketChannel daemon = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+			DataOutputStream request = new DataOutputStream(Channels.newOutputStream(daemon));
+			request.writeByte(command);
+			request.writeByte(flags);
+			request.writeByte(engine.ordinal());
+			request.writeByte(inputMode.ordinal());
+			request.writeUTF(new File(input).getAbsolutePath());
+			request.writeUTF(output == null ? "" : new File(output).getAbsolutePath());
+			request.flush();
+
+			if (command == RUN || command == COMPILE_AND_RUN) {
+				Thread stdin = new Thread(() -> pump(daemon), "ApersAssemblyClient");
+				stdin.setDaemon(true);
+				stdin.start();
+			} else {
+				daemon.shutdownOutput();
+			}
+
+			DataInputStream response = new DataInputStream(Channels.newInputStream(daemon));
+			byte[] buffer = new byte[8192];
+			for (;;) {
+				byte type = response.readByte();
+				if (type == EXIT) {
+					System.out.flush();
+					return response.readInt();
+				}
+
+				PrintStream target = type == OUT ? System.out : System.err;
+				for (int length = response.readInt(); length > 0;) {
+					int n = response.read(buffer, 0, Math.min(length, buffer.length));
+					if (n == -1) throw new IOException("Connection closed");
+					target.write(buffer, 0, n);
+					length -= n;
+				}
+				target.flush();
+			}
+		} catch (IOException e) {
+			System.err.printf("DAEMON ERROR: COULD NOT REACH %s (%s)\n", socket, e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Internal Helper Method to forward the standard input until it ends.
+	 * */
+	private static void pump(SocketChannel daemon) {
+		try (InputStream stdin = new FileInputStream(FileDescriptor.in)) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = stdin.read(buffer)) != -1) {
+				ByteBuffer view = ByteBuffer.wrap(buffer, 0, n);
+				while (view.hasRemaining()) daemon.write(view);
+			}
+			daemon.shutdownOutput();
+		} catch (IOException e) { // The Program ended before its input
+		}
+	}
+
+	/**
+	 * Writes everything as frames of one type to a client.
+	 * */
+	private static final class FrameChannel implements WritableByteChannel {
+		private final SocketChannel client;
+		private final byte          type;
+
+		FrameChannel(SocketChannel client, byte type) {
+			this.client = client;
+			this.type   = type;
+		}
+
+		@Override
+		public int write(ByteBuffer source) throws IOException {
+			int length = source.remaining();
+			if (length == 0) return 0;
+
+			ByteBuffer header = ByteBuffer.allocate(5).put(type).putInt(length).flip();
+			synchronized (client) { // Frames of OUT & ERR must not interleave
+				while (header.hasRemaining()) client.write(header);
+				while (source.hasRemaining()) client.write(source);
+			}
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return client.isOpen();
+		}
+
+		@Override
+		public void close() {
+			// The connection is closed once the request is done
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package de.felixeckert.apersasm;
+
+import java.util.Arrays;
+
+/**
+ * Pre-decoded form of a Program.
+ * Every instruction is packed into a single int: The lower 8 bits hold
+ * an OP-CODE specialized per register, the upper 24 bits hold the
+ * resolved operand (a value, a memory address or the instruction
+ * index of a jump target).
+ *
+ * @author Felix Eckert
+ * */
+final class DecodedProgram {
+	/**
+	 * Version of the encoding, has to change whenever OP-CODES or
+	 * Superinstructions change as decoded Programs are saved to disk
+	 * */
+	static final int VERSION = 1;
+
+	// Specialized OP-CODES, register variants follow their A variant (A, B, C)
+	static final int SPEAR           = 0x00;
+	static final int APERS           = 0x01;
+	static final int APRES           = 0x02;
+	static final int ASPER           = 0x03;
+	static final int PARES           = 0x04;
+	static final int PARSE_VALUE_A   = 0x05;
+	static final int PARSE_ADDRESS_A = 0x08;
+	static final int PARSE_POINTER_A = 0x0b;
+	static final int PEARS_ADDRESS_A = 0x0e;
+	static final int PEARS_POINTER_A = 0x11;
+	static final int PRASE_ADDRESS_A = 0x14;
+	static final int PRASE_POINTER_A = 0x17;
+	static final int PRESA_ADDRESS_A = 0x1a;
+	static final int PRESA_POINTER_A = 0x1d;
+	static final int RAPES_A         = 0x20;
+	static final int REAPS_A         = 0x23;
+	/**
+	 * spare, followed by its nine register combinations (AA, AB, AC, BA, ...)
+	 * */
+	static final int SPARE_AA        = 0x26;
+	/**
+	 * End of Program, appended after the last instruction
+	 * */
+	static final int HALT            = 0x2f;
+
+	// Superinstructions, each one executes its own instruction and the following one
+	/**
+	 * parse r, #value followed by pears r, $address,
+	 * the operand holds the value in its low and the address in its high byte
+	 * */
+	static final int PARSE_PEARS_A   = 0x30;
+	/**
+	 * prase r, $address followed by reaps r
+	 * */
+	static final int PRASE_REAPS_A   = 0x33;
+	/**
+	 * presa r, $address followed by reaps r
+	 * */
+	static final int PRESA_REAPS_A   = 0x36;
+	/**
+	 * spare followed by apers, asper or apres for all nine register combinations,
+	 * the operand holds the jump target
+	 * */
+	static final int SPARE_APERS_AA  = 0x39;
+	static final int SPARE_APRES_AA  = 0x42;
+	static final int SPARE_ASPER_AA  = 0x4b;
+
+	/**
+	 * Packed instructions, the last one is always {@link #HALT}
+	 * */
+	final int[] code;
+	/**
+	 * Bytecode offset of every instruction, the last one is the bytecode length
+	 * */
+	final int[] offsets;
+
+	DecodedProgram(int[] code, int[] offsets) {
+		this.code    = code;
+		this.offsets = offsets;
+	}
+
+	static int opcode(int instruction) {
+		return instruction & 0xff;
+	}
+
+	static int operand(int instruction) {
+		return instruction >> 8;
+	}
+
+	static int pack(int opcode, int operand) {
+		return (operand << 8) | opcode;
+	}
+
+	/**
+	 * @return true if the instruction is a Superinstruction.
+	 * */
+	static boolean isFused(int instruction) {
+		return opcode(instruction) >= PARSE_PEARS_A;
+	}
+
+	/**
+	 * Unfuses a Superinstruction, the instruction following it in the Program
+	 * always is the unfused second half.
+	 * @return The first instruction a Superinstruction was fused from.
+	 * */
+	static int first(int instruction) {
+		int opcode  = opcode(instruction);
+		int operand = operand(instruction);
+
+		if (opcode < PARSE_PEARS_A)  return instruction;
+		if (opcode < PRASE_REAPS_A)  return pack(PARSE_VALUE_A + opcode - PARSE_PEARS_A, (byte) operand);
+		if (opcode < PRESA_REAPS_A)  return pack(PRASE_ADDRESS_A + opcode - PRASE_REAPS_A, operand);
+		if (opcode < SPARE_APERS_AA) return pack(PRESA_ADDRESS_A + opcode - PRESA_REAPS_A, operand);
+		return pack(SPARE_AA + (opcode - SPARE_APERS_AA) % 9, 0);
+	}
+
+	/**
+	 * @return Amount of instructions, excluding the final {@link #HALT}.
+	 * */
+	int length() {
+		return code.length - 1;
+	}
+
+	/**
+	 * Maps a bytecode offset to its instruction index.
+	 * @return The index or -1 if no instruction starts at that offset.
+	 * */
+	int indexOf(int offset) {
+		if (offset >= offsets[offsets.length-1]) return length();
+		int index = Arrays.binarySearch(offsets, offset);
+		return index < 0 ? -1 : index;
+	}
+}
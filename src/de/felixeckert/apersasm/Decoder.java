@@ -0,0 +1,166 @@
+package de.felixeckert.apersasm;
+
+import static de.felixeckert.apersasm.DecodedProgram.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Translates raw Bytecode into a {@link DecodedProgram} once at load time,
+ * so the execution loop no longer has to reassemble operands, resolve
+ * jump targets or switch over register IDs.
+ *
+ * @author Felix Eckert
+ * */
+final class Decoder {
+	private Decoder() {}
+
+	/**
+	 * @param bytecode The Program Bytecode, read with absolute gets from index 0
+	 * @return The decoded Program or null if the Bytecode can not be decoded.
+	 * */
+	static DecodedProgram decode(ByteBuffer bytecode) {
+		int   length  = bytecode.limit();
+		int[] code    = new int[length / 2 + 1];
+		int[] offsets = new int[length / 2 + 1];
+		int   count   = 0;
+
+		// 1st Pass: Split into Instructions
+		for (int pc = 0; pc < length; pc += size(bytecode.get(pc))) {
+			int size = size(bytecode.get(pc));
+			if (size == 0) {
+				System.err.printf("DECODING ERROR: UNKNOWN OP-CODE %02x AT $%x\n", bytecode.get(pc), pc);
+				return null;
+			}
+			if (pc + size > length) {
+				System.err.printf("DECODING ERROR: TRUNCATED INSTRUCTION AT $%x\n", pc);
+				return null;
+			}
+			if (count+1 >= code.length) {
+				code    = Arrays.copyOf(code, code.length * 2);
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+			offsets[count++] = pc;
+		}
+		offsets[count] = length;
+		if (count > 0x7fffff) {
+			System.err.println("DECODING ERROR: PROGRAM EXCEEDS 8M INSTRUCTIONS");
+			return null;
+		}
+
+		code    = Arrays.copyOf(code, count+1);
+		offsets = Arrays.copyOf(offsets, count+1);
+		DecodedProgram program = new DecodedProgram(code, offsets);
+
+		// 2nd Pass: Specialize Instructions
+		for (int i = 0; i < count; i++) {
+			int pc = offsets[i];
+			byte instruction = bytecode.get(pc);
+
+			switch (instruction) {
+			case 0x00: // apers
+			case 0x01: // apres
+			case 0x02: // asper
+			case 0x03: // pares
+				int target = bytecode.getInt(pc+1);
+				int index  = target < 0 ? -1 : program.indexOf(target);
+				if (index == -1) {
+					System.err.printf("DECODING ERROR: JUMP TARGET $%x AT $%x IS NOT AN INSTRUCTION\n", target, pc);
+					return null;
+				}
+				code[i] = pack(APERS + instruction, index);
+				break;
+			case 0x04: // parse VALUE
+			case 0x05: // parse ADDRESS
+			case 0x06: // parse POINTER
+			case 0x07: // pears ADDRESS
+			case 0x08: // pears POINTER
+			case 0x09: // prase ADDRESS
+			case 0x0a: // prase POINTER
+			case 0x0b: // presa ADDRESS
+			case 0x0c: // presa POINTER
+				int base = PARSE_VALUE_A + (instruction - 0x04) * 3;
+				code[i] = pack(base + register(bytecode.get(pc+1)), bytecode.get(pc+2));
+				break;
+			case 0x0d: // rapes
+				code[i] = pack(RAPES_A + register(bytecode.get(pc+1)), 0);
+				break;
+			case 0x0e: // reaps
+				code[i] = pack(REAPS_A + register(bytecode.get(pc+1)), 0);
+				break;
+			case 0x0f: // spare
+				code[i] = pack(SPARE_AA + register(bytecode.get(pc+1)) * 3 + register(bytecode.get(pc+2)), 0);
+				break;
+			case 0x10: // spear
+				code[i] = pack(SPEAR, 0);
+				break;
+			}
+		}
+		code[count] = pack(HALT, 0);
+
+		fuse(code, count);
+		return program;
+	}
+
+	/**
+	 * Fuses common instruction pairs into Superinstructions.
+	 * The second instruction of a pair is kept as is, so jumps
+	 * into the middle of a pair still execute correctly.
+	 *
+	 * Only the pairs below are fused, each one has its own handler in the
+	 * engines. Pairs found by the {@link Profiler} are not fused, its report
+	 * only lists the hot ones.
+	 *
+	 * @param code  The specialized Instructions
+	 * @param count Amount of Instructions
+	 * */
+	static void fuse(int[] code, int count) {
+		for (int i = 0; i+1 < count; i++) {
+			int first  = opcode(code[i]);
+			int second = opcode(code[i+1]);
+
+			if (first >= PARSE_VALUE_A && first < PARSE_ADDRESS_A
+					&& second == PEARS_ADDRESS_A + first - PARSE_VALUE_A) {
+				// parse r, #value; pears r, $address
+				int operand = (operand(code[i]) & 0xff) | (operand(code[i+1]) << 8);
+				code[i] = pack(PARSE_PEARS_A + first - PARSE_VALUE_A, operand);
+			} else if (first >= PRASE_ADDRESS_A && first < PRASE_POINTER_A
+					&& second == REAPS_A + first - PRASE_ADDRESS_A) {
+				// prase r, $address; reaps r
+				code[i] = pack(PRASE_REAPS_A + first - PRASE_ADDRESS_A, operand(code[i]));
+			} else if (first >= PRESA_ADDRESS_A && first < PRESA_POINTER_A
+					&& second == REAPS_A + first - PRESA_ADDRESS_A) {
+				// presa r, $address; reaps r
+				code[i] = pack(PRESA_REAPS_A + first - PRESA_ADDRESS_A, operand(code[i]));
+			} else if (first >= SPARE_AA && first < HALT && second >= APERS && second <= ASPER) {
+				// spare r, r; apers/apres/asper
+				int base = second == APERS ? SPARE_APERS_AA : second == APRES ? SPARE_APRES_AA : SPARE_ASPER_AA;
+				code[i] = pack(base + first - SPARE_AA, operand(code[i+1]));
+			}
+		}
+	}
+
+	/**
+	 * @return Size of an instruction in bytes, 0 for unknown OP-CODES.
+	 * */
+	static int size(byte instruction) {
+		switch (instruction) {
+		case 0x00: case 0x01: case 0x02: case 0x03:
+			return 5;
+		case 0x0d: case 0x0e:
+			return 2;
+		case 0x10:
+			return 1;
+		default:
+			return instruction > 0x10 || instruction < 0 ? 0 : 3;
+		}
+	}
+
+	/**
+	 * @return Register index (0 = a; 1 = b; 2 = c;), matching the
+	 * Runtime treating every unknown ID as c.
+	 * */
+	static int register(byte register) {
+		return register == 0x00 ? 0 : register == 0x01 ? 1 : 2;
+	}
+}
@@ -0,0 +1,109 @@
+package de.felixeckert.apersasm;
+
+/**
+ * Final state of a Program executed through {@link Runtime#execute}.
+ *
+ * @author Felix Eckert
+ * */
+public final class ExecutionResult {
+	/**
+	 * How execution ended
+	 * */
+	public enum State {
+		/**
+		 * The Program exited through spear or by running past its end
+		 * */
+		EXITED,
+		/**
+		 * The Program faulted, see {@link ExecutionResult#getError()}
+		 * */
+		FAILED
+	}
+	
+	private final State     state;
+	private final Throwable error;
+	private final byte      registerA;
+	private final byte      registerB;
+	private final byte      registerC;
+	private final byte      compare;
+	private final int       programCounter;
+	private final Memory    memory;
+	private final long      instructionCount;
+	private final long      executionTime;
+	
+	ExecutionResult(State state, Throwable error, byte registerA, byte registerB, byte registerC,
+			byte compare, int programCounter, Memory memory, long instructionCount, long executionTime) {
+		this.state            = state;
+		this.error            = error;
+		this.registerA        = registerA;
+		this.registerB        = registerB;
+		this.registerC        = registerC;
+		this.compare          = compare;
+		this.programCounter   = programCounter;
+		this.memory           = memory;
+		this.instructionCount = instructionCount;
+		this.executionTime    = executionTime;
+	}
+	
+	public State getState() {
+		return state;
+	}
+	
+	/**
+	 * @return The fault of a FAILED Program, null otherwise.
+	 * */
+	public Throwable getError() {
+		return error;
+	}
+	
+	public byte getRegisterA() {
+		return registerA;
+	}
+	
+	public byte getRegisterB() {
+		return registerB;
+	}
+	
+	public byte getRegisterC() {
+		return registerC;
+	}
+	
+	public byte getCompare() {
+		return compare;
+	}
+	
+	/**
+	 * @return The program counter execution stopped at.
+	 * */
+	public int getProgramCounter() {
+		return programCounter;
+	}
+	
+	/**
+	 * @return A copy of the final memory.
+	 * */
+	public byte[] getMemory() {
+		return memory.toByteArray();
+	}
+	
+	/**
+	 * @return The final memory, shared copy-on-write.
+	 * */
+	Memory memory() {
+		return memory;
+	}
+	
+	/**
+	 * @return The amount of instructions executed.
+	 * */
+	public long getInstructionCount() {
+		return instructionCount;
+	}
+	
+	/**
+	 * @return The Time the Program took to execute in nanoseconds.
+	 * */
+	public long getExecutionTime() {
+		return executionTime;
+	}
+}
@@ -0,0 +1,110 @@
+package de.felixeckert.apersasm;
+
+import java.io.PrintStream;
+
+/**
+ * Records the most recent execution trace of a Runtime into a fixed size ring buffer.
+ * Every entry holds the address of an instruction and the registers & COMPARE
+ * before it executed. Recording never allocates, so it is cheap enough to keep
+ * enabled and dump the trace once a Program faulted or hung.
+ *
+ * The Interpreter records every instruction. The Threaded & Tiered Engines only
+ * record where taken jumps land and where compiled Blocks return to, the
+ * instructions in between follow from the Program.
+ *
+ * @author Felix Eckert
+ * */
+public final class FlightRecorder {
+	/**
+	 * Default amount of recorded entries
+	 * */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Entries as address << 32 | a << 24 | b << 16 | c << 8 | COMPARE
+	 * */
+	private final long[] entries;
+	private final int    mask;
+	/**
+	 * Amount of entries recorded so far, including overwritten ones
+	 * */
+	private long count;
+
+	/**
+	 * @param capacity Amount of entries to keep, rounded up to a power of two
+	 * */
+	public FlightRecorder(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("Capacity has to be between 1 and 2^30");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) size <<= 1;
+		this.entries = new long[size];
+		this.mask    = size - 1;
+	}
+
+	public FlightRecorder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	void record(int address, byte a, byte b, byte c, byte compare) {
+		entries[(int) count++ & mask] = (long) address << 32
+				| ((a & 0xff) << 24 | (b & 0xff) << 16 | (c & 0xff) << 8 | compare & 0xff) & 0xffffffffL;
+	}
+
+	/**
+	 * @return The amount of entries recorded so far, including overwritten ones.
+	 * */
+	public long getRecordedCount() {
+		return count;
+	}
+
+	/**
+	 * Prints the recorded entries, oldest first, with their label, source line and
+	 * instruction. Dumping while the Program is running may mix in newer entries.
+	 *
+	 * @param program The recorded Program
+	 * @param out     Where to print to
+	 * */
+	public void dump(Program program, PrintStream out) {
+		byte[] bytecode = program.getBytecode();
+		long   end      = count;
+		long   start    = Math.max(0, end - entries.length);
+
+		out.printf("Last %d of %d recorded instructions:\n", end - start, end);
+		for (long i = start; i < end; i++) {
+			long entry   = entries[(int) i & mask];
+			int  address = (int) (entry >>> 32);
+			int  line    = program.line(address);
+
+			out.printf("  $%04x %-20s %-6s %-16s a=%02x b=%02x c=%02x cmp=%02x\n", address, program.location(address),
+					line == 0 ? "" : "L" + line, disassemble(bytecode, address),
+					entry >>> 24 & 0xff, entry >>> 16 & 0xff, entry >>> 8 & 0xff, entry & 0xff);
+		}
+	}
+
+	/**
+	 * Internal Helper Method to disassemble a single instruction.
+	 * */
+	private static String disassemble(byte[] bytecode, int address) {
+		if (address >= bytecode.length) return "(end)";
+
+		byte opcode = bytecode[address];
+		int  size   = Decoder.size(opcode);
+		if (size == 0 || address + size > bytecode.length) return Profiler.mnemonic(opcode);
+		if (size == 5) return String.format("%s $%x", Profiler.mnemonic(opcode), Runtime.getInt(bytecode, address+1));
+
+		String mnemonic = Profiler.mnemonic(opcode); // Operand kind follows the name, as in "parse #"
+		String text     = mnemonic.substring(0, 5);
+		if (size >= 2) text += " " + register(bytecode[address+1]);
+		if (size == 3) {
+			byte operand = bytecode[address+2];
+			if (opcode == 0x0f)      text += ", " + register(operand);
+			else if (opcode == 0x04) text += String.format(", #%02x", operand);
+			else                     text += String.format(", %c%02x", mnemonic.charAt(6), operand);
+		}
+		return text;
+	}
+
+	private static char register(byte register) {
+		return (char) ('a' + Decoder.register(register));
+	}
+}
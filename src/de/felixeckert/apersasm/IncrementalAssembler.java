@@ -0,0 +1,286 @@
+package de.felixeckert.apersasm;
+
+import java.io.CharArrayReader;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Assembles new versions of one source, only translating the lines that changed.
+ *
+ * The Bytecode, label definitions and label references of the last version are kept.
+ * A line whose first token starts a statement is a cut: everything before it translates
+ * the same as long as that token does not change. After an edit the source is translated
+ * again from the last cut before the first changed line, until a cut behind the last changed line
+ * that already was a cut before. Everything in front of and behind that region is reused,
+ * only references to labels whose address changed are patched again.
+ *
+ * @author Felix Eckert
+ * */
+final class IncrementalAssembler {
+	/**
+	 * Labels of every version, so label IDs stay the same between versions
+	 * */
+	private final SymbolTable symbols = new SymbolTable();
+
+	// Last version
+	private char[]  source     = new char[0];
+	/**
+	 * Start of every line, followed by the end of the source
+	 * */
+	private int[]   lineStarts = { 0, 0 };
+	private int     lineCount  = 1;
+	private byte[]  code       = new byte[0];
+	/**
+	 * Address of the statement starting every line, -1 if the line is no cut
+	 * */
+	private int[]   cuts       = { 0 };
+	/**
+	 * Label definitions as (Label, Line, Address) rows, in source order
+	 * */
+	private int[]   defs       = new int[0];
+	/**
+	 * Label references as (Address, Label) rows, sorted by address
+	 * */
+	private int[]   refs       = new int[0];
+	/**
+	 * Source line of every instruction as (Address, Line) pairs, sorted by address
+	 * */
+	private int[]   lines      = new int[0];
+
+	// Region being translated
+	private int   first;
+	private int   lineDelta;
+	private int   unchanged;
+	private int   stop;
+	private int[] regionCuts = new int[64];
+	private int[] regionDefs = new int[48];
+	private int   regionDefCount;
+	private int[] regionRefs = new int[32];
+	private int   regionRefCount;
+
+	/**
+	 * Assembles the next version of the source.
+	 * @param errors Where to report compilation errors
+	 * @return The Program or null if compilation failed, the last version is kept then.
+	 * */
+	Program update(String text, PrintStream errors) {
+		char[] next   = text.toCharArray();
+		int[]  starts = lineStarts(text);
+		int    count  = starts.length - 1;
+
+		// Find the lines both versions share at the start & end
+		int common = Math.min(lineCount, count);
+		int prefix = 0;
+		while (prefix < common && sameLine(next, starts, prefix, prefix)) prefix++;
+		int suffix = 0;
+		while (suffix < common - prefix && sameLine(next, starts, count-1-suffix, lineCount-1-suffix)) suffix++;
+
+		// Statements may look at the token after them, so start before the line in front of the first change
+		first = Math.max(Math.min(prefix - 1, lineCount - 1), 0);
+		while (cuts[first] == -1) first--;
+		lineDelta = count - lineCount;
+		unchanged = count - suffix;
+		stop      = count;
+		regionDefCount = 0;
+		regionRefCount = 0;
+		Arrays.fill(regionCuts, -1);
+
+		Lexer      lexer  = new Lexer(new CharArrayReader(next, starts[first], next.length - starts[first]), first + 1);
+		CodeBuffer region = new CodeBuffer();
+		if (!Compiler.translate(lexer, symbols, region, this, errors)) return null;
+
+		// Splice the region between the reused parts
+		int from    = cuts[first];
+		int stopped = stop - lineDelta;
+		int to      = stopped < lineCount ? cuts[stopped] : code.length;
+		int shift   = from + region.size() - to;
+
+		byte[] nextCode = new byte[code.length + shift];
+		System.arraycopy(code, 0, nextCode, 0, from);
+		System.arraycopy(region.toByteArray(), 0, nextCode, from, region.size());
+		System.arraycopy(code, to, nextCode, from + region.size(), code.length - to);
+
+		int[] nextCuts = new int[count];
+		System.arraycopy(cuts, 0, nextCuts, 0, first);
+		for (int line = first; line < stop; line++) {
+			int cut = line - first < regionCuts.length ? regionCuts[line - first] : -1;
+			nextCuts[line] = cut == -1 ? -1 : cut + from;
+		}
+		for (int line = stop; line < count; line++) {
+			int cut = cuts[line - lineDelta];
+			nextCuts[line] = cut == -1 ? -1 : cut + shift;
+		}
+		nextCuts[0] = 0;
+
+		int[] regionLines = region.lines();
+		int[] nextDefs  = splice(defs, 3, 1, 2, 1, first, stopped, regionDefs, regionDefCount, from, shift, lineDelta);
+		int[] nextRefs  = splice(refs, 2, 0, 0, -1, from, to, regionRefs, regionRefCount, from, shift, lineDelta);
+		int[] nextLines = splice(lines, 2, 0, 0, 1, from, to, regionLines, regionLines.length / 2, from, shift, lineDelta);
+
+		// Labels resolve to their last definition
+		int[]     values  = new int[symbols.size()];
+		boolean[] defined = new boolean[symbols.size()];
+		for (int d = 0; d < nextDefs.length; d += 3) {
+			values[nextDefs[d]]  = nextDefs[d + 2];
+			defined[nextDefs[d]] = true;
+		}
+
+		// Patch the references whose label moved, like the Compiler a reference behind a definition
+		// resolves to the closest definition in front of it
+		int[]     closest = new int[symbols.size()];
+		boolean[] passed  = new boolean[symbols.size()];
+		for (int r = 0, d = 0; r < nextRefs.length; r += 2) {
+			int address = nextRefs[r];
+			int label   = nextRefs[r + 1];
+			for (; d < nextDefs.length && nextDefs[d + 2] <= address; d += 3) {
+				closest[nextDefs[d]] = nextDefs[d + 2];
+				passed[nextDefs[d]]  = true;
+			}
+			if (!defined[label]) {
+				errors.println("COMPILATION ERROR: LABEL NOT DEFINED!");
+				errors.printf("$%s : %s\n", address, symbols.name(label));
+			}
+
+			int value = passed[label] ? closest[label] : values[label];
+			if (getInt(nextCode, address) != value) {
+				nextCode[address]     = (byte) (value >> 24);
+				nextCode[address + 1] = (byte) (value >> 16);
+				nextCode[address + 2] = (byte) (value >> 8);
+				nextCode[address + 3] = (byte) value;
+			}
+		}
+
+		// Defined labels, in the order they first appeared
+		int      labelCount     = 0;
+		String[] labelNames     = new String[symbols.size()];
+		int[]    labelAddresses = new int[symbols.size()];
+		for (int id = 0; id < symbols.size(); id++) {
+			if (!defined[id]) continue;
+			labelNames[labelCount]       = symbols.name(id);
+			labelAddresses[labelCount++] = values[id];
+		}
+
+		this.source     = next;
+		this.lineStarts = starts;
+		this.lineCount  = count;
+		this.code       = nextCode;
+		this.cuts       = nextCuts;
+		this.defs       = nextDefs;
+		this.refs       = nextRefs;
+		this.lines      = nextLines;
+		return new Program(nextCode.clone(),
+				Arrays.copyOf(labelNames, labelCount), Arrays.copyOf(labelAddresses, labelCount), nextLines, null);
+	}
+
+	/**
+	 * Called by the Compiler at every statement starting a line.
+	 * @param line    Source line, starting at 1
+	 * @param address Address relative to the region
+	 * @return false if the translation can stop, the rest of the last version is reused.
+	 * */
+	boolean statement(int line, int address) {
+		int index = line - 1;
+		if (index >= unchanged && cuts[index - lineDelta] != -1) {
+			stop = index;
+			return false;
+		}
+
+		if (index - first >= regionCuts.length) {
+			int length = regionCuts.length;
+			regionCuts = Arrays.copyOf(regionCuts, Math.max(length * 2, index - first + 1));
+			Arrays.fill(regionCuts, length, regionCuts.length, -1);
+		}
+		regionCuts[index - first] = address;
+		return true;
+	}
+
+	/**
+	 * Called by the Compiler at every label definition.
+	 * */
+	void define(int label, int line, int address) {
+		if (regionDefCount * 3 == regionDefs.length) regionDefs = Arrays.copyOf(regionDefs, regionDefs.length * 2);
+		regionDefs[regionDefCount * 3]     = label;
+		regionDefs[regionDefCount * 3 + 1] = line - 1;
+		regionDefs[regionDefCount * 3 + 2] = address;
+		regionDefCount++;
+	}
+
+	/**
+	 * Called by the Compiler at every label reference.
+	 * */
+	void reference(int label, int address) {
+		if (regionRefCount * 2 == regionRefs.length) regionRefs = Arrays.copyOf(regionRefs, regionRefs.length * 2);
+		regionRefs[regionRefCount * 2]     = address;
+		regionRefs[regionRefCount * 2 + 1] = label;
+		regionRefCount++;
+	}
+
+	/**
+	 * Internal Helper Method to replace the rows of a table that belong to the region.
+	 * Rows are sorted by the column key, rows with a key below from are kept, rows
+	 * from to onward are moved behind the region.
+	 *
+	 * @param width   Amount of columns
+	 * @param key     Column the rows are sorted by, either the line or the address
+	 * @param address Column of the address
+	 * @param line    Column of the line, -1 if there is none
+	 * @param region  Rows of the region, addresses relative to base
+	 * @return The new table, with addresses & lines of the moved rows shifted.
+	 * */
+	private static int[] splice(int[] rows, int width, int key, int address, int line, int from, int to,
+			int[] region, int regionCount, int base, int shift, int lineDelta) {
+		int kept   = lowerBound(rows, width, key, from);
+		int moved  = lowerBound(rows, width, key, to);
+		int[] next = new int[kept + regionCount * width + rows.length - moved];
+		System.arraycopy(rows, 0, next, 0, kept);
+		System.arraycopy(region, 0, next, kept, regionCount * width);
+		System.arraycopy(rows, moved, next, kept + regionCount * width, rows.length - moved);
+
+		for (int r = kept; r < kept + regionCount * width; r += width) next[r + address] += base;
+		for (int r = kept + regionCount * width; r < next.length; r += width) {
+			next[r + address] += shift;
+			if (line != -1) next[r + line] += lineDelta;
+		}
+		return next;
+	}
+
+	/**
+	 * @return The index of the first row whose key is not below value.
+	 * */
+	private static int lowerBound(int[] rows, int width, int key, int value) {
+		int low = 0, high = rows.length / width;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (rows[mid * width + key] < value) low = mid + 1;
+			else high = mid;
+		}
+		return low * width;
+	}
+
+	private static int getInt(byte[] code, int address) {
+		return (code[address] & 0xff) << 24 | (code[address + 1] & 0xff) << 16
+				| (code[address + 2] & 0xff) << 8 | (code[address + 3] & 0xff);
+	}
+
+	/**
+	 * Internal Helper Method to compare a line of the next version to one of the last.
+	 * */
+	private boolean sameLine(char[] next, int[] starts, int line, int lastLine) {
+		return Arrays.equals(next, starts[line], starts[line + 1],
+				source, lineStarts[lastLine], lineStarts[lastLine + 1]);
+	}
+
+	/**
+	 * @return The start of every CRLF terminated line, followed by the end of the source.
+	 * */
+	private static int[] lineStarts(String source) {
+		int[] starts = new int[64];
+		int   count  = 1;
+		for (int end = source.indexOf("\r\n"); end != -1; end = source.indexOf("\r\n", end + 2)) {
+			if (count + 1 == starts.length) starts = Arrays.copyOf(starts, starts.length * 2);
+			starts[count++] = end + 2;
+		}
+		starts[count++] = source.length();
+		return Arrays.copyOf(starts, count);
+	}
+}
@@ -0,0 +1,16 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+
+/**
+ * Input Source supplying the values a Program reads through rapes.
+ *
+ * @author Felix Eckert
+ * */
+public interface Input {
+	/**
+	 * Reads the next value.
+	 * @throws java.util.NoSuchElementException if the input is exhausted.
+	 * */
+	byte read() throws IOException;
+}
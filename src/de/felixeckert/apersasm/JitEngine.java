@@ -0,0 +1,94 @@
+package de.felixeckert.apersasm;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+
+/**
+ * Tiered Execution Engine.
+ * Code starts out on the {@link ThreadedEngine}, which counts how often every
+ * jump target is reached. Once a target gets hot, the basic block starting
+ * there is compiled to a hidden class by the {@link BlockCompiler} and
+ * executed directly from then on.
+ * One instance executes a single Runtime across all of its time slices.
+ *
+ * @author Felix Eckert
+ * */
+final class JitEngine {
+	/**
+	 * Amount of taken jumps to a target before its block gets compiled
+	 * */
+	static final int THRESHOLD = 1000;
+
+	/**
+	 * A compiled basic block.
+	 * */
+	interface Block {
+		/**
+		 * Executes the Block on the Runtimes state.
+		 * @return The index of the next instruction.
+		 * */
+		int run(Runtime runtime);
+	}
+
+	private final DecodedProgram program;
+	/**
+	 * Whether the Program passed the {@link Verifier}
+	 * */
+	private final boolean verified;
+	private final Block[] blocks;
+	private final int[]   counters;
+
+	/**
+	 * @param verified Whether the Program passed the {@link Verifier}
+	 * */
+	JitEngine(DecodedProgram program, boolean verified) {
+		this.program  = program;
+		this.verified = verified;
+		this.blocks   = new Block[program.code.length];
+		this.counters = new int[program.code.length];
+		Arrays.fill(counters, -THRESHOLD);
+	}
+
+	/**
+	 * Executes the Program from the Runtimes current program counter until it exits
+	 * or its time slice ended. Compiled Blocks are kept for the next slice.
+	 * */
+	void execute(Runtime runtime) {
+		int end = program.length();
+		int ip  = program.indexOf(runtime.programCounter);
+		while (ip != end && runtime.instructionCount < runtime.sliceEnd) {
+			Block block = blocks[ip];
+			if (block != null) {
+				ip = block.run(runtime);
+				if (runtime.recorder != null) runtime.recorder.record(program.offsets[ip],
+						runtime.REGS_A, runtime.REGS_B, runtime.REGS_C, runtime.COMPARE);
+				continue;
+			}
+
+			if (counters[ip] >= 0) { // Hot Jump Target
+				block = compile(program, ip, verified);
+				if (block != null) {
+					blocks[ip] = block;
+					continue;
+				}
+				counters[ip] = Integer.MIN_VALUE;
+			}
+
+			runtime.programCounter = program.offsets[ip];
+			ip = ThreadedEngine.execute(runtime, program, counters);
+		}
+		runtime.programCounter = program.offsets[ip];
+	}
+
+	private static Block compile(DecodedProgram program, int start, boolean verified) {
+		try {
+			Class<?> type = MethodHandles.lookup()
+					.defineHiddenClass(BlockCompiler.compile(program, start, verified), true)
+					.lookupClass();
+			return (Block) type.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			System.err.printf("RUNTIME WARNING: COULD NOT COMPILE BLOCK AT $%x (%s)\n", program.offsets[start], e);
+			return null;
+		}
+	}
+}
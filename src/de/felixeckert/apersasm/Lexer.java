@@ -0,0 +1,306 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Single-pass Lexer for Apers Assembly sources.
+ * Tokens are kept as spans into one shared character
+ * buffer, so lexing does not allocate per token.
+ *
+ * The rules match the original String-splitting based
+ * implementation: lines end at CRLF, words are seperated
+ * by spaces or tabs, commas are dropped and a word starting
+ * with ';' comments out the rest of its line.
+ *
+ * Large sources can be lexed from a Reader instead, which only
+ * keeps a window of complete lines in memory. Tokens before the
+ * current one are dropped whenever the window is refilled.
+ *
+ * @author Felix Eckert
+ * */
+final class Lexer {
+	/**
+	 * Characters read per refill when lexing from a Reader
+	 * */
+	private static final int WINDOW = 64 * 1024;
+
+	/**
+	 * Source characters, commas are compacted out in place.
+	 * */
+	private char[] buffer;
+	private int[] starts = new int[1024];
+	private int[] ends   = new int[1024];
+	/**
+	 * Source line of every token, starting at 1
+	 * */
+	private int[] lines  = new int[1024];
+	private int   count  = 0;
+	/**
+	 * Index of the current token
+	 * */
+	private int   cursor = -1;
+	/**
+	 * Source line of the token before the current one, 0 if there is none
+	 * */
+	private int   previous = 0;
+
+	// Tokenizer state, characters before read are tokenized and compacted to before write
+	private int   read   = 0;
+	private int   write  = 0;
+	private int   line   = 1;
+
+	/**
+	 * Source the window is refilled from, null if the whole source is in the buffer
+	 * */
+	private Reader reader;
+	/**
+	 * Amount of characters in the buffer
+	 * */
+	private int    limit;
+	private boolean end;
+
+	/**
+	 * @param input The Source to lex
+	 * */
+	Lexer(String input) {
+		this.buffer = input.toCharArray();
+		this.limit  = buffer.length;
+		this.end    = true;
+		tokenize(limit);
+	}
+
+	/**
+	 * @param input The Source to lex, read as it is needed
+	 * */
+	Lexer(Reader input) {
+		this(input, 1);
+	}
+
+	/**
+	 * @param input The Source to lex, read as it is needed
+	 * @param line  Line the Source starts at, for sources cut out of a larger one
+	 * */
+	Lexer(Reader input, int line) {
+		this.buffer = new char[WINDOW];
+		this.reader = input;
+		this.line   = line;
+	}
+
+	/**
+	 * Tokenizes the characters up to length, which has to be a line end or the end of the source.
+	 * */
+	private void tokenize(int length) {
+		int write  = this.write;
+		int start  = -1;
+		int line   = this.line;
+
+		int read = this.read;
+		for (; read < length; read++) {
+			char c = buffer[read];
+
+			if (c == '\r' && read+1 < length && buffer[read+1] == '\n') { // Line End
+				start = endToken(start, write, line);
+				read++;
+				line++;
+				continue;
+			}
+
+			if (c == ' ' || c == '\t') {
+				start = endToken(start, write, line);
+				continue;
+			}
+
+			if (c == ',') continue;
+
+			if (start == -1) {
+				if (c == ';') { // Skip Comment until Line End
+					while (read+2 < length && !(buffer[read+1] == '\r' && buffer[read+2] == '\n')) read++;
+					if (read+2 >= length) read = length;
+					continue;
+				}
+				start = write;
+			}
+			buffer[write++] = c;
+		}
+		endToken(start, write, line);
+
+		this.read  = Math.min(read, length);
+		this.write = write;
+		this.line  = line;
+	}
+
+	/**
+	 * Internal Helper Method to drop the tokens before the current one
+	 * and lex the next complete lines from the Reader.
+	 * */
+	private void refill() {
+		// Move the kept tokens and the untokenized characters to the front
+		int first = Math.max(cursor, 0);
+		int keep  = first < count ? starts[first] : write;
+		int kept  = write - keep;
+		System.arraycopy(buffer, keep, buffer, 0, kept);
+		System.arraycopy(buffer, read, buffer, kept, limit - read);
+		limit = kept + limit - read;
+		read  = kept;
+		write = kept;
+
+		for (int t = first; t < count; t++) {
+			starts[t - first] = starts[t] - keep;
+			ends[t - first]   = ends[t] - keep;
+			lines[t - first]  = lines[t];
+		}
+		count  -= first;
+		cursor -= first;
+
+		if (limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2); // Line longer than the window
+		try {
+			int n = reader.read(buffer, limit, buffer.length - limit);
+			if (n == -1) end = true;
+			else limit += n;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		int length = limit;
+		if (!end) { // Stop after the last complete line
+			while (length > read + 1 && !(buffer[length-2] == '\r' && buffer[length-1] == '\n')) length--;
+			if (length <= read + 1) return;
+		}
+		tokenize(length);
+	}
+
+	private int endToken(int start, int end, int line) {
+		if (start == -1 || start == end) return -1;
+
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends   = Arrays.copyOf(ends, count * 2);
+			lines  = Arrays.copyOf(lines, count * 2);
+		}
+		starts[count] = start;
+		ends[count]   = end;
+		lines[count]  = line;
+		count++;
+		return -1;
+	}
+
+	/**
+	 * Moves to the next token.
+	 * @return false if there are no tokens left.
+	 * */
+	boolean advance() {
+		if (cursor < count) {
+			if (cursor >= 0) previous = lines[cursor];
+			cursor++;
+		}
+		fill();
+		return cursor < count;
+	}
+
+	/**
+	 * Skips the next n tokens.
+	 * */
+	void skip(int n) {
+		if (n > 0 && cursor < count) previous = lines[Math.min(cursor + n, count) - 1];
+		cursor = Math.min(cursor + n, count);
+		fill();
+	}
+
+	/**
+	 * Internal Helper Method to make sure the current token and the two after it are lexed.
+	 * */
+	private void fill() {
+		while (!end && cursor + 2 >= count) refill();
+	}
+
+	/**
+	 * @param k Token offset relative to the current token
+	 * @return true if the token exists.
+	 * */
+	boolean has(int k) {
+		return cursor + k < count;
+	}
+
+	/**
+	 * @return The Buffer all token spans refer to.
+	 * */
+	char[] buffer() {
+		return buffer;
+	}
+
+	int start(int k) {
+		return starts[cursor + k];
+	}
+
+	int length(int k) {
+		return ends[cursor + k] - starts[cursor + k];
+	}
+
+	/**
+	 * @return The source line of the token at k, starting at 1.
+	 * */
+	int line(int k) {
+		return lines[cursor + k];
+	}
+
+	/**
+	 * @return true if the current token is the first one of its line.
+	 * */
+	boolean startsLine() {
+		return lines[cursor] > previous;
+	}
+
+	char charAt(int k, int index) {
+		return buffer[starts[cursor + k] + index];
+	}
+
+	/**
+	 * @return true if the token at k equals s.
+	 * */
+	boolean is(int k, String s) {
+		int start = starts[cursor + k];
+		int len   = ends[cursor + k] - start;
+		if (len != s.length()) return false;
+
+		for (int i = 0; i < len; i++) {
+			if (buffer[start + i] != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the token at k as a hexadecimal number.
+	 * @param k    Token offset relative to the current token
+	 * @param from Character index to start parsing at
+	 * */
+	int parseHex(int k, int from) {
+		int start = starts[cursor + k] + from;
+		int end   = ends[cursor + k];
+		boolean negative = false;
+
+		if (start < end && (buffer[start] == '-' || buffer[start] == '+')) {
+			negative = buffer[start] == '-';
+			start++;
+		}
+		if (start == end) throw new NumberFormatException("For input string: \"" + text(k).substring(from) + "\"");
+
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(buffer[i], 16);
+			value = value * 16 + digit;
+			if (digit < 0 || value > (negative ? 0x80000000L : Integer.MAX_VALUE))
+				throw new NumberFormatException("For input string: \"" + text(k).substring(from) + "\" under radix 16");
+		}
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * @return The token at k as a String, only meant for diagnostics.
+	 * */
+	String text(int k) {
+		return new String(buffer, starts[cursor + k], length(k));
+	}
+}
@@ -0,0 +1,365 @@
+package de.felixeckert.apersasm;
+
+import static de.felixeckert.apersasm.DecodedProgram.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Execution Engine running many instances of one Program side by side.
+ * Registers and MEMORY are stored as structure-of-arrays, MEMORY address-major
+ * so an instruction touches one contiguous run of bytes for all instances.
+ * Loads, stores, prase, presa and spare run on the Vector API through {@link VectorLanes}
+ * if the jdk.incubator.vector module is available, masking out the instances outside
+ * of the group. The branch-free scalar loops handle the remaining instances, and all
+ * of them without the module.
+ *
+ * Instances execute as a group sharing one instruction index, instances outside
+ * the group are masked out. When the group takes different branches, the instances
+ * continuing at the lower index stay in the group while the others wait, and join
+ * again once the group reaches the index they wait at. If the group stops, the
+ * instances waiting at the lowest index form the next group.
+ *
+ * @author Felix Eckert
+ * */
+final class LockstepEngine {
+	/**
+	 * Maximum amount of instances executed together
+	 * */
+	static final int LANES = 128;
+	/**
+	 * Addresses are signed bytes, only the first 128 bytes of MEMORY can ever be accessed
+	 * */
+	private static final int ADDRESSABLE = Byte.MAX_VALUE + 1;
+	/**
+	 * Whether the lane loops run on the Vector API
+	 * */
+	static final boolean VECTOR = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+	private final DecodedProgram program;
+	/**
+	 * Instructions, Superinstructions are executed as their parts
+	 * */
+	private final int[]     code;
+	private final int       lanes;
+	private final Input[]   inputs;
+	private final Output[]  outputs;
+	private final ExecutionResult[] results;
+	private final int       first;
+	private final long      startTime;
+
+	private final byte[][]  registers;
+	private final byte[]    compare;
+	/**
+	 * Addressable MEMORY of all instances, the value at address x of instance i is at x * lanes + i
+	 * */
+	private final byte[]    memory;
+
+	/**
+	 * -1 for instances in the group, 0 for all others
+	 * */
+	private final byte[]    mask;
+	private int  groupSize;
+	/**
+	 * Instructions executed by the group
+	 * */
+	private long steps;
+	// Values read & output by the group, reported to the Metrics once it is done
+	private long inputCount;
+	private long outputCount;
+
+	/**
+	 * Instruction index of every waiting instance
+	 * */
+	private final int[]     ip;
+	/**
+	 * Amount of instances waiting at each instruction index
+	 * */
+	private final int[]     waiting;
+	private int  waitingCount;
+
+	/**
+	 * Executed instructions of every instance, minus the group steps while in the group
+	 * */
+	private final long[]    count;
+
+	private LockstepEngine(DecodedProgram program, Input[] inputs, Output[] outputs,
+			ExecutionResult[] results, int first, int lanes) {
+		this.program   = program;
+		this.lanes     = lanes;
+		this.inputs    = inputs;
+		this.outputs   = outputs;
+		this.results   = results;
+		this.first     = first;
+		this.startTime = System.nanoTime();
+
+		this.code = new int[program.code.length];
+		for (int i = 0; i < code.length; i++) code[i] = first(program.code[i]);
+
+		this.registers = new byte[3][lanes];
+		this.compare   = new byte[lanes];
+		this.memory    = new byte[ADDRESSABLE * lanes];
+		this.mask      = new byte[lanes];
+		this.ip        = new int[lanes];
+		this.waiting   = new int[code.length];
+		this.count     = new long[lanes];
+
+		Arrays.fill(mask, (byte) -1);
+		this.groupSize = lanes;
+	}
+
+	/**
+	 * Executes a Program once per input, in groups of up to {@link #LANES} instances.
+	 *
+	 * @param inputs  Where rapes reads from, per instance
+	 * @param outputs Where reaps outputs to, per instance
+	 * @return The final state of every instance.
+	 * */
+	static ExecutionResult[] execute(DecodedProgram program, Input[] inputs, Output[] outputs) {
+		ExecutionResult[] results = new ExecutionResult[inputs.length];
+		for (int first = 0; first < inputs.length; first += LANES) {
+			LockstepEngine engine = new LockstepEngine(program, inputs, outputs, results, first,
+					Math.min(LANES, inputs.length - first));
+			engine.run();
+			Metrics.executed(0, engine.inputCount, engine.outputCount);
+		}
+		return results;
+	}
+
+	private void run() {
+		int shared = 0; // Instruction index of the group
+
+		for (;;) {
+			if (groupSize == 0) {
+				if (waitingCount == 0) return;
+				shared = regroup();
+			} else if (waiting[shared] > 0) {
+				join(shared);
+			}
+
+			int instruction = code[shared];
+			int opcode      = opcode(instruction);
+			int operand     = operand(instruction);
+			steps++;
+
+			switch (opcode) {
+			case SPEAR:
+			case HALT:
+				if (opcode == HALT) steps--; // Not an actual instruction
+				for (int l = 0; l < lanes; l++) {
+					if (mask[l] != 0) finish(l, null, program.length());
+				}
+				break;
+			case APERS:
+			case APRES:
+			case ASPER:
+			case PARES:
+				int taken = 0;
+				for (int l = 0; l < lanes; l++) {
+					if (mask[l] != 0 && taken(opcode, compare[l])) taken++;
+				}
+				if (taken == groupSize || taken == 0) {
+					shared = taken == 0 ? shared+1 : operand;
+					break;
+				}
+
+				// Split, instances continuing at the higher index wait
+				int next = Math.min(operand, shared+1);
+				for (int l = 0; l < lanes; l++) {
+					if (mask[l] == 0) continue;
+					int target = taken(opcode, compare[l]) ? operand : shared+1;
+					if (target != next) leave(l, target);
+				}
+				shared = next;
+				break;
+
+			case PARSE_VALUE_A: case PARSE_VALUE_A+1: case PARSE_VALUE_A+2:
+				load(registers[opcode - PARSE_VALUE_A], (byte) operand);
+				shared++;
+				break;
+			case PARSE_ADDRESS_A: case PARSE_ADDRESS_A+1: case PARSE_ADDRESS_A+2:
+				load(registers[opcode - PARSE_ADDRESS_A], operand * lanes);
+				shared++;
+				break;
+			case PEARS_ADDRESS_A: case PEARS_ADDRESS_A+1: case PEARS_ADDRESS_A+2:
+				store(registers[opcode - PEARS_ADDRESS_A], operand * lanes);
+				shared++;
+				break;
+			case PRASE_ADDRESS_A: case PRASE_ADDRESS_A+1: case PRASE_ADDRESS_A+2:
+				add(registers[opcode - PRASE_ADDRESS_A], operand * lanes);
+				shared++;
+				break;
+			case PRESA_ADDRESS_A: case PRESA_ADDRESS_A+1: case PRESA_ADDRESS_A+2:
+				subtract(registers[opcode - PRESA_ADDRESS_A], operand * lanes);
+				shared++;
+				break;
+			case SPARE_AA: case SPARE_AA+1: case SPARE_AA+2:
+			case SPARE_AA+3: case SPARE_AA+4: case SPARE_AA+5:
+			case SPARE_AA+6: case SPARE_AA+7: case SPARE_AA+8:
+				compare(registers[(opcode - SPARE_AA) / 3], registers[(opcode - SPARE_AA) % 3]);
+				shared++;
+				break;
+
+			default: // POINTER & I/O, may fault per instance
+				for (int l = 0; l < lanes; l++) {
+					if (mask[l] != 0) step(l, opcode, operand, shared);
+				}
+				shared++;
+				break;
+			}
+		}
+	}
+
+	private void load(byte[] register, byte value) {
+		int l = VECTOR ? VectorLanes.load(register, value, mask, lanes) : 0;
+		for (; l < lanes; l++) register[l] = (byte) ((value & mask[l]) | (register[l] & ~mask[l]));
+	}
+
+	private void load(byte[] register, int from) {
+		int l = VECTOR ? VectorLanes.load(register, memory, from, mask, lanes) : 0;
+		for (; l < lanes; l++) register[l] = (byte) ((memory[from + l] & mask[l]) | (register[l] & ~mask[l]));
+	}
+
+	private void store(byte[] register, int from) {
+		int l = VECTOR ? VectorLanes.store(register, memory, from, mask, lanes) : 0;
+		for (; l < lanes; l++) memory[from + l] = (byte) ((register[l] & mask[l]) | (memory[from + l] & ~mask[l]));
+	}
+
+	private void add(byte[] register, int from) {
+		int l = VECTOR ? VectorLanes.add(register, memory, from, mask, lanes) : 0;
+		for (; l < lanes; l++) register[l] += memory[from + l] & mask[l];
+	}
+
+	private void subtract(byte[] register, int from) {
+		int l = VECTOR ? VectorLanes.subtract(register, memory, from, mask, lanes) : 0;
+		for (; l < lanes; l++) register[l] -= memory[from + l] & mask[l];
+	}
+
+	private void compare(byte[] x, byte[] y) {
+		int l = VECTOR ? VectorLanes.compare(compare, x, y, mask, lanes) : 0;
+		for (; l < lanes; l++) compare[l] = (byte) (((x[l] - y[l]) & mask[l]) | (compare[l] & ~mask[l]));
+	}
+
+	/**
+	 * Executes a POINTER or I/O instruction for a single instance of the group.
+	 * @param at Index of the instruction
+	 * */
+	private void step(int l, int opcode, int operand, int at) {
+		try {
+			switch (opcode) {
+			case PARSE_POINTER_A: case PARSE_POINTER_A+1: case PARSE_POINTER_A+2:
+				registers[opcode - PARSE_POINTER_A][l] = memory[pointer(l, operand) * lanes + l];
+				break;
+			case PEARS_POINTER_A: case PEARS_POINTER_A+1: case PEARS_POINTER_A+2:
+				memory[pointer(l, operand) * lanes + l] = registers[opcode - PEARS_POINTER_A][l];
+				break;
+			case PRASE_POINTER_A: case PRASE_POINTER_A+1: case PRASE_POINTER_A+2:
+				registers[opcode - PRASE_POINTER_A][l] += memory[pointer(l, operand) * lanes + l];
+				break;
+			case PRESA_POINTER_A: case PRESA_POINTER_A+1: case PRESA_POINTER_A+2:
+				registers[opcode - PRESA_POINTER_A][l] -= memory[pointer(l, operand) * lanes + l];
+				break;
+			case RAPES_A: case RAPES_A+1: case RAPES_A+2:
+				outputs[first + l].flush(); // Make prompts visible before blocking
+				registers[opcode - RAPES_A][l] = inputs[first + l].read();
+				inputCount++;
+				break;
+			case REAPS_A: case REAPS_A+1: case REAPS_A+2:
+				outputCount++;
+				outputs[first + l].write(registers[opcode - REAPS_A][l]);
+				break;
+			}
+		} catch (IOException e) {
+			finish(l, new UncheckedIOException(e), at);
+		} catch (RuntimeException e) {
+			finish(l, e, at);
+		}
+	}
+
+	/**
+	 * @return The address stored at a POINTER operand of one instance.
+	 * */
+	private int pointer(int l, int operand) {
+		byte address = memory[operand * lanes + l];
+		if (address < 0) { // The same fault a Runtime would raise
+			throw new ArrayIndexOutOfBoundsException(
+					"Index " + address + " out of bounds for length " + Memory.PAGE_SIZE);
+		}
+		return address;
+	}
+
+	private static boolean taken(int opcode, byte compare) {
+		switch (opcode) {
+		case APERS: return compare == 0;
+		case APRES: return compare > 0;
+		case ASPER: return compare < 0;
+		default:    return true;
+		}
+	}
+
+	/**
+	 * Removes an instance from the group.
+	 * @param target Instruction index the instance waits at
+	 * */
+	private void leave(int l, int target) {
+		mask[l]   = 0;
+		count[l] += steps;
+		ip[l]     = target;
+		waiting[target]++;
+		waitingCount++;
+		groupSize--;
+	}
+
+	/**
+	 * Adds every instance waiting at an instruction index to the group.
+	 * */
+	private void join(int at) {
+		for (int l = 0; l < lanes; l++) {
+			if (mask[l] != 0 || ip[l] != at || results[first + l] != null) continue;
+			mask[l]   = -1;
+			count[l] -= steps;
+			groupSize++;
+		}
+		waitingCount -= waiting[at];
+		waiting[at]   = 0;
+	}
+
+	/**
+	 * Forms a new group from the instances waiting at the lowest instruction index.
+	 * @return The instruction index of the group.
+	 * */
+	private int regroup() {
+		int lowest = Integer.MAX_VALUE;
+		for (int l = 0; l < lanes; l++) {
+			if (results[first + l] == null && ip[l] < lowest) lowest = ip[l];
+		}
+		steps = 0;
+		join(lowest);
+		return lowest;
+	}
+
+	/**
+	 * Stores the final state of an instance of the group and stops executing it.
+	 * @param at Instruction index the instance stopped at
+	 * */
+	private void finish(int l, RuntimeException error, int at) {
+		try {
+			outputs[first + l].flush();
+		} catch (IOException e) {
+			if (error == null) error = new UncheckedIOException(e);
+		}
+
+		Memory state = new Memory();
+		byte[] page  = state.page(0);
+		for (int address = 0; address < ADDRESSABLE; address++) page[address] = memory[address * lanes + l];
+
+		results[first + l] = new ExecutionResult(
+				error == null ? ExecutionResult.State.EXITED : ExecutionResult.State.FAILED, error,
+				registers[0][l], registers[1][l], registers[2][l], compare[l], program.offsets[at], state,
+				count[l] + steps, System.nanoTime() - startTime);
+		Metrics.completed(count[l] + steps, System.nanoTime() - startTime, error != null);
+		mask[l] = 0;
+		groupSize--;
+	}
+}
@@ -1,11 +1,15 @@
 package de.felixeckert.apersasm;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 public class Main {
-	public static void main(String[] args) throws IOException {
+	public static void main(String[] args) throws IOException, InterruptedException {
 		if (args.length == 0) {
 			giveHelp();
 			return;
@@ -13,6 +17,16 @@ public class Main {
 		
 		boolean noOptions = false;
 		String  inputFile = "";
+		Runtime.Engine engine = Runtime.Engine.INTERPRETER;
+		ChannelInput.Mode inputMode = ChannelInput.Mode.DECIMAL;
+		boolean profile = false;
+		boolean cache   = true;
+		boolean optimize = false;
+		boolean trace    = false;
+		Path    snapshot = null;
+		Path    daemon   = null;
+		Path    records  = null;
+		boolean watch    = false;
 		for (int i = 0; i < args.length; i++) {
 			if (noOptions) {
 				inputFile += args[i];
@@ -23,16 +37,111 @@ public class Main {
 			case "-c":
 				       inputFile = getPathFromArgs(args, i+1);
 				String outputFile = getPathFromArgs(args, inputFile.split(" ").length+i+1);
-				if (Compiler.compileAndSave(inputFile, outputFile)) {
+				if (daemon != null) System.exit(forward(daemon, Daemon.COMPILE, inputFile, outputFile,
+						engine, inputMode, optimize, cache, profile, trace, snapshot, records));
+				if (Compiler.compileAndSave(inputFile, outputFile, optimize)) {
 					System.exit(0);
 				} else {
 					System.err.println("Compilation Failed!");
 					System.exit(-1);
 				}
 				break;
+			case "-b":
+				       inputFile = getPathFromArgs(args, i+1);
+				String containerFile = getPathFromArgs(args, inputFile.split(" ").length+i+1);
+				if (daemon != null) System.exit(forward(daemon, Daemon.BUILD, inputFile, containerFile,
+						engine, inputMode, optimize, cache, profile, trace, snapshot, records));
+				if (Compiler.buildAndSave(inputFile, containerFile, optimize)) {
+					System.exit(0);
+				} else {
+					System.err.println("Compilation Failed!");
+					System.exit(-1);
+				}
+				break;
+			case "-m":
+				if (i+2 >= args.length) {
+					giveHelp();
+					System.exit(-1);
+				}
+				String outputDirectory = getPathFromArgs(args, i+1);
+				int    first = i + 1 + outputDirectory.split(" ").length;
+				BatchCompiler.Summary summary = BatchCompiler.build(Arrays.asList(args).subList(first, args.length),
+						new File(outputDirectory).toPath(), true, optimize, cache);
+				System.out.println(summary);
+				System.exit(summary.getFailed() == 0 ? 0 : -1);
+				break;
+			case "-e":
+				engine = i+1 < args.length ? getEngine(args[++i]) : null;
+				if (engine == null) {
+					giveHelp();
+					System.exit(-1);
+				}
+				continue;
+			case "-i":
+				inputMode = i+1 < args.length ? getInputMode(args[++i]) : null;
+				if (inputMode == null) {
+					giveHelp();
+					System.exit(-1);
+				}
+				continue;
+			case "-p":
+				profile = true;
+				continue;
+			case "-n":
+				cache = false;
+				continue;
+			case "-t":
+				trace = true;
+				continue;
+			case "-w":
+			case "--watch":
+				watch = true;
+				continue;
+			case "-o": // -O
+				optimize = true;
+				continue;
+			case "-s":
+				if (i+1 == args.length) {
+					giveHelp();
+					System.exit(-1);
+				}
+				String snapshotFile = getPathFromArgs(args, i+1);
+				snapshot = new File(snapshotFile).toPath();
+				i += snapshotFile.split(" ").length;
+				continue;
+			case "-d":
+				if (i+1 == args.length) {
+					giveHelp();
+					System.exit(-1);
+				}
+				Daemon.serve(new File(getPathFromArgs(args, i+1)).toPath());
+				System.exit(-1); // Only returns if it could not start
+				break;
+			case "-l":
+				if (i+1 == args.length) {
+					giveHelp();
+					System.exit(-1);
+				}
+				String recordFile = getPathFromArgs(args, i+1);
+				records = new File(recordFile).toPath();
+				i += recordFile.split(" ").length;
+				continue;
+			case "-u":
+				if (i+1 == args.length) {
+					giveHelp();
+					System.exit(-1);
+				}
+				String socketFile = getPathFromArgs(args, i+1);
+				daemon = new File(socketFile).toPath();
+				i += socketFile.split(" ").length;
+				continue;
 			case "-r":
 				inputFile = getPathFromArgs(args, i+1);
-				Runtime.runProgram(inputFile);
+				if (daemon != null) System.exit(forward(daemon, Daemon.RUN, inputFile, null,
+						engine, inputMode, optimize, cache, profile, trace, snapshot, records));
+				if (records != null) System.exit(map(ProgramFile.load(new File(inputFile).toPath()), records, engine, inputMode));
+				Runtime.runProgram(inputFile, new Runtime.Options()
+						.engine(engine).inputMode(inputMode).profile(profile).snapshot(snapshot).trace(trace));
 				System.exit(0);
 				break;
 			default:
@@ -41,9 +150,55 @@ public class Main {
 				break;
 			}
 			
-			byte[] temp = Compiler.compile(new String(Files.readAllBytes(new File(inputFile).toPath())));
-			Runtime.runProgramDirect(temp);
+			if (watch) {
+				Watcher.watch(new File(inputFile).toPath(), engine, inputMode, optimize, profile, trace);
+				return;
+			}
+			if (daemon != null) System.exit(forward(daemon, Daemon.COMPILE_AND_RUN, inputFile, null,
+					engine, inputMode, optimize, cache, profile, trace, snapshot, records));
+			Path    source = new File(inputFile).toPath();
+			Program temp   = cache ? CompileCache.getDefault().assemble(source, optimize)
+					: Compiler.assemble(new String(Files.readAllBytes(source)), optimize);
+			if (temp == null) System.exit(-1);
+			if (records != null) System.exit(map(temp, records, engine, inputMode));
+			Runtime.runProgramDirect(temp, new Runtime.Options()
+					.engine(engine).inputMode(inputMode).profile(profile).snapshot(snapshot).trace(trace));
+		}
+	}
+	
+	/**
+	 * Internal Helper Method to run a Program once per record.
+	 * @return The exit code.
+	 * */
+	private static int map(Program program, Path records, Runtime.Engine engine, ChannelInput.Mode inputMode) throws IOException {
+		if (program == null) return -1;
+		
+		long start   = System.nanoTime();
+		long faulted = RecordMapper.map(program, records, engine, inputMode,
+				new FileOutputStream(FileDescriptor.out).getChannel());
+		System.err.printf("Mapped %s in %s nanoseconds\n", records, System.nanoTime() - start);
+		return faulted == 0 ? 0 : -1;
+	}
+	
+	/**
+	 * Internal Helper Method to send a request to a daemon.
+	 * @return The exit code.
+	 * */
+	private static int forward(Path socket, byte command, String inputFile, String outputFile,
+			Runtime.Engine engine, ChannelInput.Mode inputMode, boolean optimize, boolean cache,
+			boolean profile, boolean trace, Path snapshot, Path records) {
+		if (snapshot != null) {
+			System.err.println("DAEMON ERROR: SNAPSHOTS CAN NOT BE USED THROUGH A DAEMON");
+			return -1;
 		}
+		if (records != null) {
+			System.err.println("DAEMON ERROR: RECORDS CAN NOT BE MAPPED THROUGH A DAEMON");
+			return -1;
+		}
+		
+		int flags = (optimize ? Daemon.OPTIMIZE : 0) | (cache ? 0 : Daemon.NO_CACHE)
+				| (profile ? Daemon.PROFILE : 0) | (trace ? Daemon.TRACE : 0);
+		return Daemon.forward(socket, command, inputFile, outputFile, engine, inputMode, flags);
 	}
 	
 	/**
@@ -77,11 +232,60 @@ public class Main {
 		return path;
 	}
 
+	/**
+	 * @param name Name of the Engine
+	 * @return The Engine or null if there is none with that name.
+	 * */
+	private static Runtime.Engine getEngine(String name) {
+		for (Runtime.Engine engine : Runtime.Engine.values()) {
+			if (engine.name().equalsIgnoreCase(name)) return engine;
+		}
+		return null;
+	}
+
+	/**
+	 * @param name Name of the Input Mode
+	 * @return The Mode or null if there is none with that name.
+	 * */
+	private static ChannelInput.Mode getInputMode(String name) {
+		for (ChannelInput.Mode mode : ChannelInput.Mode.values()) {
+			if (mode.name().equalsIgnoreCase(name)) return mode;
+		}
+		return null;
+	}
+
 	public static void giveHelp() {
 		System.out.println("Apers Assembly Compiler & Runtime by Felix Eckert\n");
 		System.out.println("OPTIONS:");
 		System.out.println("-c <input> <output> Compiles a source file.");
-		System.out.println("-r <binary>         Executes a binary file.");
+		System.out.println("-b <input> <output> Compiles a source file into a container with labels");
+		System.out.println("                    and the pre-decoded program.");
+		System.out.println("-m <output> <input>...");
+		System.out.println("                    Compiles source files, directories or glob patterns into");
+		System.out.println("                    containers below <output> in parallel, skipping sources");
+		System.out.println("                    whose container is up to date.");
+		System.out.println("-r <binary>         Executes a binary or container file.");
 		System.out.println("<input>             Compiles & executes a source file.");
+		System.out.println("-e <engine>         Selects the execution engine (interpreter, threaded, jit),");
+		System.out.println("                    has to precede -r or <input>.");
+		System.out.println("-i <mode>           Selects how rapes reads input (decimal, binary),");
+		System.out.println("                    has to precede -r or <input>.");
+		System.out.println("-p                  Prints an execution profile once the program stopped,");
+		System.out.println("                    has to precede -r or <input>.");
+		System.out.println("-t                  Records the most recent instructions and prints them if the");
+		System.out.println("                    program faults or is interrupted, has to precede -r or <input>.");
+		System.out.println("-n                  Always compiles <input> instead of using the compile cache,");
+		System.out.println("                    has to precede <input>. Preceding -m it rebuilds every source.");
+		System.out.println("-w, --watch         Reassembles & reruns <input> whenever it is saved, only translating");
+		System.out.println("                    the changed lines. Has to precede <input>.");
+		System.out.println("-O                  Optimizes the compiled program, has to precede -c, -b, -m or <input>.");
+		System.out.println("-d <socket>         Starts a daemon serving compile & run requests on a Unix");
+		System.out.println("                    domain socket, so they skip the JVM startup.");
+		System.out.println("-u <socket>         Sends -c, -b, -r or <input> to the daemon on <socket>,");
+		System.out.println("                    has to precede them.");
+		System.out.println("-s <snapshot>       Starts from a snapshot, which is captured at the first input");
+		System.out.println("                    if it does not exist yet. Has to precede -r or <input>.");
+		System.out.println("-l <records>        Runs the program once per line of <records> on every processor,");
+		System.out.println("                    writing the outputs in order. Has to precede -r or <input>.");
 	}
 }
@@ -0,0 +1,162 @@
+package de.felixeckert.apersasm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Paged MEMORY of a Runtime.
+ * The {@link Runtime#MEMORY_SIZE} bytes are split into pages, which are only
+ * allocated once they are written. Pages that were never written read from the
+ * {@link Backing} the Memory was created on, or as zero without one.
+ *
+ * Forking shares every page copy-on-write, a page is only copied once either
+ * side writes to it. Addresses are signed bytes, so a Program can only reach
+ * the first page, which the Engines access directly as a byte[] through
+ * {@link #page(int)}. Forking a Runtime therefore never copies more than the
+ * first page, and only once the fork actually runs.
+ *
+ * @author Felix Eckert
+ * */
+final class Memory {
+	/**
+	 * Exactly the MEMORY a Program can address
+	 * */
+	static final int PAGE_SIZE = Byte.MAX_VALUE + 1;
+	static final int PAGES     = Runtime.MEMORY_SIZE / PAGE_SIZE;
+
+	/**
+	 * Pages, null if never written
+	 * */
+	private final byte[][]  pages;
+	/**
+	 * Pages that may also belong to another Memory and have to be copied before writing
+	 * */
+	private final boolean[] shared;
+	/**
+	 * Where pages that were never written are read from, null if they read as zero
+	 * */
+	private final Backing   backing;
+
+	/**
+	 * Read-only MEMORY outside of the heap, like a mapped Snapshot file.
+	 * Pages are read from it until they are written, then copied to the heap.
+	 * It is shared by every fork, so it has to be safe to read concurrently.
+	 * */
+	interface Backing {
+		/**
+		 * @return The amount of bytes it holds, every address behind them reads as zero.
+		 * */
+		int size();
+
+		byte get(int address);
+
+		/**
+		 * Copies bytes into a page.
+		 * @param address Address of the first byte
+		 * @param length  Amount of bytes, all of them below {@link #size()}
+		 * */
+		void copy(int address, byte[] page, int length);
+	}
+
+	Memory() {
+		this(null);
+	}
+
+	Memory(Backing backing) {
+		this.pages   = new byte[PAGES][];
+		this.shared  = new boolean[PAGES];
+		this.backing = backing;
+	}
+
+	private Memory(byte[][] pages, Backing backing) {
+		this.pages   = pages;
+		this.shared  = new boolean[PAGES];
+		this.backing = backing;
+		for (int p = 0; p < PAGES; p++) shared[p] = pages[p] != null;
+	}
+
+	/**
+	 * Creates a Memory on a read-only buffer, such as a mapped file. The buffer is accessed
+	 * as a MemorySegment if the jdk.incubator.foreign module is available.
+	 * @param source The bytes at the start of the Memory, all of them from index 0 to its limit
+	 * */
+	static Memory of(ByteBuffer source) {
+		if (ModuleLayer.boot().findModule("jdk.incubator.foreign").isPresent()) {
+			return new Memory(SegmentBacking.of(source));
+		}
+		return new Memory(new BufferBacking(source));
+	}
+
+	/**
+	 * Forking a Memory that is not written to is thread-safe, it is only read.
+	 * @return A copy of this Memory, sharing every page until one side writes to it.
+	 * */
+	Memory fork() {
+		for (int p = 0; p < PAGES; p++) {
+			if (pages[p] != null && !shared[p]) shared[p] = true;
+		}
+		return new Memory(pages.clone(), backing);
+	}
+
+	/**
+	 * Returns a page for writing, allocating it or copying it if it is shared.
+	 * The page stays writable until the next {@link #fork()}.
+	 * */
+	byte[] page(int index) {
+		byte[] page = pages[index];
+		if (page == null) {
+			page = pages[index] = new byte[PAGE_SIZE];
+			int address = index * PAGE_SIZE;
+			if (backing != null && address < backing.size()) {
+				backing.copy(address, page, Math.min(PAGE_SIZE, backing.size() - address));
+			}
+		} else if (shared[index]) {
+			page = pages[index] = page.clone();
+			shared[index] = false;
+		}
+		return page;
+	}
+
+	byte get(int address) {
+		byte[] page = pages[address / PAGE_SIZE];
+		if (page != null) return page[address % PAGE_SIZE];
+		return backing != null && address < backing.size() ? backing.get(address) : 0;
+	}
+
+	/**
+	 * @return The whole Memory as one array.
+	 * */
+	byte[] toByteArray() {
+		byte[] bytes = new byte[Runtime.MEMORY_SIZE];
+		if (backing != null) backing.copy(0, bytes, Math.min(backing.size(), bytes.length));
+		for (int p = 0; p < PAGES; p++) {
+			if (pages[p] != null) System.arraycopy(pages[p], 0, bytes, p * PAGE_SIZE, PAGE_SIZE);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Backing reading a buffer through absolute gets, which are safe to use concurrently
+	 * */
+	private static final class BufferBacking implements Backing {
+		private final ByteBuffer source;
+
+		BufferBacking(ByteBuffer source) {
+			this.source = source;
+		}
+
+		@Override
+		public int size() {
+			return source.limit();
+		}
+
+		@Override
+		public byte get(int address) {
+			return source.get(address);
+		}
+
+		@Override
+		public void copy(int address, byte[] page, int length) {
+			source.get(address, page, 0, length);
+		}
+	}
+}
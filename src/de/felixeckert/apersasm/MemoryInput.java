@@ -0,0 +1,71 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+/**
+ * Input Source serving preloaded values from memory,
+ * for tests, benchmarks and embedding the Runtime.
+ *
+ * @author Felix Eckert
+ * */
+public class MemoryInput implements Input {
+	private final byte[] values;
+	private final int    length;
+	private final boolean mismatch;
+	private int position = 0;
+	
+	/**
+	 * @param values The values to read, not copied
+	 * */
+	public MemoryInput(byte[] values) {
+		this(values, values.length, false);
+	}
+	
+	private MemoryInput(byte[] values, int length, boolean mismatch) {
+		this.values   = values;
+		this.length   = length;
+		this.mismatch = mismatch;
+	}
+	
+	/**
+	 * Reads all values from a Channel up front. A malformed integer ends the preloaded values,
+	 * reading past them throws the InputMismatchException the ChannelInput would have thrown.
+	 * 
+	 * @param channel The Channel to read from
+	 * @param mode    How to read values
+	 * */
+	public static MemoryInput preload(ReadableByteChannel channel, ChannelInput.Mode mode) throws IOException {
+		ChannelInput input  = new ChannelInput(channel, mode, 64 * 1024);
+		byte[]       values = new byte[4096];
+		int          count  = 0;
+		
+		try {
+			for (;;) {
+				byte value = input.read();
+				if (count == values.length) values = Arrays.copyOf(values, count * 2);
+				values[count++] = value;
+			}
+		} catch (InputMismatchException e) {
+			return new MemoryInput(values, count, true);
+		} catch (NoSuchElementException e) {
+			return new MemoryInput(values, count, false);
+		}
+	}
+	
+	@Override
+	public byte read() {
+		if (position == length) throw mismatch ? new InputMismatchException() : new NoSuchElementException();
+		return values[position++];
+	}
+	
+	/**
+	 * Starts reading from the first value again.
+	 * */
+	public void rewind() {
+		position = 0;
+	}
+}
@@ -0,0 +1,56 @@
+package de.felixeckert.apersasm;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Output Sink collecting output in memory, for embedding the Runtime.
+ *
+ * @author Felix Eckert
+ * */
+public class MemoryOutput implements Output {
+	private byte[] buffer = new byte[256];
+	private int    count  = 0;
+	
+	@Override
+	public void write(byte value) {
+		if (value >= 0) {
+			if (count == buffer.length) buffer = Arrays.copyOf(buffer, count * 2);
+			buffer[count++] = value;
+		} else {
+			byte[] bytes = Output.encode(value);
+			if (count + bytes.length > buffer.length) buffer = Arrays.copyOf(buffer, count * 2 + bytes.length);
+			System.arraycopy(bytes, 0, buffer, count, bytes.length);
+			count += bytes.length;
+		}
+	}
+	
+	/**
+	 * @return The amount of bytes output so far.
+	 * */
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * Discards all output collected so far.
+	 * */
+	public void reset() {
+		count = 0;
+	}
+	
+	/**
+	 * @return A copy of the output.
+	 * */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, count);
+	}
+	
+	/**
+	 * @return The output decoded with the default charset.
+	 * */
+	@Override
+	public String toString() {
+		return new String(buffer, 0, count, Charset.defaultCharset());
+	}
+}
@@ -0,0 +1,313 @@
+package de.felixeckert.apersasm;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of every Runtime, compilation and compile cache lookup in the JVM.
+ *
+ * Everything is recorded into striped counters, which are only summed up when
+ * they are reported, so threads recording at the same time do not contend.
+ * Runtimes count instructions & I/O in plain fields and report them once per
+ * time slice, nothing is recorded per instruction.
+ *
+ * The Metrics are exposed as an MBean through {@link #register()} and can be
+ * written to a log periodically through {@link #export(PrintStream, long, TimeUnit)}.
+ * The daemon registers them and exports them every apersasm.metrics.interval
+ * seconds if that property is set.
+ *
+ * @author Felix Eckert
+ * */
+public final class Metrics implements MetricsMBean {
+	public static final String NAME = "de.felixeckert.apersasm:type=Metrics";
+
+	private static final Metrics INSTANCE = new Metrics();
+
+	// Counters
+	private static final LongAdder INSTRUCTIONS = new LongAdder();
+	private static final LongAdder QUEUED       = new LongAdder();
+	private static final LongAdder ACTIVE       = new LongAdder();
+	private static final LongAdder COMPLETED    = new LongAdder();
+	private static final LongAdder FAILED       = new LongAdder();
+	private static final LongAdder CACHE_HITS   = new LongAdder();
+	private static final LongAdder CACHE_MISSES = new LongAdder();
+	private static final LongAdder INPUT        = new LongAdder();
+	private static final LongAdder OUTPUT       = new LongAdder();
+	private static final Histogram COMPILE_LATENCY = new Histogram();
+	private static final Histogram RUN_LATENCY     = new Histogram();
+
+	// Last sample of the instruction rate, only touched when reporting
+	private long   sampleTime = System.nanoTime();
+	private long   sampleInstructions;
+	private double rate;
+
+	private Metrics() {}
+
+	/**
+	 * Registers the Metrics with the platform MBean server, unless they already are.
+	 * */
+	public static synchronized void register() {
+		try {
+			ObjectName  name   = new ObjectName(NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name)) server.registerMBean(INSTANCE, name);
+		} catch (JMException e) {
+			System.err.printf("METRICS WARNING: COULD NOT REGISTER %s (%s)\n", NAME, e);
+		}
+	}
+
+	/**
+	 * Writes a summary of the Metrics to a log periodically, on a daemon thread.
+	 * @param period Time between two summaries
+	 * */
+	public static void export(PrintStream log, long period, TimeUnit unit) {
+		if (period <= 0) throw new IllegalArgumentException("Period has to be positive");
+
+		Thread exporter = new Thread(() -> {
+			try {
+				for (;;) {
+					unit.sleep(period);
+					log.println(INSTANCE);
+				}
+			} catch (InterruptedException e) {
+				// Stopped
+			}
+		}, "ApersAssemblyMetrics");
+		exporter.setDaemon(true);
+		exporter.start();
+	}
+
+	/**
+	 * @return The Metrics, for reading them without JMX.
+	 * */
+	public static MetricsMBean get() {
+		return INSTANCE;
+	}
+
+	// Recording
+
+	static void queued() {
+		QUEUED.increment();
+	}
+
+	static void started() {
+		QUEUED.decrement();
+		ACTIVE.increment();
+	}
+
+	/**
+	 * @param started Time the Program started at in NS, -1 if it never did
+	 * @param failed  Whether it stopped before it exited
+	 * */
+	static void stopped(long started, boolean failed) {
+		if (started == -1) {
+			QUEUED.decrement();
+		} else {
+			ACTIVE.decrement();
+			RUN_LATENCY.record(System.nanoTime() - started);
+		}
+		COMPLETED.increment();
+		if (failed) FAILED.increment();
+	}
+
+	/**
+	 * Reports a Program executed in lockstep, which is never queued or active on its own.
+	 * */
+	static void completed(long instructions, long latency, boolean failed) {
+		INSTRUCTIONS.add(instructions);
+		RUN_LATENCY.record(latency);
+		COMPLETED.increment();
+		if (failed) FAILED.increment();
+	}
+
+	/**
+	 * Reports the work of a time slice.
+	 * */
+	static void executed(long instructions, long input, long output) {
+		INSTRUCTIONS.add(instructions);
+		if (input != 0)  INPUT.add(input);
+		if (output != 0) OUTPUT.add(output);
+	}
+
+	static void compiled(long nanos) {
+		COMPILE_LATENCY.record(nanos);
+	}
+
+	static void cacheLookup(boolean hit) {
+		(hit ? CACHE_HITS : CACHE_MISSES).increment();
+	}
+
+	// Reporting
+
+	@Override
+	public long getInstructionsExecuted() {
+		return INSTRUCTIONS.sum();
+	}
+
+	@Override
+	public synchronized double getInstructionsPerSecond() {
+		long now = System.nanoTime();
+		if (now - sampleTime >= TimeUnit.SECONDS.toNanos(1)) {
+			long instructions = INSTRUCTIONS.sum();
+			rate = (instructions - sampleInstructions) * 1e9 / (now - sampleTime);
+			sampleTime         = now;
+			sampleInstructions = instructions;
+		}
+		return rate;
+	}
+
+	@Override
+	public long getQueuedPrograms() {
+		return QUEUED.sum();
+	}
+
+	@Override
+	public long getActivePrograms() {
+		return ACTIVE.sum();
+	}
+
+	@Override
+	public long getCompletedPrograms() {
+		return COMPLETED.sum();
+	}
+
+	@Override
+	public long getFailedPrograms() {
+		return FAILED.sum();
+	}
+
+	@Override
+	public long getCompilations() {
+		return COMPILE_LATENCY.count();
+	}
+
+	@Override
+	public long getCompileLatencyP50() {
+		return COMPILE_LATENCY.percentile(0.5);
+	}
+
+	@Override
+	public long getCompileLatencyP99() {
+		return COMPILE_LATENCY.percentile(0.99);
+	}
+
+	@Override
+	public long getCompileLatencyMax() {
+		return COMPILE_LATENCY.max.get();
+	}
+
+	@Override
+	public long[] getCompileLatencyHistogram() {
+		return COMPILE_LATENCY.counts();
+	}
+
+	@Override
+	public long getRunLatencyP50() {
+		return RUN_LATENCY.percentile(0.5);
+	}
+
+	@Override
+	public long getRunLatencyP99() {
+		return RUN_LATENCY.percentile(0.99);
+	}
+
+	@Override
+	public long getRunLatencyMax() {
+		return RUN_LATENCY.max.get();
+	}
+
+	@Override
+	public long[] getRunLatencyHistogram() {
+		return RUN_LATENCY.counts();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return CACHE_HITS.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return CACHE_MISSES.sum();
+	}
+
+	@Override
+	public double getCacheHitRate() {
+		long hits    = CACHE_HITS.sum();
+		long lookups = hits + CACHE_MISSES.sum();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public long getInputValues() {
+		return INPUT.sum();
+	}
+
+	@Override
+	public long getOutputValues() {
+		return OUTPUT.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("METRICS: %.0f instructions/s, %d queued, %d active, %d completed (%d failed), "
+				+ "compile p50 %d ns p99 %d ns, run p50 %d ns p99 %d ns, cache hit rate %.2f, %d values in, %d values out",
+				getInstructionsPerSecond(), getQueuedPrograms(), getActivePrograms(), getCompletedPrograms(),
+				getFailedPrograms(), getCompileLatencyP50(), getCompileLatencyP99(), getRunLatencyP50(),
+				getRunLatencyP99(), getCacheHitRate(), getInputValues(), getOutputValues());
+	}
+
+	/**
+	 * Latency histogram with one striped counter per power of two
+	 * */
+	private static final class Histogram {
+		private final LongAdder[]     buckets = new LongAdder[Long.SIZE];
+		private final LongAccumulator max     = new LongAccumulator(Math::max, 0);
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		void record(long nanos) {
+			buckets[Math.max(Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos), 0)].increment();
+			max.accumulate(nanos);
+		}
+
+		long[] counts() {
+			long[] counts = new long[buckets.length];
+			for (int i = 0; i < buckets.length; i++) counts[i] = buckets[i].sum();
+			return counts;
+		}
+
+		long count() {
+			long count = 0;
+			for (LongAdder bucket : buckets) count += bucket.sum();
+			return count;
+		}
+
+		/**
+		 * @return The upper bound of the bucket holding the percentile, at most the maximum.
+		 * */
+		long percentile(double percentile) {
+			long[] counts = counts();
+			long   total  = 0;
+			for (long count : counts) total += count;
+			if (total == 0) return 0;
+
+			long rank = (long) Math.ceil(total * percentile);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) return Math.min(i >= Long.SIZE - 2 ? Long.MAX_VALUE : (2L << i) - 1, max.get());
+			}
+			return max.get();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package de.felixeckert.apersasm;
+
+/**
+ * Management interface of the {@link Metrics}, registered as {@value Metrics#NAME}.
+ * Latencies are in nanoseconds, percentiles are the upper bound of their power of two bucket.
+ *
+ * @author Felix Eckert
+ * */
+public interface MetricsMBean {
+	long   getInstructionsExecuted();
+	/**
+	 * @return Instructions executed per second, over at least the last second.
+	 * */
+	double getInstructionsPerSecond();
+
+	/**
+	 * @return Programs created but not started yet.
+	 * */
+	long getQueuedPrograms();
+	long getActivePrograms();
+	/**
+	 * @return Programs that stopped, including the failed ones.
+	 * */
+	long getCompletedPrograms();
+	/**
+	 * @return Programs that faulted or were stopped before they exited.
+	 * */
+	long getFailedPrograms();
+
+	long   getCompilations();
+	long   getCompileLatencyP50();
+	long   getCompileLatencyP99();
+	long   getCompileLatencyMax();
+	/**
+	 * @return Compilations per latency bucket, bucket i counts latencies below 2^(i+1).
+	 * */
+	long[] getCompileLatencyHistogram();
+
+	long   getRunLatencyP50();
+	long   getRunLatencyP99();
+	long   getRunLatencyMax();
+	/**
+	 * @return Completed Programs per latency bucket, bucket i counts latencies below 2^(i+1).
+	 * */
+	long[] getRunLatencyHistogram();
+
+	long   getCacheHits();
+	long   getCacheMisses();
+	/**
+	 * @return The share of compile cache lookups that hit, 0 without lookups.
+	 * */
+	double getCacheHitRate();
+
+	/**
+	 * @return Values read through rapes.
+	 * */
+	long getInputValues();
+	/**
+	 * @return Values output through reaps.
+	 * */
+	long getOutputValues();
+}
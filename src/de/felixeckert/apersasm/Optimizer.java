@@ -0,0 +1,660 @@
+package de.felixeckert.apersasm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Optimizes compiled Bytecode, enabled through -O.
+ *
+ * Every pass splits the Program into basic blocks at its jump targets and
+ * propagates constants through the registers, COMPARE and every addressable
+ * MEMORY cell, following only the branches that can be taken. Loads of known
+ * values are folded into VALUE loads, decided branches are made unconditional
+ * or removed, and jumps are threaded through the jumps they land on.
+ * Unreachable code, stores that are never read and jumps to the following
+ * instruction are removed afterwards. Passes repeat until nothing changes.
+ * Finally everything the Program does before its first input is evaluated
+ * by the {@link PartialEvaluator}.
+ *
+ * The optimized Program outputs the same for the same input and faults at the
+ * same point of its output, MEMORY & registers that are never read again may
+ * hold different values once it stopped.
+ *
+ * @author Felix Eckert
+ * */
+public final class Optimizer {
+	/**
+	 * Version of the optimizations, has to change whenever a Program would optimize differently
+	 * */
+	public static final int VERSION = 2;
+
+	private static final byte DELETED = -1;
+	/**
+	 * Value of a slot that is not constant, constants are stored unsigned
+	 * */
+	private static final short UNKNOWN = 0x100;
+
+	// Slots of the propagated state
+	private static final int COMPARE     = 3; // After the registers a, b & c
+	private static final int MEMORY      = 4;
+	private static final int ADDRESSABLE = Byte.MAX_VALUE + 1; // Addresses are signed bytes
+	private static final int SLOTS       = MEMORY + ADDRESSABLE;
+
+	// Possible signs of COMPARE
+	private static final int ZERO     = 1;
+	private static final int POSITIVE = 2;
+	private static final int NEGATIVE = 4;
+	private static final int ANY      = ZERO | POSITIVE | NEGATIVE;
+
+	private static final int MAX_PASSES = 16;
+	/**
+	 * Jumps followed when threading a single jump, bounds jump cycles
+	 * */
+	private static final int MAX_HOPS   = 64;
+
+	// Instructions, DELETED ones are dropped by compact()
+	private byte[] opcodes;
+	private byte[] first;   // Register
+	private byte[] second;  // Register, VALUE or ADDRESS
+	private int[]  targets; // Jump targets as instruction indices
+	private int[]  lines;   // Source lines, 0 if not known
+	private int    count;
+	/**
+	 * Label addresses as instruction indices
+	 * */
+	private final int[] labels;
+
+	// Basic blocks, rebuilt by buildBlocks()
+	private int[] blockStarts; // Start of every block & the end of the Program
+	private int[] blockOf;     // Block starting at an instruction or -1
+	private int   blockCount;
+
+	private boolean changed;
+
+	private Optimizer(Program program, byte[] bytecode, int[] labelAddresses) {
+		int[] index = new int[bytecode.length + 1];
+		Arrays.fill(index, -1);
+		for (int pc = 0; pc < bytecode.length; pc += Decoder.size(bytecode[pc])) index[pc] = count++;
+		index[bytecode.length] = count;
+		for (int pc = bytecode.length - 1; pc >= 0; pc--) { // Labels inside an instruction move to the next one
+			if (index[pc] == -1) index[pc] = index[pc+1];
+		}
+
+		opcodes = new byte[count];
+		first   = new byte[count];
+		second  = new byte[count];
+		targets = new int[count];
+		lines   = new int[count];
+		for (int pc = 0, i = 0; pc < bytecode.length; pc += Decoder.size(bytecode[pc]), i++) {
+			byte opcode = bytecode[pc];
+			opcodes[i] = opcode;
+			lines[i]   = program.line(pc);
+			if (isJump(opcode)) {
+				targets[i] = index[Runtime.getInt(bytecode, pc+1)];
+			} else if (opcode != 0x10) {
+				first[i] = bytecode[pc+1];
+				if (Decoder.size(opcode) == 3) second[i] = bytecode[pc+2];
+			}
+		}
+
+		labels = new int[labelAddresses.length];
+		for (int l = 0; l < labels.length; l++) labels[l] = index[labelAddresses[l]];
+	}
+
+	/**
+	 * Optimizes a Program. Programs that fail verification are returned unchanged,
+	 * their jumps may land anywhere.
+	 *
+	 * @return The optimized Program.
+	 * */
+	public static Program optimize(Program program) {
+		if (!program.isVerified()) {
+			System.err.println("OPTIMIZER WARNING: PROGRAM FAILED VERIFICATION, IT IS NOT OPTIMIZED");
+			return program;
+		}
+
+		Optimizer optimizer = new Optimizer(program, program.getBytecode(), program.labelAddresses());
+		int passes = 0;
+		while (passes++ < MAX_PASSES && optimizer.pass());
+		return PartialEvaluator.evaluate(optimizer.emit(program.labelNames()));
+	}
+
+	/**
+	 * @return Whether the pass changed anything.
+	 * */
+	private boolean pass() {
+		changed = false;
+
+		compact();
+		buildBlocks();
+		foldConstants(propagate());
+
+		compact();
+		removeUnreachable();
+
+		compact();
+		buildBlocks();
+		eliminateDeadStores();
+
+		compact();
+		removeRedundantJumps();
+		return changed;
+	}
+
+	/**
+	 * @return The state at the start of every block, null for blocks that are never reached.
+	 * */
+	private short[][] propagate() {
+		short[][] entries = new short[blockCount][];
+		if (blockCount == 0) return entries;
+
+		ArrayDeque<Integer> worklist = new ArrayDeque<>();
+		BitSet queued = new BitSet(blockCount);
+		entries[0] = new short[SLOTS]; // MEMORY & registers start zeroed
+		worklist.add(0);
+		queued.set(0);
+
+		while (!worklist.isEmpty()) {
+			int block = worklist.poll();
+			queued.clear(block);
+
+			short[] state = entries[block].clone();
+			int     last  = blockStarts[block+1] - 1;
+			for (int i = blockStarts[block]; i < last; i++) transfer(state, i);
+
+			byte opcode = opcodes[last];
+			if (isJump(opcode)) { // Only follow branches that can be taken
+				int signs     = signs(state[COMPARE]);
+				int condition = condition(opcode);
+				if ((signs & condition) != 0) {
+					short[] taken = state;
+					if (opcode == 0x00) { // apers is only taken with a COMPARE of 0
+						taken = state.clone();
+						taken[COMPARE] = 0;
+					}
+					merge(entries, worklist, queued, targets[last], taken);
+				}
+				if ((signs & ~condition) != 0) merge(entries, worklist, queued, last+1, state);
+			} else if (opcode != 0x10) {
+				transfer(state, last);
+				merge(entries, worklist, queued, last+1, state);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Internal Helper Method to merge a state into the start of a block.
+	 * Slots that differ become UNKNOWN, the block is revisited if its state changed.
+	 * */
+	private void merge(short[][] entries, ArrayDeque<Integer> worklist, BitSet queued, int target, short[] state) {
+		int block = blockOf[target];
+		if (block == -1) return; // Exits the Program
+
+		boolean grew = false;
+		short[] entry = entries[block];
+		if (entry == null) {
+			entries[block] = state.clone();
+			grew = true;
+		} else {
+			for (int s = 0; s < SLOTS; s++) {
+				if (entry[s] != state[s] && entry[s] != UNKNOWN) {
+					entry[s] = UNKNOWN;
+					grew = true;
+				}
+			}
+		}
+
+		if (grew && !queued.get(block)) {
+			queued.set(block);
+			worklist.add(block);
+		}
+	}
+
+	/**
+	 * Applies an instruction to a propagated state.
+	 * */
+	private void transfer(short[] state, int i) {
+		int register = Decoder.register(first[i]);
+		int pointer;
+
+		switch (opcodes[i]) {
+		case 0x04: // parse VALUE
+			state[register] = (short) (second[i] & 0xff);
+			break;
+		case 0x05: // parse ADDRESS
+			state[register] = state[MEMORY + second[i]];
+			break;
+		case 0x06: // parse POINTER
+			pointer = pointer(state, second[i]);
+			state[register] = pointer == -1 ? UNKNOWN : state[MEMORY + pointer];
+			break;
+		case 0x07: // pears ADDRESS
+			state[MEMORY + second[i]] = state[register];
+			break;
+		case 0x08: // pears POINTER
+			pointer = pointer(state, second[i]);
+			if (pointer != -1) {
+				state[MEMORY + pointer] = state[register];
+				break;
+			}
+			for (int s = MEMORY; s < SLOTS; s++) { // Any cell might have been written
+				if (state[s] != state[register]) state[s] = UNKNOWN;
+			}
+			break;
+		case 0x09: // prase ADDRESS
+		case 0x0b: // presa ADDRESS
+			state[register] = arithmetic(opcodes[i], state[register], state[MEMORY + second[i]]);
+			break;
+		case 0x0a: // prase POINTER
+		case 0x0c: // presa POINTER
+			pointer = pointer(state, second[i]);
+			state[register] = pointer == -1 ? UNKNOWN : arithmetic(opcodes[i], state[register], state[MEMORY + pointer]);
+			break;
+		case 0x0d: // rapes
+			state[register] = UNKNOWN;
+			break;
+		case 0x0f: // spare
+			int other = Decoder.register(second[i]);
+			if (register == other) {
+				state[COMPARE] = 0;
+			} else if (state[register] == UNKNOWN || state[other] == UNKNOWN) {
+				state[COMPARE] = UNKNOWN;
+			} else {
+				state[COMPARE] = (short) ((state[register] - state[other]) & 0xff);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Rewrites every reached instruction based on the propagated states.
+	 * */
+	private void foldConstants(short[][] entries) {
+		for (int block = 0; block < blockCount; block++) {
+			if (entries[block] == null) continue; // Removed as unreachable
+
+			short[] state = entries[block].clone();
+			for (int i = blockStarts[block]; i < blockStarts[block+1]; i++) {
+				fold(state, i);
+				if (opcodes[i] == DELETED) continue; // Had no effect
+				if (isJump(opcodes[i])) thread(state, i);
+				transfer(state, i);
+			}
+		}
+	}
+
+	/**
+	 * Internal Helper Method to fold a single instruction.
+	 * @param state The state before the instruction
+	 * */
+	private void fold(short[] state, int i) {
+		byte opcode   = opcodes[i];
+		int  register = Decoder.register(first[i]);
+
+		// POINTERS with a known address become ADDRESSES
+		if (opcode == 0x06 || opcode == 0x08 || opcode == 0x0a || opcode == 0x0c) {
+			int pointer = pointer(state, second[i]);
+			if (pointer == -1) return;
+			opcode = (byte) (opcode - 1);
+			replace(i, opcode, pointer);
+		}
+
+		short value;
+		switch (opcode) {
+		case 0x00: // apers
+		case 0x01: // apres
+		case 0x02: // asper
+			int signs = signs(state[COMPARE]);
+			if ((signs & condition(opcode)) == 0) {
+				delete(i);
+			} else if ((signs & ~condition(opcode)) == 0) {
+				replace(i, (byte) 0x03, second[i]);
+			}
+			break;
+		case 0x04: // parse VALUE
+			if (state[register] == (second[i] & 0xff)) delete(i);
+			break;
+		case 0x05: // parse ADDRESS
+			value = state[MEMORY + second[i]];
+			if (value == UNKNOWN) break;
+			if (state[register] == value) {
+				delete(i);
+			} else {
+				replace(i, (byte) 0x04, value);
+			}
+			break;
+		case 0x07: // pears ADDRESS
+			if (state[register] != UNKNOWN && state[register] == state[MEMORY + second[i]]) delete(i);
+			break;
+		case 0x09: // prase ADDRESS
+		case 0x0b: // presa ADDRESS
+			value = state[MEMORY + second[i]];
+			if (value == 0) {
+				delete(i);
+			} else if (value != UNKNOWN && state[register] != UNKNOWN) {
+				replace(i, (byte) 0x04, arithmetic(opcode, state[register], value));
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Internal Helper Method to retarget a jump past the jumps it lands on,
+	 * as far as they are decided by the COMPARE known on the way.
+	 * @param state The state before the jump
+	 * */
+	private void thread(short[] state, int i) {
+		int signs = signs(state[COMPARE]);
+		if (opcodes[i] != 0x03) signs &= condition(opcodes[i]);
+
+		int target = next(targets[i]);
+		for (int hops = 0; target < count && isJump(opcodes[target]); hops++) {
+			if (hops == MAX_HOPS) return; // Jump cycle
+
+			int condition = condition(opcodes[target]);
+			if ((signs & ~condition) == 0) {
+				target = next(targets[target]);
+			} else if ((signs & condition) == 0) {
+				target = next(target + 1);
+			} else {
+				break;
+			}
+		}
+
+		if (target != next(targets[i])) {
+			targets[i] = target;
+			changed = true;
+		}
+	}
+
+	/**
+	 * Deletes every instruction that can not be reached from the start.
+	 * */
+	private void removeUnreachable() {
+		BitSet reached = new BitSet(count);
+		ArrayDeque<Integer> pending = new ArrayDeque<>();
+		pending.push(0);
+
+		while (!pending.isEmpty()) {
+			for (int i = pending.pop(); i < count && !reached.get(i); i++) {
+				reached.set(i);
+				if (opcodes[i] == 0x10) break;
+				if (isJump(opcodes[i])) {
+					pending.push(targets[i]);
+					if (opcodes[i] == 0x03) break;
+				}
+			}
+		}
+
+		for (int i = reached.nextClearBit(0); i < count; i = reached.nextClearBit(i+1)) delete(i);
+	}
+
+	/**
+	 * Deletes instructions that only write slots which are never read afterwards.
+	 * */
+	private void eliminateDeadStores() {
+		BitSet[] liveIn = new BitSet[blockCount];
+		for (int block = 0; block < blockCount; block++) liveIn[block] = new BitSet(SLOTS);
+
+		boolean grew = true;
+		while (grew) {
+			grew = false;
+			for (int block = blockCount - 1; block >= 0; block--) {
+				BitSet live = liveOut(liveIn, block);
+				for (int i = blockStarts[block+1] - 1; i >= blockStarts[block]; i--) live(live, i);
+				if (!live.equals(liveIn[block])) {
+					liveIn[block] = live;
+					grew = true;
+				}
+			}
+		}
+
+		for (int block = 0; block < blockCount; block++) {
+			BitSet live = liveOut(liveIn, block);
+			for (int i = blockStarts[block+1] - 1; i >= blockStarts[block]; i--) {
+				if (live(live, i)) delete(i);
+			}
+		}
+	}
+
+	/**
+	 * @return The slots read after a block.
+	 * */
+	private BitSet liveOut(BitSet[] liveIn, int block) {
+		BitSet live = new BitSet(SLOTS);
+		int    last = blockStarts[block+1] - 1;
+		byte   opcode = opcodes[last];
+
+		if (isJump(opcode) && blockOf[targets[last]] != -1) live.or(liveIn[blockOf[targets[last]]]);
+		if (opcode != 0x03 && opcode != 0x10 && blockOf[last+1] != -1) live.or(liveIn[blockOf[last+1]]);
+		return live;
+	}
+
+	/**
+	 * Applies an instruction to the slots read after it, in reverse.
+	 * @return Whether the instruction only writes slots that are not read and can be deleted.
+	 * */
+	private boolean live(BitSet live, int i) {
+		int register = Decoder.register(first[i]);
+		int address  = MEMORY + second[i];
+
+		switch (opcodes[i]) {
+		case 0x00: // apers
+		case 0x01: // apres
+		case 0x02: // asper
+			live.set(COMPARE);
+			return false;
+		case 0x04: // parse VALUE
+			if (!live.get(register)) return true;
+			live.clear(register);
+			return false;
+		case 0x05: // parse ADDRESS
+			if (!live.get(register)) return true;
+			live.clear(register);
+			live.set(address);
+			return false;
+		case 0x07: // pears ADDRESS
+			if (!live.get(address)) return true;
+			live.clear(address);
+			live.set(register);
+			return false;
+		case 0x09: // prase ADDRESS
+		case 0x0b: // presa ADDRESS
+			if (!live.get(register)) return true;
+			live.set(address);
+			return false;
+		case 0x06: // parse POINTER, may fault
+			live.clear(register);
+			live.set(MEMORY, SLOTS);
+			return false;
+		case 0x08: // pears POINTER, may fault
+		case 0x0a: // prase POINTER, may fault
+		case 0x0c: // presa POINTER, may fault
+			live.set(register);
+			live.set(MEMORY, SLOTS);
+			return false;
+		case 0x0d: // rapes, consumes input
+			live.clear(register);
+			return false;
+		case 0x0e: // reaps
+			live.set(register);
+			return false;
+		case 0x0f: // spare
+			if (!live.get(COMPARE)) return true;
+			live.clear(COMPARE);
+			live.set(register);
+			live.set(Decoder.register(second[i]));
+			return false;
+		default: // pares & spear
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes jumps to the following instruction, jumps to the end become spear.
+	 * */
+	private void removeRedundantJumps() {
+		for (int i = 0; i < count; i++) {
+			if (!isJump(opcodes[i])) continue;
+
+			int target = next(targets[i]);
+			if (target == next(i+1)) {
+				delete(i);
+			} else if (opcodes[i] == 0x03 && target == count) {
+				replace(i, (byte) 0x10, 0);
+			}
+		}
+	}
+
+	/**
+	 * Drops DELETED instructions, jumps & labels move to the following instruction.
+	 * */
+	private void compact() {
+		int[] kept = new int[count + 1]; // Kept instructions before each index
+		int   size = 0;
+		for (int i = 0; i < count; i++) {
+			kept[i] = size;
+			if (opcodes[i] != DELETED) size++;
+		}
+		kept[count] = size;
+		if (size == count) return;
+
+		for (int i = 0, j = 0; i < count; i++) {
+			if (opcodes[i] == DELETED) continue;
+			opcodes[j] = opcodes[i];
+			first[j]   = first[i];
+			second[j]  = second[i];
+			targets[j] = kept[targets[i]];
+			lines[j]   = lines[i];
+			j++;
+		}
+		for (int l = 0; l < labels.length; l++) labels[l] = kept[labels[l]];
+		count = size;
+	}
+
+	/**
+	 * Splits the Program into basic blocks at every jump target and after every jump & spear.
+	 * */
+	private void buildBlocks() {
+		BitSet leaders = new BitSet(count + 1);
+		leaders.set(0);
+		for (int i = 0; i < count; i++) {
+			if (isJump(opcodes[i])) {
+				leaders.set(targets[i]);
+				leaders.set(i+1);
+			} else if (opcodes[i] == 0x10) {
+				leaders.set(i+1);
+			}
+		}
+		leaders.clear(count);
+
+		blockCount  = leaders.cardinality();
+		blockStarts = new int[blockCount + 1];
+		blockOf     = new int[count + 1];
+		Arrays.fill(blockOf, -1);
+
+		int block = 0;
+		for (int i = leaders.nextSetBit(0); i >= 0; i = leaders.nextSetBit(i+1)) {
+			blockOf[i] = block;
+			blockStarts[block++] = i;
+		}
+		blockStarts[blockCount] = count;
+	}
+
+	/**
+	 * Emits the optimized Bytecode and relocates jumps & labels.
+	 * */
+	private Program emit(String[] labelNames) {
+		compact();
+
+		int[] addresses = new int[count + 1];
+		for (int i = 0; i < count; i++) addresses[i+1] = addresses[i] + Decoder.size(opcodes[i]);
+
+		CodeBuffer bytecode = new CodeBuffer(addresses[count]);
+		for (int i = 0; i < count; i++) {
+			bytecode.add(opcodes[i]);
+			if (isJump(opcodes[i])) {
+				bytecode.addInt(addresses[targets[i]]);
+				continue;
+			}
+			int size = Decoder.size(opcodes[i]);
+			if (size > 1) bytecode.add(first[i]);
+			if (size > 2) bytecode.add(second[i]);
+		}
+
+		int[] labelAddresses = new int[labels.length];
+		for (int l = 0; l < labels.length; l++) labelAddresses[l] = addresses[labels[l]];
+
+		int[] lineTable = new int[count * 2];
+		int   lineCount = 0;
+		for (int i = 0; i < count; i++) {
+			if (lines[i] == 0) continue;
+			lineTable[lineCount++] = addresses[i];
+			lineTable[lineCount++] = lines[i];
+		}
+		return new Program(bytecode.toByteArray(), labelNames.clone(), labelAddresses,
+				Arrays.copyOf(lineTable, lineCount), null);
+	}
+
+	/**
+	 * @return The first instruction at or after an index that is not DELETED.
+	 * */
+	private int next(int i) {
+		while (i < count && opcodes[i] == DELETED) i++;
+		return i;
+	}
+
+	private void delete(int i) {
+		opcodes[i] = DELETED;
+		changed = true;
+	}
+
+	private void replace(int i, byte opcode, int operand) {
+		opcodes[i] = opcode;
+		second[i]  = (byte) operand;
+		changed = true;
+	}
+
+	private static boolean isJump(byte opcode) {
+		return opcode >= 0x00 && opcode <= 0x03;
+	}
+
+	/**
+	 * @return The address a POINTER refers to, or -1 if it is not known or faults.
+	 * */
+	private static int pointer(short[] state, byte address) {
+		short pointer = state[MEMORY + address];
+		return pointer < ADDRESSABLE ? pointer : -1; // UNKNOWN & negative addresses are above
+	}
+
+	/**
+	 * @return The result of prase or presa on two slots.
+	 * */
+	private static short arithmetic(byte opcode, short register, short value) {
+		if (register == UNKNOWN || value == UNKNOWN) return UNKNOWN;
+		boolean add = opcode == 0x09 || opcode == 0x0a;
+		return (short) ((add ? register + value : register - value) & 0xff);
+	}
+
+	/**
+	 * @return The signs COMPARE can have.
+	 * */
+	private static int signs(short compare) {
+		if (compare == UNKNOWN) return ANY;
+		return compare == 0 ? ZERO : (byte) compare > 0 ? POSITIVE : NEGATIVE;
+	}
+
+	/**
+	 * @return The signs of COMPARE a branch is taken at.
+	 * */
+	private static int condition(byte opcode) {
+		switch (opcode) {
+		case 0x00: return ZERO;     // apers
+		case 0x01: return POSITIVE; // apres
+		case 0x02: return NEGATIVE; // asper
+		default:   return ANY;      // pares
+		}
+	}
+}
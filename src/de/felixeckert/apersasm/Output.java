@@ -0,0 +1,31 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+
+/**
+ * Output Sink receiving the values a Program outputs through reaps.
+ *
+ * @author Felix Eckert
+ * */
+public interface Output {
+	/**
+	 * Outputs a register value.
+	 * */
+	void write(byte value) throws IOException;
+	
+	/**
+	 * Pushes buffered output to its destination, called when the Program exits
+	 * and before it reads input.
+	 * */
+	default void flush() throws IOException {}
+	
+	/**
+	 * Encodes a register value the way reaps always printed it, as a char
+	 * in the default charset.
+	 * 
+	 * @return The encoded bytes, must not be modified.
+	 * */
+	static byte[] encode(byte value) {
+		return OutputEncoding.TABLE[value & 0xff];
+	}
+}
@@ -0,0 +1,20 @@
+package de.felixeckert.apersasm;
+
+import java.nio.charset.Charset;
+
+/**
+ * Table of the bytes every register value is output as.
+ * @see Output#encode(byte)
+ * */
+final class OutputEncoding {
+	static final byte[][] TABLE = new byte[256][];
+	
+	static {
+		Charset charset = Charset.defaultCharset();
+		for (int i = 0; i < 256; i++) {
+			TABLE[i] = String.valueOf((char) (byte) i).getBytes(charset);
+		}
+	}
+	
+	private OutputEncoding() {}
+}
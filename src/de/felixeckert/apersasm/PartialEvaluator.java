@@ -0,0 +1,171 @@
+package de.felixeckert.apersasm;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Evaluates the part of a Program that does not depend on input at compile time, run as the last stage of -O.
+ *
+ * The Program is executed for up to {@link #BUDGET} instructions, until it exits or reaches its first rapes.
+ * Everything it did until then is replaced by a straight-line prologue that outputs the same values and
+ * loads the same MEMORY, registers & COMPARE. A Program that exited becomes just its prologue, one that
+ * reached its first input continues at that rapes in the original Bytecode behind the prologue.
+ * Programs that fault, run out of budget or would not get faster are returned unchanged.
+ *
+ * @author Felix Eckert
+ * */
+public final class PartialEvaluator {
+	/**
+	 * Instructions executed at compile time at most
+	 * */
+	static final long BUDGET = 1_000_000;
+
+	private static final int REGISTERS = 3;
+
+	private final CodeBuffer code = new CodeBuffer();
+	private long instructions;
+
+	// Values the registers hold at the current point of the prologue
+	private final byte[] registers = new byte[REGISTERS];
+	private final long[] lastUse   = new long[REGISTERS];
+
+	private PartialEvaluator() {}
+
+	/**
+	 * Signals that the Program reached its first input
+	 * */
+	private static final class InputReached extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		InputReached() {
+			super("Input Reached", null, false, false);
+		}
+	}
+
+	/**
+	 * Evaluates a Program as far as it runs without input. Programs that fail verification
+	 * are returned unchanged, their jumps can not be relocated.
+	 *
+	 * @return The evaluated Program.
+	 * */
+	public static Program evaluate(Program program) {
+		if (!program.isVerified()) return program;
+
+		ByteArrayOutputStream output  = new ByteArrayOutputStream();
+		Runtime               runtime = new Runtime(program, Runtime.Engine.INTERPRETER,
+				() -> { throw new InputReached(); }, output::write, null, false);
+		boolean exited;
+		try {
+			exited = runtime.runSlice(BUDGET);
+			if (!exited) return program; // Out of budget
+		} catch (InputReached e) {
+			runtime.instructionCount--; // The rapes is executed by the residual Program
+			exited = false;
+		} catch (RuntimeException e) { // Faults are left to the Runtime
+			return program;
+		}
+		if (!exited && runtime.programCounter == 0) return program;
+
+		PartialEvaluator evaluator = new PartialEvaluator();
+		evaluator.prologue(output.toByteArray(), runtime);
+		if (exited) {
+			evaluator.emit((byte) 0x10); // spear
+			if (evaluator.instructions >= runtime.instructionCount) return program;
+			return new Program(evaluator.code.toByteArray(), new String[0], new int[0], new int[0], null);
+		}
+
+		// Continue at the first rapes in the relocated Bytecode
+		int shift = evaluator.code.size() + 5;
+		evaluator.emit((byte) 0x03); // pares
+		evaluator.code.addInt(runtime.programCounter + shift);
+		if (evaluator.instructions >= runtime.instructionCount) return program;
+		return evaluator.residual(program, shift);
+	}
+
+	/**
+	 * Internal Helper Method to emit the instructions restoring the state of an evaluated Runtime.
+	 * */
+	private void prologue(byte[] output, Runtime runtime) {
+		for (byte value : output) {
+			emit((byte) 0x0e, load(value)); // reaps
+		}
+
+		// Store each value once loaded to every address holding it
+		byte[]    memory = new byte[Memory.PAGE_SIZE];
+		boolean[] stored = new boolean[Memory.PAGE_SIZE];
+		for (int address = 0; address < memory.length; address++) memory[address] = runtime.memory.get(address);
+		for (int address = 0; address < memory.length; address++) {
+			if (memory[address] == 0 || stored[address]) continue;
+			byte register = load(memory[address]);
+			for (int other = address; other < memory.length; other++) {
+				if (memory[other] != memory[address]) continue;
+				emit((byte) 0x07, register, (byte) other); // pears
+				stored[other] = true;
+			}
+		}
+
+		if (runtime.COMPARE != 0) {
+			load((byte) 0x00, runtime.COMPARE);
+			load((byte) 0x01, (byte) 0);
+			emit((byte) 0x0f, (byte) 0x00, (byte) 0x01); // spare a - b
+		}
+		load((byte) 0x00, runtime.REGS_A);
+		load((byte) 0x01, runtime.REGS_B);
+		load((byte) 0x02, runtime.REGS_C);
+	}
+
+	/**
+	 * Internal Helper Method to append the original Bytecode behind the prologue.
+	 * @param shift Length of the prologue
+	 * */
+	private Program residual(Program program, int shift) {
+		byte[] bytecode = program.getBytecode();
+		for (int pc = 0; pc < bytecode.length; pc += Decoder.size(bytecode[pc])) {
+			byte opcode = bytecode[pc];
+			code.add(opcode);
+			if (opcode >= 0x00 && opcode <= 0x03) { // Jumps
+				code.addInt(Runtime.getInt(bytecode, pc+1) + shift);
+			} else {
+				for (int i = 1; i < Decoder.size(opcode); i++) code.add(bytecode[pc+i]);
+			}
+		}
+
+		int[] labelAddresses = program.labelAddresses().clone();
+		for (int l = 0; l < labelAddresses.length; l++) labelAddresses[l] += shift;
+		int[] lines = program.lines().clone();
+		for (int i = 0; i < lines.length; i += 2) lines[i] += shift;
+		return new Program(code.toByteArray(), program.labelNames().clone(), labelAddresses, lines, null);
+	}
+
+	/**
+	 * Internal Helper Method to get a register holding a value, loading the least recently used one if none does.
+	 * @return The register.
+	 * */
+	private byte load(byte value) {
+		byte register = 0;
+		for (byte r = 0; r < REGISTERS; r++) {
+			if (registers[r] == value) {
+				lastUse[r] = instructions;
+				return r;
+			}
+			if (lastUse[r] < lastUse[register]) register = r;
+		}
+		load(register, value);
+		return register;
+	}
+
+	/**
+	 * Internal Helper Method to load a register unless it already holds the value.
+	 * */
+	private void load(byte register, byte value) {
+		if (registers[register] != value) {
+			emit((byte) 0x04, register, value); // parse VALUE
+			registers[register] = value;
+		}
+		lastUse[register] = instructions;
+	}
+
+	private void emit(byte... instruction) {
+		for (byte b : instruction) code.add(b);
+		instructions++;
+	}
+}
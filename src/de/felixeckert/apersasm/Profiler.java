@@ -0,0 +1,310 @@
+package de.felixeckert.apersasm;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Execution Profiler.
+ * Counts executions per opcode and per program counter, how often the
+ * conditional branches were taken and how often each instruction was
+ * directly followed by the next one. Profiling is opt-in, a Runtime
+ * without a Profiler only pays for one null check per instruction.
+ *
+ * Once the Program stopped the counts can be printed as a report
+ * mapped back to the source labels, and are emitted as JFR events.
+ *
+ * The hot pairs of the report are candidates for Superinstructions. The
+ * {@link Decoder} only fuses its fixed set of pairs, profiled pairs are
+ * reported but never fused automatically.
+ *
+ * @author Felix Eckert
+ * */
+public final class Profiler {
+	private static final String[] MNEMONICS = {
+			"apers", "apres", "asper", "pares",
+			"parse #", "parse $", "parse *", "pears $", "pears *",
+			"prase $", "prase *", "presa $", "presa *",
+			"rapes", "reaps", "spare", "spear"
+	};
+
+	/**
+	 * Amount of instructions listed in the hot instruction section of the report
+	 * */
+	private static final int HOT_INSTRUCTIONS = 10;
+	/**
+	 * Amount of pairs listed in the hot pair section of the report
+	 * */
+	private static final int HOT_PAIRS = 10;
+
+	private final Program  program;
+	private final byte[]   bytecode;
+	private final String[] labelNames;
+	private final int[]    labelAddresses;
+
+	private final long[] opcodes = new long[256];
+	private final long[] counts;
+	/**
+	 * Taken count of the conditional branch at each program counter
+	 * */
+	private final long[] taken;
+	/**
+	 * Count of the instruction at each program counter being directly followed by the next one
+	 * */
+	private final long[] pairs;
+
+	/**
+	 * @param program The Program that will be profiled
+	 * */
+	public Profiler(Program program) {
+		this.program  = program;
+		this.bytecode = program.getBytecode();
+		this.counts   = new long[bytecode.length];
+		this.taken    = new long[bytecode.length];
+		this.pairs    = new long[bytecode.length];
+
+		this.labelNames     = program.labelNames();
+		this.labelAddresses = program.labelAddresses();
+	}
+
+	/**
+	 * Records one executed instruction.
+	 * @param opcode The instructions opcode
+	 * @param pc     The instructions address
+	 * @param next   The address execution continues at
+	 * */
+	void record(byte opcode, int pc, int next) {
+		opcodes[opcode & 0xff]++;
+		counts[pc]++;
+		if (opcode >= 0x00 && opcode <= 0x02 && next != pc+5) taken[pc]++;
+		if (opcode != 0x10 && next == pc + Decoder.size(opcode) && next < bytecode.length) pairs[pc]++;
+	}
+
+	/**
+	 * @return How often instructions with the opcode were executed.
+	 * */
+	public long getOpcodeCount(int opcode) {
+		return opcodes[opcode & 0xff];
+	}
+
+	/**
+	 * @return How often the instruction at the address was executed.
+	 * */
+	public long getCount(int address) {
+		return counts[address];
+	}
+
+	/**
+	 * @return How often the conditional branch at the address was taken.
+	 * */
+	public long getTakenCount(int address) {
+		return taken[address];
+	}
+
+	/**
+	 * @return How often the instruction at the address was directly followed by the next one.
+	 * */
+	public long getPairCount(int address) {
+		return pairs[address];
+	}
+
+	/**
+	 * @return How often the instruction a label points to was executed.
+	 * */
+	public long getLabelCount(String label) {
+		for (int i = 0; i < labelNames.length; i++) {
+			if (labelNames[i].equals(label)) return labelCount(i);
+		}
+		return 0;
+	}
+
+	/**
+	 * Prints the profile.
+	 * @param out Where to print to
+	 * */
+	public void printReport(PrintStream out) {
+		long total = 0;
+		for (long count : opcodes) total += count;
+
+		out.printf("\nPROFILE (%d instructions)\n", total);
+
+		out.println("OPCODES:");
+		for (int op = 0; op < opcodes.length; op++) {
+			if (opcodes[op] == 0) continue;
+			out.printf("  %-8s %12d %6.2f%%\n", mnemonic(op), opcodes[op], 100.0 * opcodes[op] / total);
+		}
+
+		out.println("HOT LABELS:");
+		Integer[] labels = new Integer[labelNames.length];
+		for (int i = 0; i < labels.length; i++) labels[i] = i;
+		Arrays.sort(labels, Comparator.comparingLong((Integer i) -> -labelCount(i)));
+		for (int i : labels) {
+			long count = labelCount(i);
+			if (count == 0) break;
+			out.printf("  %-20s $%04x %12d\n", labelNames[i], labelAddresses[i], count);
+		}
+
+		out.println("BRANCHES:");
+		for (int pc = 0; pc < counts.length; pc++) {
+			if (counts[pc] == 0 || bytecode[pc] < 0x00 || bytecode[pc] > 0x02) continue;
+			out.printf("  %-20s $%04x %-8s taken %d / not taken %d (%.1f%%)\n", program.location(pc), pc,
+					mnemonic(bytecode[pc]), taken[pc], counts[pc]-taken[pc], 100.0 * taken[pc] / counts[pc]);
+		}
+
+		out.println("HOT INSTRUCTIONS:");
+		for (int pc : hottest(HOT_INSTRUCTIONS)) {
+			out.printf("  %-20s $%04x %-8s %12d\n", program.location(pc), pc, mnemonic(bytecode[pc]), counts[pc]);
+		}
+
+		out.println("HOT PAIRS:");
+		DecodedProgram decoded = decoded();
+		for (int pc : hottest(pairs, HOT_PAIRS)) {
+			out.printf("  %-20s $%04x %-8s %-8s %12d%s\n", program.location(pc), pc, mnemonic(bytecode[pc]),
+					mnemonic(bytecode[pc + Decoder.size(bytecode[pc])]), pairs[pc], isFused(decoded, pc) ? " fused" : "");
+		}
+	}
+
+	/**
+	 * Emits the profile as JFR events, if a recording is running.
+	 * */
+	public void emitEvents() {
+		for (int i = 0; i < labelNames.length; i++) {
+			LabelEvent event = new LabelEvent();
+			if (!event.isEnabled()) break;
+			event.label      = labelNames[i];
+			event.address    = labelAddresses[i];
+			event.executions = labelCount(i);
+			event.commit();
+		}
+
+		for (int pc = 0; pc < counts.length; pc++) {
+			if (counts[pc] == 0 || bytecode[pc] < 0x00 || bytecode[pc] > 0x02) continue;
+			BranchEvent event = new BranchEvent();
+			if (!event.isEnabled()) break;
+			event.location = program.location(pc);
+			event.address  = pc;
+			event.taken    = taken[pc];
+			event.notTaken = counts[pc] - taken[pc];
+			event.commit();
+		}
+
+		for (int pc : hottest(HOT_INSTRUCTIONS)) {
+			InstructionEvent event = new InstructionEvent();
+			if (!event.isEnabled()) break;
+			event.location   = program.location(pc);
+			event.address    = pc;
+			event.mnemonic   = mnemonic(bytecode[pc]);
+			event.executions = counts[pc];
+			event.commit();
+		}
+
+		DecodedProgram decoded = decoded();
+		for (int pc : hottest(pairs, HOT_PAIRS)) {
+			PairEvent event = new PairEvent();
+			if (!event.isEnabled()) break;
+			event.location   = program.location(pc);
+			event.address    = pc;
+			event.first      = mnemonic(bytecode[pc]);
+			event.second     = mnemonic(bytecode[pc + Decoder.size(bytecode[pc])]);
+			event.executions = pairs[pc];
+			event.fused      = isFused(decoded, pc);
+			event.commit();
+		}
+	}
+
+	private long labelCount(int label) {
+		return labelAddresses[label] < counts.length ? counts[labelAddresses[label]] : 0;
+	}
+
+	/**
+	 * @return The Program the threaded & tiered engines execute, null if it was not verified.
+	 * */
+	private DecodedProgram decoded() {
+		return program.isVerified() ? program.decoded() : null;
+	}
+
+	/**
+	 * @return true if the engines execute the pair starting at the address as a Superinstruction.
+	 * */
+	private static boolean isFused(DecodedProgram decoded, int pc) {
+		if (decoded == null) return false;
+		int index = decoded.indexOf(pc);
+		return index >= 0 && index < decoded.length() && DecodedProgram.isFused(decoded.code[index]);
+	}
+
+	/**
+	 * @return Addresses of the n most executed instructions.
+	 * */
+	private int[] hottest(int n) {
+		return hottest(counts, n);
+	}
+
+	/**
+	 * @return Addresses with the n highest counts.
+	 * */
+	private static int[] hottest(long[] counts, int n) {
+		return IntStream.range(0, counts.length)
+				.filter(pc -> counts[pc] > 0)
+				.boxed()
+				.sorted(Comparator.comparingLong(pc -> -counts[pc]))
+				.limit(n)
+				.mapToInt(Integer::intValue)
+				.toArray();
+	}
+
+	static String mnemonic(int opcode) {
+		return opcode >= 0 && opcode < MNEMONICS.length ? MNEMONICS[opcode] : String.format("0x%02x", opcode & 0xff);
+	}
+
+	@Name("de.felixeckert.apersasm.Label")
+	@Label("Label Executions")
+	@Category("Apers Assembly")
+	@Description("How often the instruction a label points to was executed")
+	static final class LabelEvent extends Event {
+		@Label("Label")      String label;
+		@Label("Address")    int    address;
+		@Label("Executions") long   executions;
+	}
+
+	@Name("de.felixeckert.apersasm.Branch")
+	@Label("Branch Profile")
+	@Category("Apers Assembly")
+	@Description("How often a conditional branch was taken")
+	static final class BranchEvent extends Event {
+		@Label("Location")  String location;
+		@Label("Address")   int    address;
+		@Label("Taken")     long   taken;
+		@Label("Not Taken") long   notTaken;
+	}
+
+	@Name("de.felixeckert.apersasm.Instruction")
+	@Label("Hot Instruction")
+	@Category("Apers Assembly")
+	@Description("One of the most executed instructions")
+	static final class InstructionEvent extends Event {
+		@Label("Location")   String location;
+		@Label("Address")    int    address;
+		@Label("Mnemonic")   String mnemonic;
+		@Label("Executions") long   executions;
+	}
+
+	@Name("de.felixeckert.apersasm.Pair")
+	@Label("Hot Instruction Pair")
+	@Category("Apers Assembly")
+	@Description("One of the instructions most often directly followed by the next one")
+	static final class PairEvent extends Event {
+		@Label("Location")   String  location;
+		@Label("Address")    int     address;
+		@Label("First")      String  first;
+		@Label("Second")     String  second;
+		@Label("Executions") long    executions;
+		@Label("Fused")      boolean fused;
+	}
+}
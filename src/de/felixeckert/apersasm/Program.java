@@ -0,0 +1,187 @@
+package de.felixeckert.apersasm;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * A loaded Program: its Bytecode, label table and, if available,
+ * its pre-decoded form.
+ *
+ * @author Felix Eckert
+ * */
+public final class Program {
+	/**
+	 * Bytecode, null until first requested if it is backed by a mapped file
+	 * */
+	private byte[]     bytecode;
+	private ByteBuffer source;
+	private final int  length;
+	
+	private final String[] labelNames;
+	private final int[]    labelAddresses;
+	/**
+	 * Source line of every instruction as (Address, Line) pairs, sorted by address
+	 * */
+	private final int[]    lines;
+	
+	private DecodedProgram decoded;
+	private boolean        decodeAttempted;
+	
+	private List<Verifier.Diagnostic> diagnostics;
+	/**
+	 * Label indices sorted by address, created on first use
+	 * */
+	private int[] labelOrder;
+	
+	Program(byte[] bytecode, String[] labelNames, int[] labelAddresses, int[] lines, DecodedProgram decoded) {
+		this.bytecode        = bytecode;
+		this.length          = bytecode.length;
+		this.labelNames      = labelNames;
+		this.labelAddresses  = labelAddresses;
+		this.lines           = lines;
+		this.decoded         = decoded;
+		this.decodeAttempted = decoded != null;
+	}
+	
+	/**
+	 * @param source Buffer holding the Bytecode, only copied once requested
+	 * */
+	Program(ByteBuffer source, String[] labelNames, int[] labelAddresses, int[] lines, DecodedProgram decoded) {
+		this.source          = source;
+		this.length          = source.remaining();
+		this.labelNames      = labelNames;
+		this.labelAddresses  = labelAddresses;
+		this.lines           = lines;
+		this.decoded         = decoded;
+		this.decodeAttempted = decoded != null;
+	}
+	
+	/**
+	 * @param bytecode Plain Bytecode without labels
+	 * */
+	public static Program of(byte[] bytecode) {
+		return new Program(bytecode, new String[0], new int[0], new int[0], null);
+	}
+	
+	/**
+	 * @return The Program Bytecode, must not be modified.
+	 * */
+	public synchronized byte[] getBytecode() {
+		if (bytecode == null) {
+			bytecode = new byte[length];
+			source.duplicate().get(bytecode);
+			source = null;
+		}
+		return bytecode;
+	}
+	
+	/**
+	 * @return The Bytecode for absolute reads from index 0, a mapped file is not copied.
+	 * */
+	synchronized ByteBuffer code() {
+		return bytecode != null ? ByteBuffer.wrap(bytecode) : source.slice();
+	}
+	
+	/**
+	 * @return The Bytecode length.
+	 * */
+	public int length() {
+		return length;
+	}
+	
+	/**
+	 * @return Label names mapped to their addresses, in definition order.
+	 * */
+	public Map<String, Integer> getLabels() {
+		Map<String, Integer> labels = new LinkedHashMap<>();
+		for (int i = 0; i < labelNames.length; i++) labels.put(labelNames[i], labelAddresses[i]);
+		return Collections.unmodifiableMap(labels);
+	}
+	
+	String[] labelNames() {
+		return labelNames;
+	}
+	
+	int[] labelAddresses() {
+		return labelAddresses;
+	}
+	
+	int[] lines() {
+		return lines;
+	}
+	
+	/**
+	 * @return The source line of the instruction at an address, 0 if it is not known.
+	 * */
+	int line(int address) {
+		int low = 0, high = lines.length / 2 - 1, found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (lines[mid * 2] <= address) {
+				found = mid;
+				low   = mid + 1;
+			} else {
+				high  = mid - 1;
+			}
+		}
+		return found == -1 ? 0 : lines[found * 2 + 1];
+	}
+	
+	/**
+	 * @return Whether the Bytecode passed the {@link Verifier}.
+	 * */
+	public boolean isVerified() {
+		return getDiagnostics().isEmpty();
+	}
+	
+	/**
+	 * @return Everything the {@link Verifier} rejected, verifying the Program on first use.
+	 * */
+	public synchronized List<Verifier.Diagnostic> getDiagnostics() {
+		if (diagnostics == null) diagnostics = Collections.unmodifiableList(Verifier.verify(this));
+		return diagnostics;
+	}
+	
+	/**
+	 * @return An address relative to the closest preceding label, for diagnostics.
+	 * */
+	synchronized String location(int address) {
+		if (labelOrder == null) {
+			labelOrder = IntStream.range(0, labelNames.length).boxed()
+					.sorted(Comparator.comparingInt(i -> labelAddresses[i]))
+					.mapToInt(Integer::intValue).toArray();
+		}
+		
+		int low = 0, high = labelOrder.length - 1, found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (labelAddresses[labelOrder[mid]] <= address) {
+				found = mid;
+				low   = mid + 1;
+			} else {
+				high  = mid - 1;
+			}
+		}
+		if (found == -1) return String.format("$%04x", address);
+		
+		int label  = labelOrder[found];
+		int offset = address - labelAddresses[label];
+		return offset == 0 ? labelNames[label] : labelNames[label] + "+" + offset;
+	}
+	
+	/**
+	 * @return The decoded Program, decoding it on first use, or null if it can not be decoded.
+	 * */
+	synchronized DecodedProgram decoded() {
+		if (!decodeAttempted) {
+			decoded = Decoder.decode(code());
+			decodeAttempted = true;
+		}
+		return decoded;
+	}
+}
@@ -0,0 +1,183 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the versioned Program container format.
+ *
+ * <pre>
+ * Header (24 bytes, big-endian)
+ *   magic           "APRS"
+ *   version         u16
+ *   decoder version u16, 0 if there is no decoded section
+ *   checksum        u32, CRC32 of everything after the header
+ *   code length     u32, in bytes
+ *   label count     u32
+ *   decoded length  u32, in instructions
+ * Code Section      raw Bytecode
+ * Label Section     per label: u32 address, u16 name length, UTF-8 name
+ * Line Section      u32 count, per instruction: u32 address, u32 source line (since version 2)
+ * Decoded Section   4-byte aligned, instructions followed by their offsets as u32
+ * </pre>
+ *
+ * Files without the magic are loaded as plain Bytecode. Plain Bytecode can never
+ * start with the magic, as 'A' is no valid OP-CODE.
+ *
+ * @author Felix Eckert
+ * */
+public final class ProgramFile {
+	static final int MAGIC       = 0x41505253; // APRS
+	static final int VERSION     = 2;
+	static final int HEADER_SIZE = 24;
+	
+	private ProgramFile() {}
+	
+	/**
+	 * Loads a container or plain Bytecode file by memory-mapping it.
+	 * 
+	 * @return The Program, or null if the container is damaged.
+	 * */
+	public static Program load(Path path) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) { // Plain Bytecode
+			return new Program(buffer, new String[0], new int[0], new int[0], null);
+		}
+		
+		int version        = buffer.getShort(4) & 0xffff;
+		int decoderVersion = buffer.getShort(6) & 0xffff;
+		int checksum       = buffer.getInt(8);
+		int codeLength     = buffer.getInt(12);
+		int labelCount     = buffer.getInt(16);
+		int decodedLength  = buffer.getInt(20);
+		
+		if (version != VERSION && version != 1) {
+			System.err.printf("LOADING ERROR: UNSUPPORTED CONTAINER VERSION %d\n", version);
+			return null;
+		}
+		
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate().position(HEADER_SIZE));
+		if ((int) crc.getValue() != checksum) {
+			System.err.println("LOADING ERROR: CHECKSUM MISMATCH");
+			return null;
+		}
+		
+		try {
+			ByteBuffer code = buffer.duplicate().position(HEADER_SIZE).limit(HEADER_SIZE + codeLength).slice();
+			
+			// Labels
+			buffer.position(HEADER_SIZE + codeLength);
+			String[] labelNames     = new String[labelCount];
+			int[]    labelAddresses = new int[labelCount];
+			for (int i = 0; i < labelCount; i++) {
+				labelAddresses[i] = buffer.getInt();
+				byte[] name = new byte[buffer.getShort() & 0xffff];
+				buffer.get(name);
+				labelNames[i] = new String(name, StandardCharsets.UTF_8);
+			}
+			
+			// Source Lines
+			int[] lines = new int[0];
+			if (version >= 2) {
+				lines = new int[buffer.getInt() * 2];
+				for (int i = 0; i < lines.length; i++) lines[i] = buffer.getInt();
+			}
+			
+			// Decoded Program, skipped if it was produced by a different Decoder
+			DecodedProgram decoded = null;
+			if (decodedLength > 0 && decoderVersion == DecodedProgram.VERSION) {
+				int[] instructions = new int[decodedLength];
+				int[] offsets      = new int[decodedLength];
+				buffer.position(align(buffer.position()));
+				buffer.asIntBuffer().get(instructions).get(offsets);
+				decoded = new DecodedProgram(instructions, offsets);
+			}
+			
+			return new Program(code, labelNames, labelAddresses, lines, decoded);
+		} catch (RuntimeException e) { // Malformed Sections
+			System.err.printf("LOADING ERROR: MALFORMED CONTAINER (%s)\n", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Atomically writes a Program as a container file.
+	 * 
+	 * @param decoded Whether to include the decoded Program
+	 * */
+	public static void save(Path path, Program program, boolean decoded) throws IOException {
+		byte[]         bytecode = program.getBytecode();
+		DecodedProgram decodedProgram = decoded ? program.decoded() : null;
+		String[]       names    = program.labelNames();
+		int[]          addresses = program.labelAddresses();
+		int[]          lines    = program.lines();
+		
+		byte[][] encodedNames = new byte[names.length][];
+		int size = HEADER_SIZE + bytecode.length;
+		for (int i = 0; i < names.length; i++) {
+			encodedNames[i] = names[i].getBytes(StandardCharsets.UTF_8);
+			size += 6 + encodedNames[i].length;
+		}
+		size += 4 + lines.length * 4;
+		int decodedStart = align(size);
+		if (decodedProgram != null) size = decodedStart + decodedProgram.code.length * 8;
+		
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.position(HEADER_SIZE);
+		buffer.put(bytecode);
+		for (int i = 0; i < names.length; i++) {
+			buffer.putInt(addresses[i]);
+			buffer.putShort((short) encodedNames[i].length);
+			buffer.put(encodedNames[i]);
+		}
+		buffer.putInt(lines.length / 2);
+		for (int line : lines) buffer.putInt(line);
+		if (decodedProgram != null) {
+			buffer.position(decodedStart);
+			buffer.asIntBuffer().put(decodedProgram.code).put(decodedProgram.offsets);
+		}
+		
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), HEADER_SIZE, size - HEADER_SIZE);
+		buffer.putInt(0, MAGIC);
+		buffer.putShort(4, (short) VERSION);
+		buffer.putShort(6, (short) (decodedProgram == null ? 0 : DecodedProgram.VERSION));
+		buffer.putInt(8, (int) crc.getValue());
+		buffer.putInt(12, bytecode.length);
+		buffer.putInt(16, names.length);
+		buffer.putInt(20, decodedProgram == null ? 0 : decodedProgram.code.length);
+		
+		write(path, buffer.array());
+	}
+	
+	/**
+	 * Atomically writes a file through a temporary file next to it, so readers
+	 * never see a partially written file.
+	 * */
+	static void write(Path path, byte[] content) throws IOException {
+		Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), ".apers", ".tmp");
+		try {
+			Files.write(temp, content);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	private static int align(int position) {
+		return (position + 3) & ~3;
+	}
+}
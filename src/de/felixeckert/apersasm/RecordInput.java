@@ -0,0 +1,54 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * Input Source reading a single record straight from a buffer, values are read
+ * the same way {@link ChannelInput} reads them. One instance is reused for every
+ * record a worker of the {@link RecordMapper} executes.
+ *
+ * @author Felix Eckert
+ * */
+final class RecordInput implements Input, ChannelInput.ByteSource {
+	private final ChannelInput.Mode mode;
+	private ByteBuffer source;
+	private int        position;
+	private int        limit;
+
+	RecordInput(ChannelInput.Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Starts reading the next record.
+	 * @param source Buffer holding the record, only read through absolute gets
+	 * @param start  Index of the first byte of the record
+	 * @param end    Index behind the last byte of the record
+	 * */
+	void reset(ByteBuffer source, int start, int end) {
+		this.source   = source;
+		this.position = start;
+		this.limit    = end;
+	}
+
+	@Override
+	public byte read() throws IOException {
+		if (mode == ChannelInput.Mode.BINARY) {
+			if (position == limit) throw new NoSuchElementException();
+			return source.get(position++);
+		}
+		return (byte) ChannelInput.readInt(this);
+	}
+
+	@Override
+	public int peek() {
+		return position < limit ? source.get(position) & 0xff : -1;
+	}
+
+	@Override
+	public void skip() {
+		position++;
+	}
+}
@@ -0,0 +1,243 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs one Program once per record of a file on all processors, enabled through -l.
+ *
+ * Records are the lines of the file including their line feed, every record is the whole
+ * input of one run. The file is memory-mapped and cut into batches of records, which workers
+ * execute one record after another. Every worker keeps a single Runtime sharing the Programs
+ * Bytecode and resets it between records, so compiled code is reused across records.
+ * Outputs are written in the order of the records, at most {@link #BATCHES_PER_WORKER}
+ * batches per worker are buffered while waiting for an earlier one.
+ *
+ * A record whose run faults is reported with its line number, the output it produced
+ * until then is kept. A worker failing with an Error stops the mapping, the outputs of
+ * the records before its batch are kept and no further batches are started.
+ *
+ * @author Felix Eckert
+ * */
+public final class RecordMapper {
+	/**
+	 * Bytes of records per batch, a batch ends at the first record ending behind it
+	 * */
+	static final int BATCH_SIZE = 64 * 1024;
+	/**
+	 * Batches per worker that are executed or waiting to be written at once
+	 * */
+	static final int BATCHES_PER_WORKER = 4;
+	/**
+	 * Bytes of the file mapped at once, records can not be longer
+	 * */
+	private static final long WINDOW = 1L << 30;
+
+	/**
+	 * Records executed by one worker in a row
+	 * */
+	private static final class Batch {
+		final ByteBuffer records;
+		final CompletableFuture<Batch> done = new CompletableFuture<>();
+		byte[] output;
+		int    count;
+		/**
+		 * Records that faulted, as indices into the batch
+		 * */
+		final List<Integer>   faults = new ArrayList<>();
+		final List<Throwable> errors = new ArrayList<>();
+
+		Batch(ByteBuffer records) {
+			this.records = records;
+		}
+	}
+
+	private final Program               program;
+	private final Runtime.Engine        engine;
+	private final ChannelInput.Mode     inputMode;
+	private final BlockingQueue<Batch>  queue   = new LinkedBlockingQueue<>();
+	private final List<Thread>          workers = new ArrayList<>();
+	private final WritableByteChannel   output;
+
+	/**
+	 * Records written so far
+	 * */
+	private long records;
+	private long faulted;
+
+	private RecordMapper(Program program, Runtime.Engine engine, ChannelInput.Mode inputMode, WritableByteChannel output) {
+		this.program   = program;
+		this.engine    = engine;
+		this.inputMode = inputMode;
+		this.output    = output;
+	}
+
+	/**
+	 * Runs a Program once per record with one worker per processor.
+	 * @see #map(Program, Path, Runtime.Engine, ChannelInput.Mode, WritableByteChannel, int)
+	 * */
+	public static long map(Program program, Path file, Runtime.Engine engine, ChannelInput.Mode inputMode,
+			WritableByteChannel output) throws IOException {
+		return map(program, file, engine, inputMode, output, java.lang.Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Runs a Program once per record of a file.
+	 *
+	 * @param program   The Program
+	 * @param file      The file holding the records
+	 * @param engine    The Engine to execute with
+	 * @param inputMode How rapes reads values from a record
+	 * @param output    Where the outputs of every record are written to, in order
+	 * @param workers   Amount of worker threads
+	 * @return The amount of records whose run faulted, or -1 if the Program could not run at all
+	 *         or a worker failed.
+	 * */
+	public static long map(Program program, Path file, Runtime.Engine engine, ChannelInput.Mode inputMode,
+			WritableByteChannel output, int workers) throws IOException {
+		if (workers < 1) throw new IllegalArgumentException("Workers have to be positive");
+		if (!Runtime.verify(program, System.err)) return -1;
+
+		RecordMapper mapper = new RecordMapper(program, engine, inputMode, output);
+		for (int i = 0; i < workers; i++) {
+			Thread worker = new Thread(mapper::work, "ApersAssemblyMapper-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			mapper.workers.add(worker);
+		}
+
+		try {
+			return mapper.split(file, workers * BATCHES_PER_WORKER) ? mapper.faulted : -1;
+		} finally {
+			mapper.queue.clear();
+			for (Thread worker : mapper.workers) worker.interrupt();
+		}
+	}
+
+	/**
+	 * Internal Helper Method to cut the file into batches, writing every batch once it is done.
+	 * @param limit Batches submitted but not written yet at most
+	 * @return false if the file could not be split or a worker failed.
+	 * */
+	private boolean split(Path file, int limit) throws IOException {
+		ArrayDeque<Batch> pending = new ArrayDeque<>();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long base = 0; base < size;) {
+				long             length = Math.min(WINDOW, size - base);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+
+				// The next window starts at the record that does not fit into this one
+				int end = (int) length;
+				if (base + length < size) {
+					while (end > 0 && window.get(end - 1) != '\n') end--;
+					if (end == 0) {
+						System.err.printf("LOADING ERROR: RECORD AT BYTE %d IS LONGER THAN %d BYTES\n", base, WINDOW);
+						return false;
+					}
+				}
+
+				for (int start = 0; start < end;) {
+					int cut = Math.min(start + BATCH_SIZE, end);
+					while (cut < end && window.get(cut - 1) != '\n') cut++;
+
+					if (pending.size() == limit && !write(pending.poll())) return false;
+					Batch batch = new Batch(window.slice(start, cut - start));
+					pending.add(batch);
+					queue.add(batch);
+					start = cut;
+				}
+				base += end;
+			}
+		}
+
+		while (!pending.isEmpty()) {
+			if (!write(pending.poll())) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Internal Helper Method to write the output of a batch and report its faulted records.
+	 * @return false if the worker executing the batch failed.
+	 * */
+	private boolean write(Batch batch) throws IOException {
+		try {
+			batch.done.join();
+		} catch (CompletionException e) {
+			System.err.printf("RUNTIME ERROR: RECORD %d: %s\n", records + batch.count + 1, e.getCause());
+			System.err.printf("RUNTIME ERROR: MAPPING STOPPED AFTER %d RECORDS\n", records);
+			return false;
+		}
+
+		ByteBuffer view = ByteBuffer.wrap(batch.output);
+		while (view.hasRemaining()) output.write(view);
+		for (int i = 0; i < batch.faults.size(); i++) {
+			System.err.printf("RUNTIME ERROR: RECORD %d: %s\n", records + batch.faults.get(i) + 1, batch.errors.get(i));
+		}
+
+		records += batch.count;
+		faulted += batch.faults.size();
+		return true;
+	}
+
+	private void work() {
+		Runtime      runtime = new Runtime(program, engine, null, null, null);
+		RecordInput  input   = new RecordInput(inputMode);
+		MemoryOutput output  = new MemoryOutput();
+
+		for (;;) {
+			Batch batch;
+			try {
+				batch = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				execute(batch, runtime, input, output);
+				batch.done.complete(batch);
+			} catch (Error e) { // Keep the worker alive
+				batch.done.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Internal Helper Method to execute every record of a batch.
+	 * */
+	private static void execute(Batch batch, Runtime runtime, RecordInput input, MemoryOutput output) {
+		ByteBuffer records = batch.records;
+		int        limit   = records.limit();
+		output.reset();
+
+		for (int start = 0; start < limit; batch.count++) {
+			int end = start;
+			while (end < limit && records.get(end) != '\n') end++;
+			if (end < limit) end++; // The line feed belongs to the record
+
+			input.reset(records, start, end);
+			runtime.reset(input, output);
+			try {
+				runtime.run();
+			} catch (RuntimeException e) {
+				batch.faults.add(batch.count);
+				batch.errors.add(e);
+			}
+			start = end;
+		}
+		batch.output = output.toByteArray();
+	}
+}
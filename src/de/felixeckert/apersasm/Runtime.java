@@ -2,9 +2,14 @@ package de.felixeckert.apersasm;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
 
 /**
  * Apers Assembly Runtime.
@@ -14,39 +19,180 @@ import java.util.Scanner;
  * @author Felix Eckert
  * */
 public class Runtime implements Runnable {
-	private byte[] MEMORY = new byte[16 * 1024]; // 16 kB of RAM as Stated in Wiki
-	private byte   REGS_A = 0x0;
-	private byte   REGS_B = 0x0;
-	private byte   REGS_C = 0x0;
-	private byte   COMPARE= 0x0;
-	private int    programCounter = 0;
+	/**
+	 * Available Execution Engines
+	 * */
+	public enum Engine {
+		/**
+		 * Interprets the raw Bytecode
+		 * */
+		INTERPRETER,
+		/**
+		 * Decodes the Bytecode at load time and dispatches over the decoded Program
+		 * */
+		THREADED,
+		/**
+		 * Runs on the Threaded Engine and compiles hot blocks to JVM Bytecode
+		 * */
+		JIT
+	}
+	
+	static final int MEMORY_SIZE = 16 * 1024; // 16 kB of RAM as Stated in Wiki
 	
 	/**
-	 * Program Bytecode
+	 * Paged MEMORY, allocated as it is written
+	 * */
+	Memory memory;
+	/**
+	 * The addressable page of MEMORY, taken from {@link #memory} at the start of every time slice
+	 * */
+	byte[] MEMORY;
+	byte   REGS_A = 0x0;
+	byte   REGS_B = 0x0;
+	byte   REGS_C = 0x0;
+	byte   COMPARE= 0x0;
+	int    programCounter = 0;
+	/**
+	 * Amount of instructions executed so far
+	 * */
+	long   instructionCount = 0;
+	/**
+	 * Instruction count at which the current time slice ends
+	 * */
+	long   sliceEnd = Long.MAX_VALUE;
+	
+	/**
+	 * Program Bytecode, null when running on a decoded Program
 	 * */
 	private byte[] bytecode;
+	/**
+	 * Decoded Program, null when running on the Interpreter
+	 * */
+	private DecodedProgram decoded;
+	private Engine         engine;
+	/**
+	 * Tiered Engine state, kept across time slices
+	 * */
+	private JitEngine      jit;
+	/**
+	 * Bytecode length, the program counter reaches it once the Program exited
+	 * */
+	private int            length;
+	/**
+	 * Whether the Program passed the {@link Verifier}
+	 * */
+	private boolean        verified;
 
 	/**
 	 * Thread for the Runtime
 	 * */
 	private Thread thread;
 	/**
-	 * Start Time of Program in NS
+	 * Time spent executing the Program in NS
+	 * */
+	private long  executionTime;
+	
+	/**
+	 * Input Source for rapes
+	 * */
+	private Input  SYS_IN;
+	/**
+	 * Output Sink for reaps
 	 * */
-	private long  startTime;
+	private Output SYS_OUT;
 	/**
-	 * End Time of Program in NS
+	 * Profiler recording every instruction, null when not profiling
 	 * */
-	private long  endTime;
+	private Profiler profiler;
+	/**
+	 * Recorder of the most recent instructions, null when not recording
+	 * */
+	FlightRecorder recorder;
 	
-	private Scanner SYS_IN;
+	/**
+	 * Whether the Runtime reports to the {@link Metrics}
+	 * */
+	private final boolean metered;
+	/**
+	 * Time of the first time slice in NS, -1 before it
+	 * */
+	private long    started = -1;
+	private boolean stopped;
+	// Values read & output since the last report to the Metrics
+	private long    inputCount;
+	private long    outputCount;
 	
 	/**
-	 * @param bytecode The Program Bytecode
+	 * Creates a Runtime to be executed on the calling Thread through {@link #run(long)}.
+	 * 
+	 * @param program  The Program
+	 * @param engine   The Engine to execute with
+	 * @param input    Where rapes reads from
+	 * @param output   Where reaps outputs to
+	 * */
+	public Runtime(Program program, Engine engine, Input input, Output output) {
+		this(program, engine, input, output, null);
+	}
+	
+	/**
+	 * @param profiler Where to record the profile, may be null
+	 * @see #Runtime(Program, Engine, Input, Output)
+	 * */
+	Runtime(Program program, Engine engine, Input input, Output output, Profiler profiler) {
+		this(program, engine, input, output, profiler, true);
+	}
+	
+	/**
+	 * @param metered Whether to report to the {@link Metrics}, false for Runtimes that are part of compilation
+	 * */
+	Runtime(Program program, Engine engine, Input input, Output output, Profiler profiler, boolean metered) {
+		this.memory = new Memory();
+		this.length = program.length();
+		this.SYS_IN = input;
+		this.SYS_OUT = output;
+		this.engine = engine;
+		this.profiler = profiler;
+		this.verified = program.isVerified();
+		
+		if (profiler != null && engine != Engine.INTERPRETER) { // Profiles refer to the raw Bytecode
+			System.err.println("RUNTIME WARNING: PROFILING RUNS ON THE INTERPRETER");
+			this.engine = Engine.INTERPRETER;
+		}
+		if (this.engine != Engine.INTERPRETER) {
+			this.decoded = program.decoded();
+			if (decoded == null) {
+				System.err.println("RUNTIME WARNING: FALLING BACK TO INTERPRETER");
+				this.engine = Engine.INTERPRETER;
+			}
+		}
+		if (this.engine == Engine.INTERPRETER) this.bytecode = program.getBytecode();
+		
+		this.metered = metered;
+		if (metered) Metrics.queued();
+	}
+	
+	/**
+	 * Copies the state of a Runtime, sharing its MEMORY copy-on-write.
+	 * @see #fork(Input, Output)
 	 * */
-	private Runtime(byte[] bytecode) {
-		this.bytecode = bytecode;
-		this.SYS_IN = new Scanner(System.in);
+	private Runtime(Runtime parent, Input input, Output output) {
+		this.memory           = parent.memory.fork();
+		this.REGS_A           = parent.REGS_A;
+		this.REGS_B           = parent.REGS_B;
+		this.REGS_C           = parent.REGS_C;
+		this.COMPARE          = parent.COMPARE;
+		this.programCounter   = parent.programCounter;
+		this.instructionCount = parent.instructionCount;
+		this.bytecode         = parent.bytecode;
+		this.decoded          = parent.decoded;
+		this.engine           = parent.engine;
+		this.length           = parent.length;
+		this.verified         = parent.verified;
+		this.SYS_IN           = input;
+		this.SYS_OUT          = output;
+		
+		this.metered = parent.metered;
+		if (metered) Metrics.queued();
 	}
 	
 	public void start() {
@@ -55,9 +201,109 @@ public class Runtime implements Runnable {
 	}
 	
 	public void run() {
-		startTime = System.nanoTime();
-		while (programCounter < bytecode.length) {
+		runSlice(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Executes the Program on the calling Thread for a number of instructions, it can be
+	 * continued or {@link #fork(Input, Output) forked} afterwards. On the Threaded & Tiered
+	 * Engines execution stops at the first taken jump once the budget is used up.
+	 * 
+	 * @param budget Amount of instructions to execute
+	 * @return Whether the Program exited.
+	 * @throws RuntimeException The fault the Program stopped at
+	 * */
+	public boolean run(long budget) {
+		if (budget < 1) throw new IllegalArgumentException("Budget has to be positive");
+		return runSlice(budget);
+	}
+	
+	/**
+	 * Forks the Runtime at its current state, so many continuations can be explored from it.
+	 * MEMORY is shared copy-on-write, neither side copies a page until it writes to it.
+	 * The Runtime must not be executing while it is forked. The fork compiles its own code
+	 * on the Tiered Engine and does not profile or record.
+	 * 
+	 * @param input  Where rapes of the fork reads from
+	 * @param output Where reaps of the fork outputs to
+	 * @return A Runtime continuing at the current instruction.
+	 * */
+	public Runtime fork(Input input, Output output) {
+		return new Runtime(this, input, output);
+	}
+	
+	/**
+	 * Executes the Program for a time slice. Slices end once the budget is used up,
+	 * on the Threaded & Tiered Engines at the next taken jump.
+	 * 
+	 * @param budget Amount of instructions to execute
+	 * @return Whether the Program exited.
+	 * */
+	boolean runSlice(long budget) {
+		long start = System.nanoTime();
+		long count = instructionCount;
+		if (metered && started == -1) {
+			started = start;
+			Metrics.started();
+		}
+		
+		sliceEnd = budget > Long.MAX_VALUE - instructionCount ? Long.MAX_VALUE : instructionCount + budget;
+		MEMORY   = memory.page(0); // Copied here if it is shared with a fork
+		try {
+			switch (engine) {
+			case THREADED:
+				ThreadedEngine.execute(this, decoded, null);
+				break;
+			case JIT:
+				if (jit == null) jit = new JitEngine(decoded, verified);
+				jit.execute(this);
+				break;
+			default:
+				interpret();
+				break;
+			}
+		} catch (RuntimeException e) {
+			stop(true);
+			throw e;
+		} finally {
+			flushOutput();
+			executionTime += System.nanoTime() - start;
+			if (metered) {
+				Metrics.executed(instructionCount - count, inputCount, outputCount);
+				inputCount  = 0;
+				outputCount = 0;
+			}
+		}
+		
+		if (programCounter < length) return false;
+		stop(false);
+		return true;
+	}
+	
+	/**
+	 * Reports to the {@link Metrics} that the Program stopped, unless it already did.
+	 * Called for Programs that are not executed any further before they exited.
+	 * 
+	 * @param failed Whether the Program faulted or was stopped before it exited
+	 * */
+	void stop(boolean failed) {
+		if (!metered || stopped) return;
+		stopped = true;
+		Metrics.stopped(started, failed);
+	}
+	
+	/**
+	 * Executes the raw Bytecode.
+	 * */
+	private void interpret() {
+		final Profiler       profiler = this.profiler;
+		final FlightRecorder recorder = this.recorder;
+		final long           sliceEnd = this.sliceEnd;
+		while (programCounter < bytecode.length && instructionCount < sliceEnd) {
+			int  pc = programCounter;
 			byte instruction = bytecode[programCounter];
+			if (recorder != null) recorder.record(pc, REGS_A, REGS_B, REGS_C, COMPARE);
+			instructionCount++;
 			byte register;
 			byte address;
 			byte value;
@@ -65,27 +311,27 @@ public class Runtime implements Runnable {
 			switch (instruction) {
 			case 0x00: // apers (Branch Result Zero)
 				if (COMPARE == 0x00) {
-					programCounter = getInt(programCounter+1);
+					programCounter = getInt(bytecode, programCounter+1);
 				} else {
 					programCounter += 5;
 				}
 				break;
 			case 0x01: // apres (Branch Result Greater)
 				if (COMPARE > 0x00) {
-					programCounter = getInt(programCounter+1);
+					programCounter = getInt(bytecode, programCounter+1);
 				} else {
 					programCounter += 5;
 				}
 				break;
 			case 0x02: // asper (Branch Result Less)
 				if (COMPARE < 0x00) {
-					programCounter = getInt(programCounter+1);
+					programCounter = getInt(bytecode, programCounter+1);
 				} else {
 					programCounter += 5;
 				}
 				break;
 			case 0x03: // pares (Branch Non Conditional)
-				programCounter = getInt(programCounter+1);
+				programCounter = getInt(bytecode, programCounter+1);
 				break;
 			case 0x04: // parse (Load Register, VALUE)
 				register = bytecode[programCounter+1];
@@ -162,12 +408,12 @@ public class Runtime implements Runnable {
 				break;
 			case 0x0d: // rapes (Input To Register)
 				register = bytecode[programCounter+1];
-				loadRegister(register, (byte) SYS_IN.nextInt());
+				loadRegister(register, input());
 				programCounter += 2;
 				break;
 			case 0x0e: // reaps (Output Register)
 				register = bytecode[programCounter+1];
-				System.out.print((char) getRegisterValue(register));
+				output(getRegisterValue(register));
 				programCounter += 2;
 				break;
 			case 0x0f: // spare (Compare Registers)
@@ -180,23 +426,26 @@ public class Runtime implements Runnable {
 			case 0x10: // spear (Exit Program)
 				programCounter = bytecode.length;
 				break;
+			default: // Only reachable in Programs that failed verification
+				throw new IllegalStateException(String.format("UNKNOWN OP-CODE %02x AT $%x", instruction, pc));
 			}
+			
+			if (profiler != null) profiler.record(instruction, pc, programCounter);
 		}
-		endTime = System.nanoTime();
 	}
 
 	/**
-	 * Internal helper method to get a Integer from
+	 * Internal helper method to get a big-endian Integer from
 	 * program bytecode.
 	 * 
-	 * @param i Where to start assembling the Integer at
+	 * @param bytecode The Program Bytecode
+	 * @param i        Where to start assembling the Integer at
 	 * @return A 32-bit integer.
 	 * */
-	private int getInt(int i) {
+	static int getInt(byte[] bytecode, int i) {
 		int value = 0;
-	    for (int j = i; j < i+4; j++) {
-	        int shift = (4 - 1 - j) * 8;
-	        value += (bytecode[j] & 0x000000FF) << shift;
+	    for (int j = 0; j < 4; j++) {
+	        value = (value << 8) | (bytecode[i+j] & 0x000000FF);
 	    }
 	    return value;
 	}
@@ -205,7 +454,7 @@ public class Runtime implements Runnable {
 	 * @return The Time the Program took to execute in nanoseconds.
 	 * */
 	public long getExecutionTime() {
-		return endTime-startTime;
+		return executionTime;
 	}
 	
 	/**
@@ -265,32 +514,402 @@ public class Runtime implements Runnable {
 		}
 	}
 	
-	private boolean isAlive() {
-		return thread.isAlive();
+	/**
+	 * Reads a value for rapes.
+	 * */
+	byte input() {
+		flushOutput(); // Make prompts visible before blocking
+		try {
+			byte value = SYS_IN.read();
+			inputCount++;
+			return value;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Writes a value for reaps.
+	 * */
+	void output(byte value) {
+		outputCount++;
+		try {
+			SYS_OUT.write(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private void flushOutput() {
+		try {
+			SYS_OUT.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Runs the Program on the calling Thread.
+	 * @return The final state.
+	 * */
+	ExecutionResult runForResult() {
+		Throwable error = null;
+		try {
+			run();
+		} catch (RuntimeException e) {
+			error = e;
+		}
+		return result(error);
+	}
+	
+	/**
+	 * @param error The fault the Program stopped at, null if it exited
+	 * @return The current state.
+	 * */
+	ExecutionResult result(Throwable error) {
+		return new ExecutionResult(
+				error == null ? ExecutionResult.State.EXITED : ExecutionResult.State.FAILED, error,
+				REGS_A, REGS_B, REGS_C, COMPARE, programCounter, memory.fork(),
+				instructionCount, getExecutionTime());
+	}
+	
+	/**
+	 * Starts the Program over from a fresh state, keeping the Engine and the code it compiled.
+	 * @param input  Where rapes reads from from now on
+	 * @param output Where reaps outputs to from now on
+	 * */
+	void reset(Input input, Output output) {
+		if (metered && (started != -1 || stopped)) { // Still queued otherwise
+			stop(true);
+			Metrics.queued();
+			started = -1;
+			stopped = false;
+		}
+		
+		memory           = new Memory();
+		REGS_A           = 0x0;
+		REGS_B           = 0x0;
+		REGS_C           = 0x0;
+		COMPARE          = 0x0;
+		programCounter   = 0;
+		instructionCount = 0;
+		SYS_IN           = input;
+		SYS_OUT          = output;
+	}
+	
+	/**
+	 * Executes a Program asynchronously.
+	 * 
+	 * @param program  The Program
+	 * @param engine   The Engine to execute with
+	 * @param input    Where rapes reads from
+	 * @param output   Where reaps outputs to
+	 * @param executor Where to run the Program
+	 * @return A Future completing with the final state once the Program stops.
+	 * */
+	public static CompletableFuture<ExecutionResult> execute(Program program, Engine engine,
+			Input input, Output output, Executor executor) {
+		Runtime runtime = new Runtime(program, engine, input, output, null);
+		return CompletableFuture.supplyAsync(runtime::runForResult, executor);
+	}
+	
+	/**
+	 * Executes a Program asynchronously, starting from a Snapshot.
+	 * 
+	 * @param snapshot The state to start from, has to be captured from the Program
+	 * @see #execute(Program, Engine, Input, Output, Executor)
+	 * */
+	public static CompletableFuture<ExecutionResult> execute(Program program, Snapshot snapshot, Engine engine,
+			Input input, Output output, Executor executor) {
+		if (!snapshot.matches(program)) throw new IllegalArgumentException("Snapshot does not match the Program");
+		
+		Runtime runtime = new Runtime(program, engine, input, output, null);
+		snapshot.restore(runtime);
+		return CompletableFuture.supplyAsync(runtime::runForResult, executor);
+	}
+	
+	/**
+	 * Executes a Program asynchronously on the Interpreter, recording a profile.
+	 * 
+	 * @param profiler Where to record the profile, has to be created for the Program
+	 * @see #execute(Program, Engine, Input, Output, Executor)
+	 * */
+	public static CompletableFuture<ExecutionResult> execute(Program program, Profiler profiler,
+			Input input, Output output, Executor executor) {
+		Runtime runtime = new Runtime(program, Engine.INTERPRETER, input, output, profiler);
+		return CompletableFuture.supplyAsync(runtime::runForResult, executor);
+	}
+	
+	/**
+	 * Executes a Program asynchronously, recording the most recent instructions.
+	 * 
+	 * @param recorder Where to record the instructions, can be dumped at any time
+	 * @see #execute(Program, Engine, Input, Output, Executor)
+	 * */
+	public static CompletableFuture<ExecutionResult> execute(Program program, FlightRecorder recorder, Engine engine,
+			Input input, Output output, Executor executor) {
+		Runtime runtime = new Runtime(program, engine, input, output, null);
+		runtime.recorder = recorder;
+		return CompletableFuture.supplyAsync(runtime::runForResult, executor);
+	}
+	
+	/**
+	 * Executes a Program asynchronously on a virtual thread, or a daemon
+	 * platform thread where virtual threads are not available.
+	 * 
+	 * @see #execute(Program, Engine, Input, Output, Executor)
+	 * */
+	public static CompletableFuture<ExecutionResult> execute(Program program, Engine engine,
+			Input input, Output output) {
+		return execute(program, engine, input, output, DefaultExecutor.INSTANCE);
+	}
+	
+	/**
+	 * @see #execute(Program, Engine, Input, Output, Executor)
+	 * */
+	public static CompletableFuture<ExecutionResult> execute(byte[] bytecode, Engine engine,
+			Input input, Output output, Executor executor) {
+		return execute(Program.of(bytecode), engine, input, output, executor);
+	}
+	
+	/**
+	 * @see #execute(Program, Engine, Input, Output)
+	 * */
+	public static CompletableFuture<ExecutionResult> execute(byte[] bytecode, Engine engine,
+			Input input, Output output) {
+		return execute(Program.of(bytecode), engine, input, output);
+	}
+	
+	/**
+	 * Executes one Program once per input on the calling thread. Instances are
+	 * executed side by side in lockstep, which is a lot faster than executing
+	 * them one after another if they mostly take the same branches.
+	 * 
+	 * @param program The Program
+	 * @param inputs  Where rapes reads from, per instance
+	 * @param outputs Where reaps outputs to, per instance
+	 * @return The final state of every instance.
+	 * */
+	public static ExecutionResult[] executeBatch(Program program, Input[] inputs, Output[] outputs) {
+		if (inputs.length != outputs.length) throw new IllegalArgumentException("Every input needs an output");
+		
+		DecodedProgram decoded = program.isVerified() ? program.decoded() : null;
+		if (decoded != null) return LockstepEngine.execute(decoded, inputs, outputs);
+		
+		// Lockstep execution relies on verification, run the instances one by one
+		ExecutionResult[] results = new ExecutionResult[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			results[i] = execute(program, Engine.INTERPRETER, inputs[i], outputs[i], Runnable::run).join();
+		}
+		return results;
+	}
+	
+	/**
+	 * Lazily created default Executor
+	 * */
+	private static final class DefaultExecutor {
+		static final Executor INSTANCE = create();
+		
+		private static Executor create() {
+			try { // Java 21+
+				return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				return Executors.newCachedThreadPool(task -> {
+					Thread thread = new Thread(task, "ApersAssemblyRuntime");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Options of {@link #runProgram(String, Options)} & {@link #runProgramDirect(Program, Options)}.
+	 * By default Programs run on the Interpreter, read decimal input and are neither profiled,
+	 * started from a Snapshot nor recorded.
+	 * */
+	public static final class Options {
+		private Engine            engine    = Engine.INTERPRETER;
+		private ChannelInput.Mode inputMode = ChannelInput.Mode.DECIMAL;
+		private boolean           profile;
+		private Path              snapshot;
+		private boolean           trace;
+		
+		/**
+		 * @param engine The Engine to execute with
+		 * */
+		public Options engine(Engine engine) {
+			this.engine = engine;
+			return this;
+		}
+		
+		/**
+		 * @param inputMode How rapes reads from the standard input
+		 * */
+		public Options inputMode(ChannelInput.Mode inputMode) {
+			this.inputMode = inputMode;
+			return this;
+		}
+		
+		/**
+		 * @param profile Whether to print a profile once the Program stopped
+		 * */
+		public Options profile(boolean profile) {
+			this.profile = profile;
+			return this;
+		}
+		
+		/**
+		 * @param snapshot Snapshot to start from, captured at the first input if it does not exist. May be null
+		 * */
+		public Options snapshot(Path snapshot) {
+			this.snapshot = snapshot;
+			return this;
+		}
+		
+		/**
+		 * @param trace Whether to dump the most recent instructions if the Program faults or is interrupted
+		 * */
+		public Options trace(boolean trace) {
+			this.trace = trace;
+			return this;
+		}
 	}
 	
 	public static void runProgram(String inputFile) {
-		byte[] bytecode = null;
-		Path   path = new File(inputFile).toPath();
+		runProgram(inputFile, new Options());
+	}
+	
+	/**
+	 * Loads a Program from Bytecode or a container file and runs it on the standard input & output.
+	 * */
+	public static void runProgram(String inputFile, Options options) {
+		Program program = null;
+		Path    path = new File(inputFile).toPath();
 		try {
-			bytecode = Files.readAllBytes(path);
+			program = ProgramFile.load(path);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		if (program == null) return;
 		
-		runProgramDirect(bytecode);
+		runProgramDirect(program, options);
 	}
 
 	public static void runProgramDirect(byte[] bytecode) {
-		Runtime runtime = new Runtime(bytecode);
-		runtime.start();
+		runProgramDirect(Program.of(bytecode), new Options());
+	}
+	
+	/**
+	 * Runs a Program on the standard input & output.
+	 * */
+	public static void runProgramDirect(Program program, Options options) {
+		if (!verify(program, System.err)) return;
+		
+		Output   output   = ChannelOutput.stdout();
+		Snapshot snapshot = null;
+		if (options.snapshot != null) {
+			snapshot = loadOrCapture(program, options.engine, output, options.snapshot);
+			if (snapshot == null) return;
+		}
+		
+		Profiler profiler = options.profile ? new Profiler(program) : null;
+		Runtime  runtime  = new Runtime(program, options.engine, ChannelInput.stdin(options.inputMode), output, profiler);
+		if (snapshot != null) snapshot.restore(runtime);
+		
+		Thread dump = null;
+		if (options.trace) { // Dump on Ctrl-C, so hung Programs can be inspected
+			FlightRecorder recorder = new FlightRecorder();
+			runtime.recorder = recorder;
+			dump = new Thread(() -> {
+				System.err.println("\nRUNTIME INTERRUPTED");
+				recorder.dump(program, System.err);
+			}, "ApersAssemblyFlightRecorder");
+			java.lang.Runtime.getRuntime().addShutdownHook(dump);
+		}
+		
+		try {
+			runtime.runAndReport(program, null, System.out, System.err);
+		} finally {
+			if (dump != null) java.lang.Runtime.getRuntime().removeShutdownHook(dump);
+		}
+	}
+	
+	/**
+	 * Prints why a Program failed verification.
+	 * @param err Where to print to
+	 * @return Whether the Program passed verification and can be run.
+	 * */
+	static boolean verify(Program program, PrintStream err) {
+		if (program.isVerified()) return true;
+		
+		for (Verifier.Diagnostic diagnostic : program.getDiagnostics()) {
+			err.println("VERIFICATION ERROR: " + diagnostic);
+		}
+		return false;
+	}
+	
+	/**
+	 * Runs the Program on the calling Thread the way the command line does. A fault is printed
+	 * with the recorded instructions, once the Program stopped its execution time and profile
+	 * are printed.
+	 * 
+	 * @param program     The Program the Runtime was created for
+	 * @param interrupted Checked between time slices, the Program is stopped without a report
+	 *                    once it returns true. May be null to run without time slices
+	 * @param out         Where to print the execution time to
+	 * @param err         Where to print faults & the profile to
+	 * @return false if the Program was interrupted.
+	 * */
+	boolean runAndReport(Program program, BooleanSupplier interrupted, PrintStream out, PrintStream err) {
 		try {
-			while (runtime.isAlive()) {
-				Thread.sleep(100);
+			if (interrupted == null) {
+				run();
+			} else {
+				while (!runSlice(Scheduler.DEFAULT_SLICE)) {
+					if (interrupted.getAsBoolean()) {
+						stop(true);
+						return false;
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			err.printf("RUNTIME ERROR: %s\n", e);
+			if (recorder != null) {
+				err.printf("RUNTIME ERROR: PROGRAM FAULTED AT $%04x (%s)\n", programCounter, program.location(programCounter));
+				recorder.dump(program, err);
+			}
+		}
+		out.printf("\nFinished execution in %s nanoseconds\n", getExecutionTime());
+		
+		if (profiler != null) {
+			profiler.printReport(err);
+			profiler.emitEvents();
+		}
+		return true;
+	}
+	
+	/**
+	 * Internal Helper Method to load a Snapshot, or capture and save it at the first input.
+	 * @return The Snapshot or null if there is no usable one.
+	 * */
+	private static Snapshot loadOrCapture(Program program, Engine engine, Output output, Path snapshotFile) {
+		try {
+			if (Files.exists(snapshotFile)) {
+				Snapshot snapshot = Snapshot.load(snapshotFile);
+				if (snapshot != null && !snapshot.matches(program)) {
+					System.err.println("RUNTIME ERROR: SNAPSHOT WAS CAPTURED FROM A DIFFERENT PROGRAM");
+					return null;
+				}
+				return snapshot;
 			}
-		} catch (InterruptedException e) {
+			
+			Snapshot snapshot = Snapshot.capture(program, engine, output);
+			if (snapshot != null) snapshot.save(snapshotFile);
+			return snapshot;
+		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
 		}
-		System.out.printf("\nFinished execution in %s nanoseconds\n", runtime.getExecutionTime());
 	}
 }
@@ -0,0 +1,227 @@
+package de.felixeckert.apersasm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes many Programs on a fixed pool of worker threads.
+ * Programs run in time slices of a fixed amount of instructions, after every
+ * slice a Program goes to the back of the queue of its priority. Higher
+ * priorities always run first, Programs of the same priority share the
+ * workers round-robin.
+ *
+ * Instruction & time limits are checked between slices, a Program exceeding
+ * one fails with a {@link LimitExceededException}. Time limits count from the
+ * first slice of a Program. A slice can not be preempted while rapes blocks,
+ * Programs should read from Inputs that do not block.
+ *
+ * @author Felix Eckert
+ * */
+public final class Scheduler implements AutoCloseable {
+	/**
+	 * Default amount of instructions per time slice
+	 * */
+	public static final long DEFAULT_SLICE = 10_000;
+
+	/**
+	 * Error of a Program that exceeded its instruction or time limit
+	 * */
+	public static final class LimitExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		LimitExceededException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A submitted Program
+	 * */
+	private static final class Task implements Comparable<Task> {
+		final Runtime runtime;
+		final CompletableFuture<ExecutionResult> future = new CompletableFuture<>();
+		final int     priority;
+		final long    instructionLimit;
+		final long    timeLimit;
+		/**
+		 * Time of the first slice in NS, -1 before it
+		 * */
+		long started = -1;
+		/**
+		 * Position in the round-robin of its priority
+		 * */
+		long turn;
+
+		Task(Runtime runtime, int priority, long instructionLimit, long timeLimit) {
+			this.runtime          = runtime;
+			this.priority         = priority;
+			this.instructionLimit = instructionLimit;
+			this.timeLimit        = timeLimit;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			if (priority != other.priority) return Integer.compare(other.priority, priority);
+			return Long.compare(turn, other.turn);
+		}
+	}
+
+	private final long slice;
+	private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+	private final AtomicLong turns = new AtomicLong();
+	private final List<Thread> workers = new ArrayList<>();
+	private volatile boolean closed;
+
+	/**
+	 * @param workers Amount of worker threads
+	 * @param slice   Amount of instructions per time slice
+	 * */
+	public Scheduler(int workers, long slice) {
+		if (workers < 1 || slice < 1) throw new IllegalArgumentException("Workers and slice have to be positive");
+		this.slice = slice;
+
+		for (int i = 0; i < workers; i++) {
+			Thread worker = new Thread(this::work, "ApersAssemblyScheduler-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			this.workers.add(worker);
+		}
+	}
+
+	/**
+	 * Creates a Scheduler with one worker per processor.
+	 * */
+	public Scheduler() {
+		this(java.lang.Runtime.getRuntime().availableProcessors(), DEFAULT_SLICE);
+	}
+
+	/**
+	 * Schedules a Program with priority 0 and without limits.
+	 * @see #submit(Program, Runtime.Engine, Input, Output, int, long, long)
+	 * */
+	public CompletableFuture<ExecutionResult> submit(Program program, Runtime.Engine engine,
+			Input input, Output output) {
+		return submit(program, engine, input, output, 0, 0, 0);
+	}
+
+	/**
+	 * Schedules a Program. Cancelling the Future stops the Program after its current slice.
+	 *
+	 * @param program          The Program
+	 * @param engine           The Engine to execute with
+	 * @param input            Where rapes reads from
+	 * @param output           Where reaps outputs to
+	 * @param priority         Programs with a higher priority run first
+	 * @param instructionLimit Amount of instructions the Program may execute, 0 for no limit
+	 * @param timeLimit        Time in NS the Program may run for, 0 for no limit
+	 * @return A Future completing with the final state once the Program stops.
+	 * */
+	public CompletableFuture<ExecutionResult> submit(Program program, Runtime.Engine engine,
+			Input input, Output output, int priority, long instructionLimit, long timeLimit) {
+		if (closed) throw new IllegalStateException("Scheduler is closed");
+		if (instructionLimit < 0 || timeLimit < 0) throw new IllegalArgumentException("Limits can not be negative");
+
+		Task task = new Task(new Runtime(program, engine, input, output, null), priority, instructionLimit, timeLimit);
+		task.turn = turns.getAndIncrement();
+		queue.add(task);
+		return task.future;
+	}
+
+	/**
+	 * @return The amount of Programs waiting for their next slice.
+	 * */
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops the workers once their current slice ended and cancels every queued Program.
+	 * */
+	@Override
+	public void close() {
+		closed = true;
+		for (Thread worker : workers) worker.interrupt();
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		Task task;
+		while ((task = queue.poll()) != null) {
+			task.runtime.stop(true);
+			task.future.cancel(false);
+		}
+	}
+
+	private void work() {
+		while (!closed) {
+			Task task;
+			try {
+				task = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (task.future.isDone()) { // Cancelled
+				task.runtime.stop(true);
+				continue;
+			}
+
+			if (runSlice(task)) {
+				task.turn = turns.getAndIncrement(); // Back of the queue
+				queue.add(task);
+			}
+		}
+	}
+
+	/**
+	 * Internal Helper Method to execute a single slice of a Program.
+	 * @return Whether the Program has to be scheduled again.
+	 * */
+	private boolean runSlice(Task task) {
+		Runtime runtime = task.runtime;
+		if (task.started == -1) task.started = System.nanoTime();
+
+		long budget = slice;
+		if (task.instructionLimit != 0) budget = Math.min(budget, task.instructionLimit - runtime.instructionCount);
+
+		try {
+			if (runtime.runSlice(budget)) {
+				task.future.complete(runtime.result(null));
+				return false;
+			}
+		} catch (RuntimeException e) {
+			task.future.complete(runtime.result(e));
+			return false;
+		} catch (Error e) { // Keep the worker alive
+			runtime.stop(true);
+			task.future.completeExceptionally(e);
+			return false;
+		}
+
+		if (task.instructionLimit != 0 && runtime.instructionCount >= task.instructionLimit) {
+			runtime.stop(true);
+			task.future.complete(runtime.result(new LimitExceededException(
+					String.format("INSTRUCTION LIMIT OF %d EXCEEDED", task.instructionLimit))));
+			return false;
+		}
+		if (task.timeLimit != 0 && System.nanoTime() - task.started >= task.timeLimit) {
+			runtime.stop(true);
+			task.future.complete(runtime.result(new LimitExceededException(
+					String.format("TIME LIMIT OF %d NS EXCEEDED", task.timeLimit))));
+			return false;
+		}
+		if (closed) {
+			runtime.stop(true);
+			task.future.cancel(false);
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,44 @@
+package de.felixeckert.apersasm;
+
+import java.nio.ByteBuffer;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Memory Backing on a MemorySegment, only loaded when the jdk.incubator.foreign module
+ * is available (--add-modules jdk.incubator.foreign).
+ *
+ * @author Felix Eckert
+ * */
+final class SegmentBacking implements Memory.Backing {
+	private final MemorySegment segment;
+	private final int           size;
+
+	private SegmentBacking(MemorySegment segment) {
+		this.segment = segment;
+		this.size    = (int) segment.byteSize();
+	}
+
+	/**
+	 * @param source Read-only buffer, the segment shares its bytes and keeps it reachable
+	 * */
+	static Memory.Backing of(ByteBuffer source) {
+		return new SegmentBacking(MemorySegment.ofByteBuffer(source));
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public byte get(int address) {
+		return MemoryAccess.getByteAtOffset(segment, address);
+	}
+
+	@Override
+	public void copy(int address, byte[] page, int length) {
+		MemorySegment.ofArray(page).copyFrom(segment.asSlice(address, length));
+	}
+}
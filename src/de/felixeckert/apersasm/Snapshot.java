@@ -0,0 +1,198 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Saved Runtime state: MEMORY, registers, COMPARE and the program counter.
+ * Snapshots are usually captured right before a Program reads its first
+ * input, so the initialization phase only has to run once.
+ *
+ * <pre>
+ * Header (32 bytes, big-endian)
+ *   magic           "APSN"
+ *   version         u16
+ *   reserved        u16
+ *   checksum        u32, CRC32 of the memory section
+ *   program         u32, CRC32 of the Programs Bytecode
+ *   program counter u32
+ *   registers       u8 a, b, c, compare
+ *   memory size     u32
+ *   stored length   u32, trailing zeros of the memory are not stored
+ * Memory Section
+ * </pre>
+ *
+ * Snapshots share their memory copy-on-write with every Runtime restored
+ * from them, so restoring one does not copy any memory until it is written.
+ * The memory of a loaded Snapshot stays in the mapped file, pages are only
+ * copied to the heap once a Runtime writes to them.
+ *
+ * @author Felix Eckert
+ * */
+public final class Snapshot {
+	static final int MAGIC       = 0x4150534e; // APSN
+	static final int VERSION     = 1;
+	static final int HEADER_SIZE = 32;
+
+	private final int        program;
+	private final int        programCounter;
+	private final byte       registerA;
+	private final byte       registerB;
+	private final byte       registerC;
+	private final byte       compare;
+	private final int        memorySize;
+	private final Memory     memory;
+
+	private Snapshot(int program, int programCounter, byte registerA, byte registerB, byte registerC,
+			byte compare, int memorySize, Memory memory) {
+		this.program        = program;
+		this.programCounter = programCounter;
+		this.registerA      = registerA;
+		this.registerB      = registerB;
+		this.registerC      = registerC;
+		this.compare        = compare;
+		this.memorySize     = memorySize;
+		this.memory         = memory.fork(); // Only read from now on, restoring forks it concurrently
+	}
+
+	/**
+	 * Signals that the Program reached its first input
+	 * */
+	private static final class InputReached extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		InputReached() {
+			super("Input Reached", null, false, false);
+		}
+	}
+
+	/**
+	 * Executes a Program on the calling thread until right before its first rapes,
+	 * or until it exits.
+	 *
+	 * @param program The Program
+	 * @param engine  The Engine to execute with
+	 * @param output  Where reaps outputs to
+	 * @return The Snapshot, or null if the Program faulted.
+	 * */
+	public static Snapshot capture(Program program, Runtime.Engine engine, Output output) {
+		Input stop = () -> { throw new InputReached(); };
+		ExecutionResult result = new Runtime(program, engine, stop, output, null, false).runForResult();
+
+		if (result.getState() == ExecutionResult.State.FAILED && !(result.getError() instanceof InputReached)) {
+			System.err.printf("SNAPSHOT ERROR: PROGRAM FAILED BEFORE ITS FIRST INPUT (%s)\n", result.getError());
+			return null;
+		}
+
+		return new Snapshot(checksum(program), result.getProgramCounter(),
+				result.getRegisterA(), result.getRegisterB(), result.getRegisterC(), result.getCompare(),
+				Runtime.MEMORY_SIZE, result.memory());
+	}
+
+	/**
+	 * Loads a Snapshot by memory-mapping it.
+	 * @return The Snapshot, or null if the file is damaged.
+	 * */
+	public static Snapshot load(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			System.err.println("LOADING ERROR: NOT A SNAPSHOT");
+			return null;
+		}
+
+		int version = buffer.getShort(4) & 0xffff;
+		if (version != VERSION) {
+			System.err.printf("LOADING ERROR: UNSUPPORTED SNAPSHOT VERSION %d\n", version);
+			return null;
+		}
+
+		int memorySize = buffer.getInt(24);
+		int stored     = buffer.getInt(28);
+		if (stored < 0 || stored > memorySize || HEADER_SIZE + stored != buffer.remaining()) {
+			System.err.println("LOADING ERROR: MALFORMED SNAPSHOT");
+			return null;
+		}
+
+		ByteBuffer memory = buffer.duplicate().position(HEADER_SIZE).slice();
+		CRC32 crc = new CRC32();
+		crc.update(memory.duplicate());
+		if ((int) crc.getValue() != buffer.getInt(8)) {
+			System.err.println("LOADING ERROR: CHECKSUM MISMATCH");
+			return null;
+		}
+
+		Memory pages = memorySize == Runtime.MEMORY_SIZE ? Memory.of(memory) : new Memory();
+		return new Snapshot(buffer.getInt(12), buffer.getInt(16),
+				buffer.get(20), buffer.get(21), buffer.get(22), buffer.get(23), memorySize, pages);
+	}
+
+	/**
+	 * Atomically writes the Snapshot to a file.
+	 * */
+	public void save(Path path) throws IOException {
+		byte[] bytes  = memory.toByteArray();
+		int    stored = bytes.length;
+		while (stored > 0 && bytes[stored-1] == 0) stored--; // Trailing zeros are not stored
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + stored);
+		buffer.position(HEADER_SIZE);
+		buffer.put(bytes, 0, stored);
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, stored);
+		buffer.putInt(0, MAGIC);
+		buffer.putShort(4, (short) VERSION);
+		buffer.putShort(6, (short) 0);
+		buffer.putInt(8, (int) crc.getValue());
+		buffer.putInt(12, program);
+		buffer.putInt(16, programCounter);
+		buffer.put(20, registerA);
+		buffer.put(21, registerB);
+		buffer.put(22, registerC);
+		buffer.put(23, compare);
+		buffer.putInt(24, memorySize);
+		buffer.putInt(28, stored);
+
+		ProgramFile.write(path, buffer.array());
+	}
+
+	/**
+	 * @return true if the Snapshot was captured from this Program.
+	 * */
+	public boolean matches(Program program) {
+		return this.program == checksum(program);
+	}
+
+	/**
+	 * Restores the saved state into a Runtime.
+	 * */
+	void restore(Runtime runtime) {
+		if (memorySize != Runtime.MEMORY_SIZE) throw new IllegalArgumentException("Snapshot memory size " + memorySize);
+
+		runtime.memory         = memory.fork();
+		runtime.REGS_A         = registerA;
+		runtime.REGS_B         = registerB;
+		runtime.REGS_C         = registerC;
+		runtime.COMPARE        = compare;
+		runtime.programCounter = programCounter;
+	}
+
+	public int getProgramCounter() {
+		return programCounter;
+	}
+
+	private static int checksum(Program program) {
+		CRC32 crc = new CRC32();
+		crc.update(program.getBytecode());
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,130 @@
+package de.felixeckert.apersasm;
+
+import java.util.Arrays;
+
+/**
+ * Array-backed open-addressing Symbol Table mapping label names to
+ * bytecode addresses. Names are copied into a shared character pool
+ * so looking up a label does not allocate.
+ *
+ * @author Felix Eckert
+ * */
+final class SymbolTable {
+	private int[]     slots   = new int[64]; // Symbol ID + 1, 0 = empty
+	private int[]     hashes  = new int[32];
+	private int[]     offsets = new int[32];
+	private int[]     lengths = new int[32];
+	private int[]     values  = new int[32];
+	private boolean[] defined = new boolean[32];
+	private int[]     chains  = new int[32]; // Latest forward reference + 1, 0 = none
+	private char[]    pool    = new char[512];
+	private int       poolSize = 0;
+	private int       count    = 0;
+
+	/**
+	 * @return The amount of symbols in the table.
+	 * */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Looks up a symbol, adding it as undefined if it is not known yet.
+	 * @return The Symbol ID.
+	 * */
+	int intern(char[] chars, int start, int length) {
+		int hash = hash(chars, start, length);
+		int mask = slots.length - 1;
+
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			int id = slots[i] - 1;
+			if (id == -1) {
+				id = add(chars, start, length, hash);
+				slots[i] = id + 1;
+				if (count * 2 > slots.length) rehash();
+				return id;
+			}
+			if (hashes[id] == hash && equals(id, chars, start, length)) return id;
+		}
+	}
+
+	/**
+	 * @return true if the symbol was defined through {@link #define(int, int)}.
+	 * */
+	boolean isDefined(int id) {
+		return defined[id];
+	}
+
+	void define(int id, int value) {
+		values[id]  = value;
+		defined[id] = true;
+	}
+
+	int value(int id) {
+		return values[id];
+	}
+
+	/**
+	 * Adds a forward reference to a symbol. References are chained through the
+	 * Bytecode, every reference holds the position of the one before it.
+	 * @return The previous reference or -1 if this is the first one.
+	 * */
+	int chain(int id, int position) {
+		int previous = chains[id] - 1;
+		chains[id] = position + 1;
+		return previous;
+	}
+
+	/**
+	 * @return The latest forward reference to a symbol or -1 if there is none.
+	 * */
+	int chain(int id) {
+		return chains[id] - 1;
+	}
+
+	String name(int id) {
+		return new String(pool, offsets[id], lengths[id]);
+	}
+
+	private int add(char[] chars, int start, int length, int hash) {
+		if (count == hashes.length) {
+			int capacity = count * 2;
+			hashes  = Arrays.copyOf(hashes, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			values  = Arrays.copyOf(values, capacity);
+			defined = Arrays.copyOf(defined, capacity);
+			chains  = Arrays.copyOf(chains, capacity);
+		}
+		if (poolSize + length > pool.length) pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + length));
+
+		System.arraycopy(chars, start, pool, poolSize, length);
+		hashes[count]  = hash;
+		offsets[count] = poolSize;
+		lengths[count] = length;
+		poolSize += length;
+		return count++;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		int mask = slots.length - 1;
+
+		for (int id = 0; id < count; id++) {
+			int i = hashes[id] & mask;
+			while (slots[i] != 0) i = (i + 1) & mask;
+			slots[i] = id + 1;
+		}
+	}
+
+	private boolean equals(int id, char[] chars, int start, int length) {
+		if (lengths[id] != length) return false;
+		return Arrays.equals(pool, offsets[id], offsets[id] + length, chars, start, start + length);
+	}
+
+	private static int hash(char[] chars, int start, int length) {
+		int hash = 0;
+		for (int i = start; i < start + length; i++) hash = 31 * hash + chars[i];
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,159 @@
+package de.felixeckert.apersasm;
+
+import static de.felixeckert.apersasm.DecodedProgram.*;
+
+/**
+ * Execution Engine dispatching over a {@link DecodedProgram}.
+ * Registers are kept in locals for the duration of the loop and
+ * written back to the {@link Runtime} once execution stops.
+ *
+ * @author Felix Eckert
+ * */
+final class ThreadedEngine {
+	private ThreadedEngine() {}
+
+	/**
+	 * Executes a Program from the Runtimes current program counter until it exits
+	 * or reaches a taken jump after its time slice ended.
+	 *
+	 * @param counters Per instruction counters incremented on every taken jump, execution
+	 *                 stops at a jump target once its counter reaches 0. May be null.
+	 * @return The instruction index execution stopped at, {@link DecodedProgram#length()}
+	 *         if the Program exited.
+	 * */
+	static int execute(Runtime runtime, DecodedProgram program, int[] counters) {
+		final int[]  code   = program.code;
+		final byte[] MEMORY = runtime.MEMORY;
+		byte a   = runtime.REGS_A;
+		byte b   = runtime.REGS_B;
+		byte c   = runtime.REGS_C;
+		byte cmp = runtime.COMPARE;
+		int  ip  = program.indexOf(runtime.programCounter);
+		long executed = 0;
+		final long limit = runtime.sliceEnd - runtime.instructionCount;
+		final FlightRecorder recorder = runtime.recorder;
+
+		try {
+			for (;;) {
+				int instruction = code[ip];
+				executed++;
+				int operand     = instruction >> 8;
+
+				jump: {
+					spare: {
+						switch (instruction & 0xff) {
+						case APERS: if (cmp != 0) { ip++; break; } break jump;
+						case APRES: if (cmp <= 0) { ip++; break; } break jump;
+						case ASPER: if (cmp >= 0) { ip++; break; } break jump;
+						case PARES: break jump;
+
+						case PARSE_VALUE_A:   a = (byte) operand; ip++; break;
+						case PARSE_VALUE_A+1: b = (byte) operand; ip++; break;
+						case PARSE_VALUE_A+2: c = (byte) operand; ip++; break;
+
+						case PARSE_ADDRESS_A:   a = MEMORY[operand]; ip++; break;
+						case PARSE_ADDRESS_A+1: b = MEMORY[operand]; ip++; break;
+						case PARSE_ADDRESS_A+2: c = MEMORY[operand]; ip++; break;
+
+						case PARSE_POINTER_A:   a = MEMORY[MEMORY[operand]]; ip++; break;
+						case PARSE_POINTER_A+1: b = MEMORY[MEMORY[operand]]; ip++; break;
+						case PARSE_POINTER_A+2: c = MEMORY[MEMORY[operand]]; ip++; break;
+
+						case PEARS_ADDRESS_A:   MEMORY[operand] = a; ip++; break;
+						case PEARS_ADDRESS_A+1: MEMORY[operand] = b; ip++; break;
+						case PEARS_ADDRESS_A+2: MEMORY[operand] = c; ip++; break;
+
+						case PEARS_POINTER_A:   MEMORY[MEMORY[operand]] = a; ip++; break;
+						case PEARS_POINTER_A+1: MEMORY[MEMORY[operand]] = b; ip++; break;
+						case PEARS_POINTER_A+2: MEMORY[MEMORY[operand]] = c; ip++; break;
+
+						case PRASE_ADDRESS_A:   a += MEMORY[operand]; ip++; break;
+						case PRASE_ADDRESS_A+1: b += MEMORY[operand]; ip++; break;
+						case PRASE_ADDRESS_A+2: c += MEMORY[operand]; ip++; break;
+
+						case PRASE_POINTER_A:   a += MEMORY[MEMORY[operand]]; ip++; break;
+						case PRASE_POINTER_A+1: b += MEMORY[MEMORY[operand]]; ip++; break;
+						case PRASE_POINTER_A+2: c += MEMORY[MEMORY[operand]]; ip++; break;
+
+						case PRESA_ADDRESS_A:   a -= MEMORY[operand]; ip++; break;
+						case PRESA_ADDRESS_A+1: b -= MEMORY[operand]; ip++; break;
+						case PRESA_ADDRESS_A+2: c -= MEMORY[operand]; ip++; break;
+
+						case PRESA_POINTER_A:   a -= MEMORY[MEMORY[operand]]; ip++; break;
+						case PRESA_POINTER_A+1: b -= MEMORY[MEMORY[operand]]; ip++; break;
+						case PRESA_POINTER_A+2: c -= MEMORY[MEMORY[operand]]; ip++; break;
+
+						case RAPES_A:   a = runtime.input(); ip++; break;
+						case RAPES_A+1: b = runtime.input(); ip++; break;
+						case RAPES_A+2: c = runtime.input(); ip++; break;
+
+						case REAPS_A:   runtime.output(a); ip++; break;
+						case REAPS_A+1: runtime.output(b); ip++; break;
+						case REAPS_A+2: runtime.output(c); ip++; break;
+
+						case SPARE_AA:   cmp = 0;             ip++; break;
+						case SPARE_AA+1: cmp = (byte) (a-b); ip++; break;
+						case SPARE_AA+2: cmp = (byte) (a-c); ip++; break;
+						case SPARE_AA+3: cmp = (byte) (b-a); ip++; break;
+						case SPARE_AA+4: cmp = 0;             ip++; break;
+						case SPARE_AA+5: cmp = (byte) (b-c); ip++; break;
+						case SPARE_AA+6: cmp = (byte) (c-a); ip++; break;
+						case SPARE_AA+7: cmp = (byte) (c-b); ip++; break;
+						case SPARE_AA+8: cmp = 0;             ip++; break;
+
+						// Superinstructions, ip is advanced between the halves so faults report the right instruction
+						case PARSE_PEARS_A: a = (byte) operand; ip++; executed++; MEMORY[operand >> 8] = a; ip++; break;
+						case PARSE_PEARS_A+1: b = (byte) operand; ip++; executed++; MEMORY[operand >> 8] = b; ip++; break;
+						case PARSE_PEARS_A+2: c = (byte) operand; ip++; executed++; MEMORY[operand >> 8] = c; ip++; break;
+
+						case PRASE_REAPS_A: a += MEMORY[operand]; ip++; executed++; runtime.output(a); ip++; break;
+						case PRASE_REAPS_A+1: b += MEMORY[operand]; ip++; executed++; runtime.output(b); ip++; break;
+						case PRASE_REAPS_A+2: c += MEMORY[operand]; ip++; executed++; runtime.output(c); ip++; break;
+
+						case PRESA_REAPS_A: a -= MEMORY[operand]; ip++; executed++; runtime.output(a); ip++; break;
+						case PRESA_REAPS_A+1: b -= MEMORY[operand]; ip++; executed++; runtime.output(b); ip++; break;
+						case PRESA_REAPS_A+2: c -= MEMORY[operand]; ip++; executed++; runtime.output(c); ip++; break;
+
+						// spare r, r followed by apers, apres or asper, the branch is taken below
+						case SPARE_APERS_AA: case SPARE_APRES_AA: case SPARE_ASPER_AA: cmp = 0; break spare;
+						case SPARE_APERS_AA+1: case SPARE_APRES_AA+1: case SPARE_ASPER_AA+1: cmp = (byte) (a-b); break spare;
+						case SPARE_APERS_AA+2: case SPARE_APRES_AA+2: case SPARE_ASPER_AA+2: cmp = (byte) (a-c); break spare;
+						case SPARE_APERS_AA+3: case SPARE_APRES_AA+3: case SPARE_ASPER_AA+3: cmp = (byte) (b-a); break spare;
+						case SPARE_APERS_AA+4: case SPARE_APRES_AA+4: case SPARE_ASPER_AA+4: cmp = 0; break spare;
+						case SPARE_APERS_AA+5: case SPARE_APRES_AA+5: case SPARE_ASPER_AA+5: cmp = (byte) (b-c); break spare;
+						case SPARE_APERS_AA+6: case SPARE_APRES_AA+6: case SPARE_ASPER_AA+6: cmp = (byte) (c-a); break spare;
+						case SPARE_APERS_AA+7: case SPARE_APRES_AA+7: case SPARE_ASPER_AA+7: cmp = (byte) (c-b); break spare;
+						case SPARE_APERS_AA+8: case SPARE_APRES_AA+8: case SPARE_ASPER_AA+8: cmp = 0; break spare;
+
+						case SPEAR:
+							ip = program.length();
+							return ip;
+						case HALT:
+							executed--; // Not an actual instruction
+							return ip;
+						}
+						continue;
+					}
+					// Second half of a spare & branch superinstruction
+					executed++;
+					int fused = instruction & 0xff;
+					if (fused < SPARE_APRES_AA ? cmp != 0 : fused < SPARE_ASPER_AA ? cmp <= 0 : cmp >= 0) {
+						ip += 2;
+						continue;
+					}
+				}
+				// Taken jump
+				ip = operand;
+				if (recorder != null) recorder.record(program.offsets[ip], a, b, c, cmp);
+				if (executed >= limit || counters != null && ++counters[ip] >= 0) return ip;
+			}
+		} finally {
+			runtime.REGS_A  = a;
+			runtime.REGS_B  = b;
+			runtime.REGS_C  = c;
+			runtime.COMPARE = cmp;
+			runtime.programCounter = program.offsets[ip];
+			runtime.instructionCount += executed;
+		}
+	}
+}
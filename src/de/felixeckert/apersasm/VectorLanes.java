@@ -0,0 +1,88 @@
+package de.felixeckert.apersasm;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Lane loops of the {@link LockstepEngine} on the Vector API, only loaded when the
+ * jdk.incubator.vector module is available (--add-modules jdk.incubator.vector).
+ *
+ * Every method processes the lanes in whole vectors and returns the index of the first
+ * lane it did not process, the remaining lanes are left to the scalar loops. Lanes outside
+ * of the group are masked out, so their registers, COMPARE and MEMORY stay unchanged.
+ *
+ * @author Felix Eckert
+ * */
+final class VectorLanes {
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+	private static final int                 LENGTH  = SPECIES.length();
+
+	private VectorLanes() {}
+
+	/**
+	 * @return The lanes of the group among the vector starting at a lane.
+	 * */
+	private static VectorMask<Byte> group(byte[] mask, int l) {
+		return ByteVector.fromArray(SPECIES, mask, l).compare(VectorOperators.NE, (byte) 0);
+	}
+
+	static int load(byte[] register, byte value, byte[] mask, int lanes) {
+		int        bound  = SPECIES.loopBound(lanes);
+		ByteVector values = ByteVector.broadcast(SPECIES, value);
+		for (int l = 0; l < bound; l += LENGTH) {
+			ByteVector.fromArray(SPECIES, register, l).blend(values, group(mask, l)).intoArray(register, l);
+		}
+		return bound;
+	}
+
+	static int load(byte[] register, byte[] memory, int from, byte[] mask, int lanes) {
+		int bound = SPECIES.loopBound(lanes);
+		for (int l = 0; l < bound; l += LENGTH) {
+			ByteVector.fromArray(SPECIES, register, l)
+					.blend(ByteVector.fromArray(SPECIES, memory, from + l), group(mask, l))
+					.intoArray(register, l);
+		}
+		return bound;
+	}
+
+	static int store(byte[] register, byte[] memory, int from, byte[] mask, int lanes) {
+		int bound = SPECIES.loopBound(lanes);
+		for (int l = 0; l < bound; l += LENGTH) {
+			ByteVector.fromArray(SPECIES, memory, from + l)
+					.blend(ByteVector.fromArray(SPECIES, register, l), group(mask, l))
+					.intoArray(memory, from + l);
+		}
+		return bound;
+	}
+
+	static int add(byte[] register, byte[] memory, int from, byte[] mask, int lanes) {
+		int bound = SPECIES.loopBound(lanes);
+		for (int l = 0; l < bound; l += LENGTH) {
+			ByteVector.fromArray(SPECIES, register, l)
+					.add(ByteVector.fromArray(SPECIES, memory, from + l), group(mask, l))
+					.intoArray(register, l);
+		}
+		return bound;
+	}
+
+	static int subtract(byte[] register, byte[] memory, int from, byte[] mask, int lanes) {
+		int bound = SPECIES.loopBound(lanes);
+		for (int l = 0; l < bound; l += LENGTH) {
+			ByteVector.fromArray(SPECIES, register, l)
+					.sub(ByteVector.fromArray(SPECIES, memory, from + l), group(mask, l))
+					.intoArray(register, l);
+		}
+		return bound;
+	}
+
+	static int compare(byte[] compare, byte[] x, byte[] y, byte[] mask, int lanes) {
+		int bound = SPECIES.loopBound(lanes);
+		for (int l = 0; l < bound; l += LENGTH) {
+			ByteVector difference = ByteVector.fromArray(SPECIES, x, l).sub(ByteVector.fromArray(SPECIES, y, l));
+			ByteVector.fromArray(SPECIES, compare, l).blend(difference, group(mask, l)).intoArray(compare, l);
+		}
+		return bound;
+	}
+}
@@ -0,0 +1,145 @@
+package de.felixeckert.apersasm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Checks Bytecode once at load time: OP-CODES, truncated instructions,
+ * register IDs, address operands and jump targets.
+ *
+ * The Engines rely on verification to drop their own safety handling:
+ * only pointer operands and I/O can still fault in a verified Program.
+ *
+ * @author Felix Eckert
+ * */
+public final class Verifier {
+	/**
+	 * A single rejected instruction
+	 * */
+	public static final class Diagnostic {
+		private final int    address;
+		private final String location;
+		private final String message;
+
+		Diagnostic(int address, String location, String message) {
+			this.address  = address;
+			this.location = location;
+			this.message  = message;
+		}
+
+		/**
+		 * @return Address of the rejected instruction.
+		 * */
+		public int getAddress() {
+			return address;
+		}
+
+		/**
+		 * @return The address relative to the closest preceding label.
+		 * */
+		public String getLocation() {
+			return location;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			if (location.startsWith("$")) return String.format("$%04x: %s", address, message);
+			return String.format("$%04x (%s): %s", address, location, message);
+		}
+	}
+
+	private Verifier() {}
+
+	/**
+	 * @return Every rejected instruction, empty if the Program is valid.
+	 * */
+	static List<Diagnostic> verify(Program program) {
+		ByteBuffer bytecode = program.code();
+		int        length   = bytecode.limit();
+		List<Diagnostic> diagnostics = new ArrayList<>();
+		BitSet boundaries = new BitSet(length + 1);
+
+		// Jumps as (Address, Target) pairs, checked once every boundary is known
+		List<int[]> jumps = new ArrayList<>();
+
+		int pc = 0;
+		while (pc < length) {
+			byte instruction = bytecode.get(pc);
+			int  size        = Decoder.size(instruction);
+			if (size == 0) {
+				diagnostics.add(diagnostic(program, pc, String.format(
+						"UNKNOWN OP-CODE %02x, THE REST OF THE PROGRAM CAN NOT BE VERIFIED", instruction)));
+				return diagnostics;
+			}
+			if (pc + size > length) {
+				diagnostics.add(diagnostic(program, pc, "TRUNCATED INSTRUCTION"));
+				return diagnostics;
+			}
+			boundaries.set(pc);
+
+			switch (instruction) {
+			case 0x00: // apers
+			case 0x01: // apres
+			case 0x02: // asper
+			case 0x03: // pares
+				jumps.add(new int[] {pc, bytecode.getInt(pc+1)});
+				break;
+			case 0x04: // parse VALUE
+				checkRegister(program, diagnostics, pc, bytecode.get(pc+1));
+				break;
+			case 0x05: // parse ADDRESS
+			case 0x06: // parse POINTER
+			case 0x07: // pears ADDRESS
+			case 0x08: // pears POINTER
+			case 0x09: // prase ADDRESS
+			case 0x0a: // prase POINTER
+			case 0x0b: // presa ADDRESS
+			case 0x0c: // presa POINTER
+				checkRegister(program, diagnostics, pc, bytecode.get(pc+1));
+				if (bytecode.get(pc+2) < 0) {
+					diagnostics.add(diagnostic(program, pc, String.format(
+							"ADDRESS %02x IS OUT OF BOUNDS, ADDRESSES ARE SIGNED", bytecode.get(pc+2))));
+				}
+				break;
+			case 0x0d: // rapes
+			case 0x0e: // reaps
+				checkRegister(program, diagnostics, pc, bytecode.get(pc+1));
+				break;
+			case 0x0f: // spare
+				checkRegister(program, diagnostics, pc, bytecode.get(pc+1));
+				checkRegister(program, diagnostics, pc, bytecode.get(pc+2));
+				break;
+			}
+			pc += size;
+		}
+		boundaries.set(length); // Jumping to the end exits the Program
+
+		for (int[] jump : jumps) {
+			if (jump[1] < 0 || jump[1] > length) {
+				diagnostics.add(diagnostic(program, jump[0], String.format(
+						"JUMP TARGET $%x IS OUTSIDE THE PROGRAM", jump[1])));
+			} else if (!boundaries.get(jump[1])) {
+				diagnostics.add(diagnostic(program, jump[0], String.format(
+						"JUMP TARGET $%x (%s) IS NOT AN INSTRUCTION", jump[1], program.location(jump[1]))));
+			}
+		}
+		diagnostics.sort((a, b) -> Integer.compare(a.address, b.address));
+		return diagnostics;
+	}
+
+	private static void checkRegister(Program program, List<Diagnostic> diagnostics, int pc, byte register) {
+		if (register < 0x00 || register > 0x02) {
+			diagnostics.add(diagnostic(program, pc, String.format("INVALID REGISTER %02x", register)));
+		}
+	}
+
+	private static Diagnostic diagnostic(Program program, int pc, String message) {
+		return new Diagnostic(pc, program.location(pc), message);
+	}
+}
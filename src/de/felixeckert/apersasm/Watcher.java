@@ -0,0 +1,130 @@
+package de.felixeckert.apersasm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles & reruns a source file whenever it is saved.
+ * The source is kept assembled between saves, so only the changed lines are
+ * translated again, see {@link IncrementalAssembler}. Programs run in time
+ * slices, a save interrupts a Program that is still running.
+ *
+ * @author Felix Eckert
+ * */
+public final class Watcher {
+	/**
+	 * Time in MS to wait for further changes, editors often save in several steps
+	 * */
+	private static final long SETTLE = 50;
+
+	private Watcher() {}
+
+	/**
+	 * Watches a source file until the JVM is stopped.
+	 *
+	 * @param source   The source file
+	 * @param optimize Whether to run the {@link Optimizer}
+	 * @param profile  Whether to print a profile once the Program stopped
+	 * @param trace    Whether to dump the most recent instructions if the Program faults
+	 * */
+	public static void watch(Path source, Runtime.Engine engine, ChannelInput.Mode inputMode, boolean optimize,
+			boolean profile, boolean trace) throws IOException, InterruptedException {
+		Path                 file      = source.toAbsolutePath();
+		IncrementalAssembler assembler = new IncrementalAssembler();
+		Input                input     = ChannelInput.stdin(inputMode);
+		Output               output    = ChannelOutput.stdout();
+
+		try (WatchService service = file.getFileSystem().newWatchService()) {
+			file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			System.out.printf("Watching %s\n", file);
+
+			for (;;) {
+				long    start   = System.nanoTime();
+				Program program = assemble(assembler, file, optimize);
+				if (program != null) {
+					System.out.printf("Assembled in %s nanoseconds\n", System.nanoTime() - start);
+					if (run(program, engine, input, output, profile, trace, service, file)) continue;
+				}
+				changed(service, file, true);
+			}
+		}
+	}
+
+	/**
+	 * Internal Helper Method to assemble the current version of the source.
+	 * @return The Program or null if it could not be assembled.
+	 * */
+	private static Program assemble(IncrementalAssembler assembler, Path file, boolean optimize) {
+		try {
+			Program program = assembler.update(new String(Files.readAllBytes(file)), System.err);
+			if (program == null || program.length() == 0) {
+				System.err.println("Compilation Failed!");
+				return null;
+			}
+			return optimize ? Optimizer.optimize(program) : program;
+		} catch (IOException e) { // Replaced by the editor in the meantime
+			System.err.printf("LOADING ERROR: COULD NOT READ %s (%s)\n", file, e);
+		} catch (RuntimeException e) {
+			System.err.printf("COMPILATION ERROR: %s\n", e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Internal Helper Method to run a Program, checking for changes between time slices.
+	 * @return true if the Program was interrupted by a change.
+	 * */
+	private static boolean run(Program program, Runtime.Engine engine, Input input, Output output, boolean profile,
+			boolean trace, WatchService service, Path file) throws InterruptedException {
+		if (!Runtime.verify(program, System.err)) return false;
+
+		Profiler profiler = profile ? new Profiler(program) : null;
+		Runtime  runtime  = new Runtime(program, engine, input, output, profiler);
+		if (trace) runtime.recorder = new FlightRecorder();
+
+		boolean finished = runtime.runAndReport(program, () -> {
+			try {
+				return changed(service, file, false);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return true;
+			}
+		}, System.out, System.err);
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (finished) return false;
+
+		System.err.println("\nRUNTIME INTERRUPTED: SOURCE CHANGED");
+		return true;
+	}
+
+	/**
+	 * Internal Helper Method to check for changes of the source, waiting until it settled.
+	 * @param block Whether to wait for a change
+	 * @return true if the source changed.
+	 * */
+	private static boolean changed(WatchService service, Path file, boolean block) throws InterruptedException {
+		boolean  changed = false;
+		WatchKey key     = block ? service.take() : service.poll();
+		while (key != null) {
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+					changed = true;
+				}
+			}
+			key.reset();
+
+			if (changed) {
+				key = service.poll(SETTLE, TimeUnit.MILLISECONDS);
+			} else {
+				key = block ? service.take() : service.poll();
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,131 @@
+package de.felixeckert.apersasm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that blocks compiled by the {@link BlockCompiler} end in the same state as the Interpreter,
+ * when they loop in place, fault and run out of their time slice.
+ *
+ * @author Felix Eckert
+ * */
+class JitEngineTest {
+	/**
+	 * Instructions a Program may execute before its run counts as hanging
+	 * */
+	private static final long LIMIT = 1_000_000;
+
+	/**
+	 * Runs an inner loop of 255 iterations per outer iteration, reading and writing through the pointer
+	 * at $02, which moves up by one per outer iteration. The outer iterations & the initial pointer are
+	 * read from the input, pointers from $80 on are negative and fault.
+	 * */
+	private static final String SOURCE = String.join("\r\n",
+			" rapes c",
+			" rapes b",
+			" pears b, $02",
+			" parse a, #01",
+			" pears a, $01",
+			"LABEL Outer",
+			" parse a, #00",
+			" pears a, $03",
+			"LABEL Inner",
+			" parse a, $03",
+			" prase a, $01",
+			" pears a, $03",
+			" parse b, *02",
+			" prase b, $04",
+			" pears b, $04",
+			" pears a, *02",
+			" parse b, #00",
+			" spare a b",
+			" apres Inner",
+			" asper Inner",
+			" parse a, $02",
+			" prase a, $01",
+			" pears a, $02",
+			" presa c, $01",
+			" reaps b",
+			" parse b, #00",
+			" spare c b",
+			" apres Outer",
+			" reaps c",
+			" spear");
+
+	private static final Program PROGRAM = Compiler.assemble(SOURCE);
+
+	@Test
+	void hotLoopsRunLikeTheInterpreter() {
+		byte[] input = {8, 0x10};
+		assertEquivalent(input, Long.MAX_VALUE);
+		assertEquals(ExecutionResult.State.EXITED, run(Runtime.Engine.JIT, input, Long.MAX_VALUE).result.getState());
+	}
+
+	@Test
+	void faultsInHotLoopsWriteBackTheState() {
+		byte[] input = {20, 0x70}; // Faults once the pointer reaches $80, after 16 outer iterations
+		assertEquivalent(input, Long.MAX_VALUE);
+
+		Run jit = run(Runtime.Engine.JIT, input, Long.MAX_VALUE);
+		assertEquals(ExecutionResult.State.FAILED, jit.result.getState());
+		assertTrue(jit.result.getInstructionCount() > JitEngine.THRESHOLD * 10L, "The fault happened before the loop got hot");
+	}
+
+	@Test
+	void hotLoopsStopAtTheEndOfTheirSlice() {
+		for (long budget : new long[] {1, 7, 100, 999, 4096}) {
+			assertEquivalent(new byte[] {8, 0x10}, budget);
+			assertEquivalent(new byte[] {20, 0x70}, budget);
+		}
+	}
+
+	/**
+	 * Runs the Program on the Interpreter in one slice and on the Threaded & Tiered Engines in slices of the budget.
+	 * */
+	private static void assertEquivalent(byte[] input, long budget) {
+		Run expected = run(Runtime.Engine.INTERPRETER, input, Long.MAX_VALUE);
+		for (Runtime.Engine engine : new Runtime.Engine[] {Runtime.Engine.THREADED, Runtime.Engine.JIT}) {
+			Run    actual  = run(engine, input, budget);
+			String message = engine + " in slices of " + budget;
+			assertEquals(expected.output, actual.output, message);
+			assertEquals(expected.error, actual.error, message);
+			assertEquals(expected.result.getState(), actual.result.getState(), message);
+			assertEquals(expected.result.getRegisterA(), actual.result.getRegisterA(), message);
+			assertEquals(expected.result.getRegisterB(), actual.result.getRegisterB(), message);
+			assertEquals(expected.result.getRegisterC(), actual.result.getRegisterC(), message);
+			assertEquals(expected.result.getCompare(), actual.result.getCompare(), message);
+			assertEquals(expected.result.getProgramCounter(), actual.result.getProgramCounter(), message);
+			assertEquals(expected.result.getInstructionCount(), actual.result.getInstructionCount(), message);
+			assertArrayEquals(expected.result.getMemory(), actual.result.getMemory(), message);
+		}
+	}
+
+	private static Run run(Runtime.Engine engine, byte[] input, long budget) {
+		MemoryOutput output  = new MemoryOutput();
+		Runtime      runtime = new Runtime(PROGRAM, engine, new MemoryInput(input), output);
+		Throwable    error   = null;
+		try {
+			while (!runtime.run(Math.min(budget, LIMIT))) {
+				assertTrue(runtime.instructionCount < LIMIT, engine + " did not stop");
+			}
+		} catch (RuntimeException e) {
+			error = e;
+		}
+		return new Run(runtime.result(error), output.toString(), error == null ? "" : error.getClass().getSimpleName());
+	}
+
+	private static final class Run {
+		final ExecutionResult result;
+		final String          output;
+		final String          error;
+
+		Run(ExecutionResult result, String output, String error) {
+			this.result = result;
+			this.output = output;
+			this.error  = error;
+		}
+	}
+}
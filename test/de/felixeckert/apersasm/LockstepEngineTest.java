@@ -0,0 +1,92 @@
+package de.felixeckert.apersasm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that Programs executed in lockstep end in the same state as on their own.
+ *
+ * @author Felix Eckert
+ * */
+class LockstepEngineTest {
+	/**
+	 * Instructions a Program may execute before its run counts as hanging
+	 * */
+	private static final long LIMIT = 100_000;
+	/**
+	 * Instances per batch, one full group and one that ends in a partial vector
+	 * */
+	private static final int INSTANCES = LockstepEngine.LANES + 37;
+
+	private static Scheduler scheduler;
+
+	@BeforeAll
+	static void start() {
+		scheduler = new Scheduler();
+	}
+
+	@AfterAll
+	static void stop() {
+		scheduler.close();
+	}
+
+	@Test
+	void runsOnTheVectorApi() {
+		assertTrue(LockstepEngine.VECTOR, "The build adds jdk.incubator.vector, the vector lanes have to be tested");
+	}
+
+	@Test
+	void randomProgramsEndInTheSameState() {
+		Random random = new Random(0x4c4f434b);
+		int compared = 0;
+		for (int n = 0; n < 100; n++) {
+			String  source  = RandomPrograms.source(random);
+			Program program = Compiler.assemble(source);
+			if (!program.isVerified()) continue;
+
+			byte[][]          inputs   = new byte[INSTANCES][];
+			ExecutionResult[] expected = new ExecutionResult[INSTANCES];
+			String[]          outputs  = new String[INSTANCES];
+			boolean           hangs    = false;
+			for (int i = 0; i < INSTANCES && !hangs; i++) {
+				inputs[i] = RandomPrograms.input(random);
+				MemoryOutput output = new MemoryOutput();
+				expected[i] = scheduler.submit(program, Runtime.Engine.INTERPRETER,
+						new MemoryInput(inputs[i]), output, 0, LIMIT, 0).join();
+				outputs[i]  = output.toString();
+				hangs = expected[i].getError() instanceof Scheduler.LimitExceededException;
+			}
+			if (hangs) continue; // Lockstep execution has no limit
+
+			Input[]        batchInputs  = new Input[INSTANCES];
+			MemoryOutput[] batchOutputs = new MemoryOutput[INSTANCES];
+			for (int i = 0; i < INSTANCES; i++) {
+				batchInputs[i]  = new MemoryInput(inputs[i]);
+				batchOutputs[i] = new MemoryOutput();
+			}
+			ExecutionResult[] results = Runtime.executeBatch(program, batchInputs, batchOutputs);
+
+			for (int i = 0; i < INSTANCES; i++) {
+				String message = "Instance " + i + "\n" + source;
+				assertEquals(outputs[i], batchOutputs[i].toString(), message);
+				assertEquals(expected[i].getState(), results[i].getState(), message);
+				assertEquals(expected[i].getRegisterA(), results[i].getRegisterA(), message);
+				assertEquals(expected[i].getRegisterB(), results[i].getRegisterB(), message);
+				assertEquals(expected[i].getRegisterC(), results[i].getRegisterC(), message);
+				assertEquals(expected[i].getCompare(), results[i].getCompare(), message);
+				assertEquals(expected[i].getProgramCounter(), results[i].getProgramCounter(), message);
+				assertEquals(expected[i].getInstructionCount(), results[i].getInstructionCount(), message);
+				assertArrayEquals(expected[i].getMemory(), results[i].getMemory(), message);
+			}
+			compared++;
+		}
+		assertTrue(compared > 20, "Only " + compared + " Programs terminated on every input");
+	}
+}
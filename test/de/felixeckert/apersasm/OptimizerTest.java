@@ -0,0 +1,200 @@
+package de.felixeckert.apersasm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that optimized Programs output the same as the original ones and fault at the same point,
+ * on random Programs & inputs and on the cases the Optimizer rewrites.
+ *
+ * @author Felix Eckert
+ * */
+class OptimizerTest {
+	/**
+	 * Instructions a Program may execute before its run counts as hanging
+	 * */
+	private static final long LIMIT = 100_000;
+
+	private static Scheduler scheduler;
+
+	@BeforeAll
+	static void start() {
+		scheduler = new Scheduler();
+	}
+
+	@AfterAll
+	static void stop() {
+		scheduler.close();
+	}
+
+	@Test
+	void randomProgramsAreEquivalent() {
+		Random random = new Random(0x41504552);
+		int compared = 0;
+		for (int n = 0; n < 300; n++) {
+			String  source  = RandomPrograms.source(random);
+			Program program = Compiler.assemble(source);
+			if (!program.isVerified()) continue;
+
+			Program optimized = Optimizer.optimize(program);
+			assertTrue(optimized.isVerified(), source);
+			for (int i = 0; i < 3; i++) {
+				byte[] input = RandomPrograms.input(random);
+				if (assertEquivalent(source, program, optimized, input)) compared++;
+			}
+		}
+		assertTrue(compared > 500, "Only " + compared + " runs terminated");
+	}
+
+	@Test
+	void foldsPointersWithKnownAddresses() {
+		String source = lines(
+				" rapes a",
+				" parse b, #05",
+				" pears b, $01",
+				" parse c, #2a",
+				" pears c, $05",
+				" parse c, #00",
+				" parse c, *01",
+				" reaps c",
+				" prase a, *01",
+				" presa a, *01",
+				" reaps a",
+				" pears a, *01",
+				" parse b, $05",
+				" reaps b",
+				" spear");
+		Program program   = Compiler.assemble(source);
+		Program optimized = Optimizer.optimize(program);
+
+		for (byte opcode : new byte[] {0x06, 0x08, 0x0a, 0x0c}) {
+			assertEquals(0, count(optimized, opcode), "POINTER instruction " + opcode + " was not folded");
+		}
+		for (int value = -128; value < 128; value += 17) {
+			assertEquivalent(source, program, optimized, new byte[] {(byte) value});
+		}
+	}
+
+	@Test
+	void resolvesDecidedBranches() {
+		String source = lines(
+				" rapes a",
+				" parse b, #01",
+				" parse c, #02",
+				" spare b c",
+				" apers Zero",
+				" apres Zero",
+				" asper Negative",
+				" reaps b",
+				"LABEL Zero",
+				" reaps c",
+				"LABEL Negative",
+				" reaps a",
+				" spear");
+		Program program   = Compiler.assemble(source);
+		Program optimized = Optimizer.optimize(program);
+
+		for (byte opcode : new byte[] {0x00, 0x01, 0x02}) {
+			assertEquals(0, count(optimized, opcode), "Branch " + opcode + " was not resolved");
+		}
+		assertTrue(optimized.length() < program.length());
+		for (int value = -128; value < 128; value += 17) {
+			assertEquivalent(source, program, optimized, new byte[] {(byte) value});
+		}
+	}
+
+	@Test
+	void stopsThreadingJumpCycles() {
+		String source = lines(
+				" rapes a",
+				" parse b, #00",
+				" spare a b",
+				" apers Spin",
+				" reaps a",
+				" spear",
+				"LABEL Spin",
+				" pares Turn",
+				"LABEL Turn",
+				" pares Spin");
+		Program program   = Compiler.assemble(source);
+		Program optimized = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> Optimizer.optimize(program));
+
+		assertTrue(optimized.isVerified());
+		assertTrue(assertEquivalent(source, program, optimized, new byte[] {7}));
+		assertEquals("LimitExceededException", run(optimized, Runtime.Engine.INTERPRETER, new byte[] {0}).split("\\|")[2]);
+	}
+
+	@Test
+	void relocatesLabelsThatMove() {
+		String source = lines(
+				" rapes a",
+				" parse b, #01",
+				" pears b, $00",
+				" parse c, #00",
+				" parse c, #00",
+				" pears c, $01",
+				"LABEL Loop",
+				" reaps a",
+				" presa a, $00",
+				" spare a c",
+				" apres Loop",
+				"LABEL End",
+				" spear");
+		Program program   = Compiler.assemble(source);
+		Program optimized = Optimizer.optimize(program);
+
+		int loop = optimized.getLabels().get("Loop");
+		assertNotEquals(program.getLabels().get("Loop"), loop, "Loop did not move");
+		assertEquals(0x0e, optimized.getBytecode()[loop], "Loop does not point at its reaps");
+		assertEquals(0x10, optimized.getBytecode()[optimized.getLabels().get("End")], "End does not point at its spear");
+		for (int value = -128; value < 128; value += 17) {
+			assertEquivalent(source, program, optimized, new byte[] {(byte) value});
+		}
+	}
+
+	/**
+	 * Runs both Programs on every Engine.
+	 * @return false if the original Program did not stop within the {@link #LIMIT}.
+	 * */
+	private static boolean assertEquivalent(String source, Program program, Program optimized, byte[] input) {
+		String expected = run(program, Runtime.Engine.INTERPRETER, input);
+		if (expected.endsWith("LimitExceededException")) return false;
+
+		for (Runtime.Engine engine : Runtime.Engine.values()) {
+			assertEquals(expected, run(optimized, engine, input), engine + "\n" + source);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The output, final state and error of a run.
+	 * */
+	private static String run(Program program, Runtime.Engine engine, byte[] input) {
+		MemoryOutput    output = new MemoryOutput();
+		ExecutionResult result = scheduler.submit(program, engine, new MemoryInput(input), output, 0, LIMIT, 0).join();
+		Throwable       error  = result.getError();
+		return output + "|" + result.getState() + "|" + (error == null ? "" : error.getClass().getSimpleName());
+	}
+
+	private static int count(Program program, byte opcode) {
+		byte[] bytecode = program.getBytecode();
+		int    count    = 0;
+		for (int pc = 0; pc < bytecode.length; pc += Decoder.size(bytecode[pc])) {
+			if (bytecode[pc] == opcode) count++;
+		}
+		return count;
+	}
+
+	private static String lines(String... lines) {
+		return String.join("\r\n", lines);
+	}
+}
@@ -0,0 +1,65 @@
+package de.felixeckert.apersasm;
+
+import java.util.Random;
+
+/**
+ * Random Programs & inputs for the tests comparing executions.
+ *
+ * @author Felix Eckert
+ * */
+final class RandomPrograms {
+	private static final String[] REGISTERS = {"a", "b", "c"};
+	private static final String[] BRANCHES  = {"apers", "apres", "asper", "pares"};
+
+	private RandomPrograms() {}
+
+	/**
+	 * Generates a loop over random instructions that runs five times unless its counter at $10 is overwritten.
+	 * */
+	static String source(Random random) {
+		StringBuilder source = new StringBuilder(" parse c, #05\r\n pears c, $10\r\n parse c, #01\r\n pears c, $11\r\n");
+		source.append("LABEL Top\r\n");
+
+		int instructions = 5 + random.nextInt(60), labels = 0;
+		for (int i = 0; i < instructions; i++) {
+			String register = REGISTERS[random.nextInt(REGISTERS.length)];
+			String address  = String.format("%02x", random.nextInt(16));
+			switch (random.nextInt(15)) {
+			case 0:  source.append(" parse ").append(register).append(", #").append(String.format("%02x", random.nextInt(256))); break;
+			case 1:  source.append(" parse ").append(register).append(", $").append(address); break;
+			case 2:  source.append(" parse ").append(register).append(", *").append(address); break;
+			case 3:  source.append(" pears ").append(register).append(", $").append(address); break;
+			case 4:  source.append(" pears ").append(register).append(", *").append(address); break;
+			case 5:  source.append(" prase ").append(register).append(", $").append(address); break;
+			case 6:  source.append(" prase ").append(register).append(", *").append(address); break;
+			case 7:  source.append(" presa ").append(register).append(", $").append(address); break;
+			case 8:  source.append(" presa ").append(register).append(", *").append(address); break;
+			case 9:  source.append(" reaps ").append(register); break;
+			case 10: source.append(" spare ").append(register).append(' ').append(REGISTERS[random.nextInt(3)]); break;
+			case 11: // Forward branch over some output
+				source.append(' ').append(BRANCHES[random.nextInt(BRANCHES.length)]).append(" F").append(labels).append("\r\n");
+				for (int j = random.nextInt(3); j > 0; j--) source.append(" reaps a\r\n");
+				source.append("LABEL F").append(labels++);
+				break;
+			case 12: source.append(" parse ").append(register).append(", #").append(String.format("%02x", random.nextInt(128))); break;
+			case 13: source.append(" rapes ").append(register); break;
+			case 14: if (random.nextInt(10) == 0) source.append(" prase ").append(register).append(", $f0"); break; // Faults
+			}
+			source.append("\r\n");
+		}
+
+		source.append(" parse a, $10\r\n presa a, $11\r\n pears a, $10\r\n parse b, #00\r\n spare a b\r\n apres Top\r\n spear\r\n");
+		return source.toString();
+	}
+
+	/**
+	 * @return A short input of random values or a long one of counting values.
+	 * */
+	static byte[] input(Random random) {
+		byte[] input = new byte[random.nextInt(3) == 0 ? random.nextInt(8) : 2000];
+		for (int i = 0; i < input.length; i++) {
+			input[i] = (byte) (random.nextInt(3) == 0 ? random.nextInt(256) : i % 50 + 1);
+		}
+		return input;
+	}
+}
@@ -0,0 +1,159 @@
+package de.felixeckert.apersasm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that forked Runtimes and restored Snapshots continue exactly like a single run,
+ * without sharing writes to MEMORY.
+ *
+ * @author Felix Eckert
+ * */
+class RuntimeTest {
+	/**
+	 * Fills $20 to $2f with their addresses, then adds the input to $25.
+	 * */
+	private static final String SOURCE = String.join("\r\n",
+			" parse a, #20",
+			" pears a, $01",
+			" parse b, #01",
+			" pears b, $02",
+			" parse c, #30",
+			"LABEL Fill",
+			" parse a, $01",
+			" pears a, *01",
+			" reaps a",
+			" prase a, $02",
+			" pears a, $01",
+			" spare a c",
+			" asper Fill",
+			" rapes b",
+			" pears b, $03",
+			" parse a, $25",
+			" prase a, $03",
+			" reaps a",
+			" spear");
+
+	private static final Program PROGRAM = Compiler.assemble(SOURCE);
+
+	@Test
+	void forksContinueLikeASingleRun() {
+		for (Runtime.Engine engine : Runtime.Engine.values()) {
+			MemoryOutput output = new MemoryOutput();
+			Runtime      parent = new Runtime(PROGRAM, engine, new MemoryInput(new byte[] {3}), output);
+			assertFalse(parent.run(30), engine + " exited early");
+			String forked = output.toString();
+
+			MemoryOutput[] outputs = {new MemoryOutput(), new MemoryOutput()};
+			Runtime[]      forks   = new Runtime[outputs.length];
+			for (int i = 0; i < forks.length; i++) {
+				forks[i] = parent.fork(new MemoryInput(new byte[] {(byte) (i + 1)}), outputs[i]);
+			}
+			for (Runtime fork : forks) assertTrue(fork.run(Long.MAX_VALUE));
+			assertTrue(parent.run(Long.MAX_VALUE));
+
+			for (int i = 0; i < forks.length; i++) {
+				assertEquals(run(engine, (byte) (i + 1)), forked + outputs[i], engine + " fork " + i);
+			}
+			assertEquals(run(engine, (byte) 3), output.toString(), engine + " parent");
+		}
+	}
+
+	@Test
+	void forksCopyMemoryOnWrite() {
+		Memory memory = new Memory();
+		memory.page(0)[5] = 1;
+
+		Memory fork = memory.fork();
+		fork.page(0)[5] = 2;
+		memory.page(1)[0] = 3;
+
+		assertEquals(1, memory.get(5));
+		assertEquals(2, fork.get(5));
+		assertEquals(0, fork.get(Memory.PAGE_SIZE));
+		assertEquals(3, memory.get(Memory.PAGE_SIZE));
+	}
+
+	@Test
+	void backingIsReadUntilWritten() {
+		byte[] bytes = new byte[Memory.PAGE_SIZE + 10];
+		for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) i;
+
+		Memory memory = Memory.of(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+		Memory fork   = memory.fork();
+		fork.page(1)[3] = -1;
+
+		assertEquals(7, memory.get(7));
+		assertEquals((byte) (Memory.PAGE_SIZE + 3), memory.get(Memory.PAGE_SIZE + 3));
+		assertEquals(-1, fork.get(Memory.PAGE_SIZE + 3));
+		assertEquals(0, fork.get(Memory.PAGE_SIZE + 10));
+		assertArrayEquals(Arrays.copyOf(bytes, Runtime.MEMORY_SIZE), memory.toByteArray());
+	}
+
+	@Test
+	void loadedSnapshotsContinueLikeASingleRun(@TempDir Path directory) throws IOException {
+		Path file = directory.resolve("program.snapshot");
+		ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+		Snapshot.capture(PROGRAM, Runtime.Engine.INTERPRETER, prefix::write).save(file);
+		assertTrue(Files.size(file) > Snapshot.HEADER_SIZE);
+
+		Snapshot snapshot = Snapshot.load(file);
+		for (Runtime.Engine engine : Runtime.Engine.values()) {
+			MemoryOutput    output = new MemoryOutput();
+			ExecutionResult result = Runtime.execute(PROGRAM, snapshot, engine,
+					new MemoryInput(new byte[] {4}), output, Runnable::run).join();
+			assertEquals(ExecutionResult.State.EXITED, result.getState());
+			assertEquals(run(engine, (byte) 4), prefix.toString() + output, engine.toString());
+		}
+	}
+
+	@Test
+	void preloadedInputFailsLikeTheChannel() throws IOException {
+		MemoryInput input = MemoryInput.preload(decimal("12 -3 oops 4"), ChannelInput.Mode.DECIMAL);
+		assertEquals(12, input.read());
+		assertEquals(-3, input.read());
+		assertThrows(InputMismatchException.class, input::read);
+
+		MemoryInput ended = MemoryInput.preload(decimal(" 1 "), ChannelInput.Mode.DECIMAL);
+		assertEquals(1, ended.read());
+		assertThrows(NoSuchElementException.class, ended::read);
+
+		for (Runtime.Engine engine : Runtime.Engine.values()) {
+			Runtime runtime = new Runtime(PROGRAM, engine,
+					MemoryInput.preload(decimal("oops"), ChannelInput.Mode.DECIMAL), new MemoryOutput());
+			assertThrows(InputMismatchException.class, () -> runtime.run(Long.MAX_VALUE), engine.toString());
+		}
+	}
+
+	private static ReadableByteChannel decimal(String input) {
+		return Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	/**
+	 * @return The output of a single uninterrupted run.
+	 * */
+	private static String run(Runtime.Engine engine, byte input) {
+		MemoryOutput output = new MemoryOutput();
+		assertTrue(new Runtime(PROGRAM, engine, new MemoryInput(new byte[] {input}), output).run(Long.MAX_VALUE));
+		return output.toString();
+	}
+}